@@ -0,0 +1,58 @@
+package ink.glowing.math.benchmark;
+
+import ink.glowing.math.CompiledFormula;
+import ink.glowing.math.FormulaEvaluator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Row-by-row versus column-wise evaluation of a formula over a large dataset.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BatchBenchmark {
+    @Param({"sqrt(x*x+y*y)*z-abs(x-y)/2", "max(x,y)*1.5+min(y,z)-fma(x,y,z)"})
+    public String expression;
+
+    @Param("1000000")
+    public int rows;
+
+    private CompiledFormula formula;
+    private double[][] columns;
+    private double[] out;
+
+    @Setup
+    public void setup() {
+        formula = FormulaEvaluator.compile(expression, "x", "y", "z");
+        Random random = new Random(42);
+        columns = new double[3][rows];
+        for (double[] column : columns) {
+            for (int i = 0; i < rows; i++) column[i] = random.nextDouble() * 100;
+        }
+        out = new double[rows];
+    }
+
+    @Benchmark
+    public double[] rowByRow() {
+        double[] vars = new double[3];
+        for (int i = 0; i < rows; i++) {
+            vars[0] = columns[0][i];
+            vars[1] = columns[1][i];
+            vars[2] = columns[2][i];
+            out[i] = formula.eval(vars);
+        }
+        return out;
+    }
+
+    @Benchmark
+    public double[] batch() {
+        formula.evalBatch(columns, out, 0, rows);
+        return out;
+    }
+}
@@ -0,0 +1,58 @@
+package ink.glowing.math.benchmark;
+
+import ink.glowing.math.CompiledFormula;
+import ink.glowing.math.FormulaBundle;
+import ink.glowing.math.FormulaEvaluator;
+import ink.glowing.math.MathDictionary;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cold start cost of a set of stored formulas, parsed from expressions versus decoded from a bundle.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BundleBenchmark {
+    @Param("10000")
+    public int formulas;
+
+    private String[] expressions;
+    private String[] names;
+    private ByteBuffer bundle;
+
+    @Setup
+    public void setup() {
+        names = Corpus.VARIABLES.variables().keySet().toArray(new String[0]);
+        expressions = new String[formulas];
+        List<CompiledFormula> compiled = new ArrayList<>(formulas);
+        for (int i = 0; i < formulas; i++) {
+            // Distinct constants, so that nothing is shared between formulas
+            expressions[i] = Corpus.VARIABLES.expression() + "+" + i + "*" + Corpus.FUNCTIONS.expression();
+            compiled.add(FormulaEvaluator.compile(expressions[i], names));
+        }
+        bundle = FormulaBundle.encode(compiled, MathDictionary.INSTANCE);
+    }
+
+    @Benchmark
+    public List<CompiledFormula> parse() {
+        List<CompiledFormula> compiled = new ArrayList<>(formulas);
+        for (String expression : expressions) {
+            compiled.add(FormulaEvaluator.compile(expression, names)
+                    .withBackend(CompiledFormula.Backend.INTERPRETER));
+        }
+        return compiled;
+    }
+
+    @Benchmark
+    public List<CompiledFormula> decode() {
+        return FormulaBundle.decode(bundle.duplicate(), MathDictionary.INSTANCE);
+    }
+}
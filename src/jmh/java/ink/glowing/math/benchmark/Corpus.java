@@ -0,0 +1,46 @@
+package ink.glowing.math.benchmark;
+
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Realistic expressions shared by the benchmark suites.
+ */
+public enum Corpus {
+    SHORT("2*3+4/5-1", Map.of()),
+    NESTED("((((1+2)*(3-4))/((5+6)*(7-8)))+(((9+10)*(11-12))/((13+14)*(15-16))))^2", Map.of()),
+    FUNCTIONS("sin(sqrt(5))^2+cos(log(11)+log(256,2))*hypot(12,sin(34))/atan2(3,4)", Map.of()),
+    VARIABLES("price*quantity*(1-discount)+shipping*weight/distance-tax*price",
+            Map.of("price", 19.99, "quantity", 3D, "discount", 0.15, "shipping", 4.5,
+                    "weight", 2.25, "distance", 120D, "tax", 0.2)),
+    VARARGS("max(1,e,20,pi,4.5)+min(3,1.5,8,2)+avg(1,2,3,4,5,6)+hypot(3,4,5)+fma(2,3,4)", Map.of());
+
+    private final String expression;
+    private final Map<String, Double> variables;
+    private final String literal;
+
+    Corpus(String expression, Map<String, Double> variables) {
+        this.expression = expression;
+        this.variables = variables;
+        this.literal = Pattern.compile("[a-z_]+").matcher(expression).replaceAll(name -> {
+            Double value = variables.get(name.group());
+            return Matcher.quoteReplacement(value == null ? name.group() : value.toString());
+        });
+    }
+
+    public String expression() {
+        return expression;
+    }
+
+    public Map<String, Double> variables() {
+        return variables;
+    }
+
+    /**
+     * @return expression with the variables replaced by their values, for evaluators without variables
+     */
+    public String literal() {
+        return literal;
+    }
+}
@@ -0,0 +1,63 @@
+package ink.glowing.math.benchmark;
+
+import ink.glowing.math.CompiledFormula;
+import ink.glowing.math.FormulaEvaluator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Eval-only cost of an already parsed {@link FormulaEvaluator}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EvalBenchmark {
+    @Param
+    public Corpus corpus;
+
+    private FormulaEvaluator formula;
+    private Map<String, Double> variables;
+    private CompiledFormula compiled;
+    private CompiledFormula bytecode;
+    private CompiledFormula interpreter;
+    private double[] slots;
+
+    @Setup
+    public void setup() {
+        formula = new FormulaEvaluator(corpus.expression());
+        variables = corpus.variables();
+        String[] names = variables.keySet().toArray(new String[0]);
+        compiled = FormulaEvaluator.compile(corpus.expression(), names);
+        bytecode = compiled.withBackend(CompiledFormula.Backend.BYTECODE);
+        interpreter = compiled.withBackend(CompiledFormula.Backend.INTERPRETER);
+        slots = new double[names.length];
+        for (int i = 0; i < names.length; i++) {
+            slots[i] = variables.get(names[i]);
+        }
+    }
+
+    @Benchmark
+    public double formula() {
+        return formula.eval(variables);
+    }
+
+    @Benchmark
+    public double compiled() {
+        return compiled.eval(slots);
+    }
+
+    @Benchmark
+    public double bytecode() {
+        return bytecode.eval(slots);
+    }
+
+    @Benchmark
+    public double interpreter() {
+        return interpreter.eval(slots);
+    }
+}
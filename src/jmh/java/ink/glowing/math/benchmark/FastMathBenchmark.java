@@ -0,0 +1,66 @@
+package ink.glowing.math.benchmark;
+
+import ink.glowing.math.MathDictionary;
+import ink.glowing.math.MathDictionary.MathFunction;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Strict built-in functions versus their fast approximations, called over an array of typical arguments.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FastMathBenchmark {
+    private static final int SIZE = 1024;
+
+    @Param({"sin", "cos", "exp", "log", "pow"})
+    public String function;
+
+    private MathFunction strict;
+    private MathFunction fast;
+    private boolean binary;
+    private final double[] a = new double[SIZE];
+    private final double[] b = new double[SIZE];
+
+    @Setup
+    public void setup() {
+        strict = MathDictionary.INSTANCE.getFunction(function);
+        fast = MathDictionary.INSTANCE.withFastMath().getFunction(function);
+        binary = function.equals("pow");
+        Random random = new Random(42);
+        for (int i = 0; i < SIZE; i++) {
+            a[i] = random.nextDouble() * 20;
+            b[i] = random.nextDouble() * 4 - 2;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public double strict() {
+        double sum = 0;
+        if (binary) {
+            for (int i = 0; i < SIZE; i++) sum += strict.accept(a[i], b[i]);
+        } else {
+            for (int i = 0; i < SIZE; i++) sum += strict.accept(a[i]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public double fast() {
+        double sum = 0;
+        if (binary) {
+            for (int i = 0; i < SIZE; i++) sum += fast.accept(a[i], b[i]);
+        } else {
+            for (int i = 0; i < SIZE; i++) sum += fast.accept(a[i]);
+        }
+        return sum;
+    }
+}
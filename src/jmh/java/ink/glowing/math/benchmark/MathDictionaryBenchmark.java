@@ -0,0 +1,71 @@
+package ink.glowing.math.benchmark;
+
+import ink.glowing.math.MathDictionary;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups and literal parsing done by the evaluators for every token, and derivation of dictionaries.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MathDictionaryBenchmark {
+    private static final String[] FUNCTIONS = {"sin", "max", "format_float", "log_gamma", "unknown"};
+    private static final String[] CONSTANTS = {"pi", "e", "max_value", "log10e", "unknown"};
+    private static final String[] LITERALS = {"5", "123.456", "10.11e-12", "3.141592653589793", "7.8e9"};
+
+    private final MathDictionary math = MathDictionary.INSTANCE;
+    private final MathDictionary.MathFunction twice = a -> a * 2;
+    /**
+     * Amount of custom functions in the dictionary derivations start from
+     */
+    @Param({"0", "1000"})
+    private int custom;
+    private MathDictionary base;
+    private Map<String, MathDictionary.MathFunction> functions;
+
+    @Setup
+    public void setup() {
+        functions = new HashMap<>();
+        for (int i = 0; i < custom; i++) functions.put("custom_" + i, twice);
+        base = new MathDictionary(functions, Map.of());
+    }
+
+    @Benchmark
+    public void getFunction(Blackhole bh) {
+        for (String name : FUNCTIONS) bh.consume(math.getFunction(name));
+    }
+
+    @Benchmark
+    public void functionId(Blackhole bh) {
+        for (String name : FUNCTIONS) bh.consume(math.functionId(name, 0, name.length()));
+    }
+
+    @Benchmark
+    public void getConstant(Blackhole bh) {
+        for (String name : CONSTANTS) bh.consume(math.getConstant(name, 0));
+    }
+
+    @Benchmark
+    public void asDouble(Blackhole bh) {
+        for (String literal : LITERALS) bh.consume(MathDictionary.asDouble(literal, 0));
+    }
+
+    @Benchmark
+    public MathDictionary withFunction() {
+        return base.withFunction("twice", twice);
+    }
+
+    @Benchmark
+    public MathDictionary create() {
+        return new MathDictionary(functions, Map.of("twice", 2D));
+    }
+}
@@ -0,0 +1,25 @@
+package ink.glowing.math.benchmark;
+
+import ink.glowing.math.FormulaEvaluator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parse-only cost of building a {@link FormulaEvaluator}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseBenchmark {
+    @Param
+    public Corpus corpus;
+
+    @Benchmark
+    public FormulaEvaluator formula() {
+        return new FormulaEvaluator(corpus.expression());
+    }
+}
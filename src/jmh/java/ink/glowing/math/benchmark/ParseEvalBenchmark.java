@@ -0,0 +1,31 @@
+package ink.glowing.math.benchmark;
+
+import ink.glowing.math.ExpressionEvaluator;
+import ink.glowing.math.FormulaEvaluator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One-shot cost: parsing and evaluating an expression once.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseEvalBenchmark {
+    @Param
+    public Corpus corpus;
+
+    @Benchmark
+    public double expression() {
+        return ExpressionEvaluator.eval(corpus.literal());
+    }
+
+    @Benchmark
+    public double formula() {
+        return new FormulaEvaluator(corpus.expression()).eval(corpus.variables());
+    }
+}
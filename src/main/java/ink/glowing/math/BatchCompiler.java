@@ -0,0 +1,494 @@
+package ink.glowing.math;
+
+import ink.glowing.math.MathDictionary.MathFunction;
+import ink.glowing.math.Node.*;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compiles a {@link Node} tree into code that evaluates it column-wise, one node for a whole chunk of rows at a time.
+ * <p>
+ * Each node runs a plain loop over primitive arrays, so the JIT is free to unroll and vectorize it.
+ * Operators and the simplest built-in functions get their own loops, other functions are called per row.
+ * Branches of a condition are only evaluated for chunks where some row takes them. Chunks with rows taking
+ * different branches evaluate pure branches for the whole chunk and blend them, while impure ones only run for
+ * the rows taking them. Impure branches and junctions, which may only run for the rows that reach them,
+ * and trees nested deeper than {@link Node#MAX_RECURSION} are evaluated row by row with {@link FormulaProgram}.
+ */
+final class BatchCompiler {
+    static final int CHUNK = 1024;
+
+    private static final MathFunction SQRT = MathDictionary.BASIC_FUNCTIONS.get("sqrt");
+    private static final MathFunction ABS = MathDictionary.BASIC_FUNCTIONS.get("abs");
+    private static final MathFunction MIN = MathDictionary.BASIC_FUNCTIONS.get("min");
+    private static final MathFunction MAX = MathDictionary.BASIC_FUNCTIONS.get("max");
+    private static final MathFunction FMA = MathDictionary.BASIC_FUNCTIONS.get("fma");
+
+    private final Map<String, Integer> slots;
+    private int buffers;
+
+    private BatchCompiler(Map<String, Integer> slots) {
+        this.slots = slots;
+    }
+
+    static Batch compile(Node root, Map<String, Integer> slots) {
+        BatchCompiler compiler = new BatchCompiler(slots);
+        BatchTerm term = Node.depth(root) > Node.MAX_RECURSION ? compiler.rowwise(root, 1) : compiler.toTerm(root, 1);
+        return new Batch(term, compiler.buffers);
+    }
+
+    /**
+     * @param depth index of the first free buffer, buffer {@code 0} is reserved for the result
+     */
+    private BatchTerm toTerm(Node node, int depth) {
+        buffers = Math.max(buffers, depth);
+        if (node instanceof Constant cons) {
+            double value = cons.value();
+            return (cols, off, len, dst, tmp) -> {
+                for (int i = 0; i < len; i++) dst[i] = value;
+            };
+        } else if (node instanceof Variable variable) {
+            int slot = slots.get(variable.name());
+            return (cols, off, len, dst, tmp) -> System.arraycopy(cols[slot], off, dst, 0, len);
+        } else if (node instanceof Negate negate) {
+            BatchTerm a = toTerm(negate.a(), depth);
+            return (cols, off, len, dst, tmp) -> {
+                a.calc(cols, off, len, dst, tmp);
+                for (int i = 0; i < len; i++) dst[i] = -dst[i];
+            };
+        } else if (node instanceof Binary binary) {
+            return binary.isComparison() ? compare(binary, depth) : toTerm(binary, depth);
+        } else if (node instanceof Chain chain) {
+            return toTerm(chain, depth);
+        } else if (node instanceof Condition condition) {
+            return toTerm(condition, depth);
+        } else if (node instanceof Junction junction) {
+            return Node.isPure(junction) ? toTerm(junction, depth) : rowwise(junction, depth);
+        }
+        return toTerm((Call) node, depth);
+    }
+
+    /**
+     * Evaluates every operand for the whole chunk, so it's only fit for pure ones.
+     */
+    private BatchTerm toTerm(Junction junction, int depth) {
+        List<Node> operands = junction.operands();
+        BatchTerm[] terms = new BatchTerm[operands.size()];
+        terms[0] = toTerm(operands.get(0), depth);
+        for (int t = 1; t < terms.length; t++) terms[t] = toTerm(operands.get(t), depth + 1);
+        if (junction.operator() == '&') {
+            return (cols, off, len, dst, tmp) -> {
+                terms[0].calc(cols, off, len, dst, tmp);
+                for (int i = 0; i < len; i++) dst[i] = dst[i] != 0 ? 1 : 0;
+                double[] bDst = tmp[depth];
+                for (int t = 1; t < terms.length; t++) {
+                    terms[t].calc(cols, off, len, bDst, tmp);
+                    for (int i = 0; i < len; i++) dst[i] = dst[i] != 0 && bDst[i] != 0 ? 1 : 0;
+                }
+            };
+        }
+        return (cols, off, len, dst, tmp) -> {
+            terms[0].calc(cols, off, len, dst, tmp);
+            for (int i = 0; i < len; i++) dst[i] = dst[i] != 0 ? 1 : 0;
+            double[] bDst = tmp[depth];
+            for (int t = 1; t < terms.length; t++) {
+                terms[t].calc(cols, off, len, bDst, tmp);
+                for (int i = 0; i < len; i++) dst[i] = dst[i] != 0 || bDst[i] != 0 ? 1 : 0;
+            }
+        };
+    }
+
+    /**
+     * Evaluates the node for one row at a time, loading only the variables it refers to.
+     */
+    private BatchTerm rowwise(Node node, int depth) {
+        buffers = Math.max(buffers, depth);
+        RowTerm rows = rows(node);
+        return (cols, off, len, dst, tmp) -> rows.calc(cols, off, len, dst, null, true);
+    }
+
+    private RowTerm rows(Node node) {
+        FormulaProgram program = FormulaProgram.compile(node, slots);
+        Set<String> variables = new LinkedHashSet<>();
+        Node.variables(node, variables);
+        int[] used = variables.stream().mapToInt(slots::get).toArray();
+        return (cols, off, len, dst, mask, taken) -> {
+            double[] vars = new double[cols.length];
+            for (int i = 0; i < len; i++) {
+                if (mask != null && (mask[i] != 0) != taken) continue;
+                for (int slot : used) vars[slot] = cols[slot][off + i];
+                dst[i] = program.calc(vars);
+            }
+        };
+    }
+
+    private BatchTerm toTerm(Condition condition, int depth) {
+        BatchTerm test = toTerm(condition.test(), depth + 1);
+        BatchTerm then = toTerm(condition.then(), depth + 1);
+        BatchTerm otherwise = toTerm(condition.otherwise(), depth + 2);
+        if (!Node.isPure(condition.then()) || !Node.isPure(condition.otherwise())) {
+            return masked(condition, depth, test, then, otherwise);
+        }
+        return (cols, off, len, dst, tmp) -> {
+            double[] mask = tmp[depth];
+            test.calc(cols, off, len, mask, tmp);
+            int taken = 0;
+            for (int i = 0; i < len; i++) {
+                if (mask[i] != 0) taken++;
+            }
+            if (taken == len) {
+                then.calc(cols, off, len, dst, tmp);
+            } else if (taken == 0) {
+                otherwise.calc(cols, off, len, dst, tmp);
+            } else {
+                then.calc(cols, off, len, dst, tmp);
+                double[] oDst = tmp[depth + 1];
+                otherwise.calc(cols, off, len, oDst, tmp);
+                for (int i = 0; i < len; i++) dst[i] = mask[i] != 0 ? dst[i] : oDst[i];
+            }
+        };
+    }
+
+    /**
+     * Evaluates impure branches of chunks with rows taking different branches only for the rows taking them.
+     */
+    private BatchTerm masked(Condition condition, int depth, BatchTerm test, BatchTerm then, BatchTerm otherwise) {
+        RowTerm thenRows = Node.isPure(condition.then()) ? null : rows(condition.then());
+        RowTerm otherwiseRows = Node.isPure(condition.otherwise()) ? null : rows(condition.otherwise());
+        return (cols, off, len, dst, tmp) -> {
+            double[] mask = tmp[depth];
+            test.calc(cols, off, len, mask, tmp);
+            int taken = 0;
+            for (int i = 0; i < len; i++) {
+                if (mask[i] != 0) taken++;
+            }
+            if (taken == len) {
+                then.calc(cols, off, len, dst, tmp);
+            } else if (taken == 0) {
+                otherwise.calc(cols, off, len, dst, tmp);
+            } else {
+                if (thenRows == null) {
+                    then.calc(cols, off, len, dst, tmp);
+                } else {
+                    thenRows.calc(cols, off, len, dst, mask, true);
+                }
+                if (otherwiseRows == null) {
+                    double[] oDst = tmp[depth + 1];
+                    otherwise.calc(cols, off, len, oDst, tmp);
+                    for (int i = 0; i < len; i++) {
+                        if (mask[i] == 0) dst[i] = oDst[i];
+                    }
+                } else {
+                    otherwiseRows.calc(cols, off, len, dst, mask, false);
+                }
+            }
+        };
+    }
+
+    private BatchTerm compare(Binary binary, int depth) {
+        BatchTerm a = toTerm(binary.a(), depth);
+        BatchTerm b = toTerm(binary.b(), depth + 1);
+        return switch (binary.operator()) {
+            case '<' -> (cols, off, len, dst, tmp) -> {
+                a.calc(cols, off, len, dst, tmp);
+                double[] bDst = tmp[depth];
+                b.calc(cols, off, len, bDst, tmp);
+                for (int i = 0; i < len; i++) dst[i] = dst[i] < bDst[i] ? 1 : 0;
+            };
+            case '≤' -> (cols, off, len, dst, tmp) -> {
+                a.calc(cols, off, len, dst, tmp);
+                double[] bDst = tmp[depth];
+                b.calc(cols, off, len, bDst, tmp);
+                for (int i = 0; i < len; i++) dst[i] = dst[i] <= bDst[i] ? 1 : 0;
+            };
+            case '>' -> (cols, off, len, dst, tmp) -> {
+                a.calc(cols, off, len, dst, tmp);
+                double[] bDst = tmp[depth];
+                b.calc(cols, off, len, bDst, tmp);
+                for (int i = 0; i < len; i++) dst[i] = dst[i] > bDst[i] ? 1 : 0;
+            };
+            case '≥' -> (cols, off, len, dst, tmp) -> {
+                a.calc(cols, off, len, dst, tmp);
+                double[] bDst = tmp[depth];
+                b.calc(cols, off, len, bDst, tmp);
+                for (int i = 0; i < len; i++) dst[i] = dst[i] >= bDst[i] ? 1 : 0;
+            };
+            case '=' -> (cols, off, len, dst, tmp) -> {
+                a.calc(cols, off, len, dst, tmp);
+                double[] bDst = tmp[depth];
+                b.calc(cols, off, len, bDst, tmp);
+                for (int i = 0; i < len; i++) dst[i] = dst[i] == bDst[i] ? 1 : 0;
+            };
+            default -> (cols, off, len, dst, tmp) -> {
+                a.calc(cols, off, len, dst, tmp);
+                double[] bDst = tmp[depth];
+                b.calc(cols, off, len, bDst, tmp);
+                for (int i = 0; i < len; i++) dst[i] = dst[i] != bDst[i] ? 1 : 0;
+            };
+        };
+    }
+
+    private BatchTerm toTerm(Binary binary, int depth) {
+        BatchTerm a = toTerm(binary.a(), depth);
+        if (binary.b() instanceof Constant cons) {
+            double b = cons.value();
+            return switch (binary.operator()) {
+                case '+' -> (cols, off, len, dst, tmp) -> {
+                    a.calc(cols, off, len, dst, tmp);
+                    for (int i = 0; i < len; i++) dst[i] += b;
+                };
+                case '-' -> (cols, off, len, dst, tmp) -> {
+                    a.calc(cols, off, len, dst, tmp);
+                    for (int i = 0; i < len; i++) dst[i] -= b;
+                };
+                case '*' -> (cols, off, len, dst, tmp) -> {
+                    a.calc(cols, off, len, dst, tmp);
+                    for (int i = 0; i < len; i++) dst[i] *= b;
+                };
+                case '/' -> (cols, off, len, dst, tmp) -> {
+                    a.calc(cols, off, len, dst, tmp);
+                    for (int i = 0; i < len; i++) dst[i] /= b;
+                };
+                case '%' -> (cols, off, len, dst, tmp) -> {
+                    a.calc(cols, off, len, dst, tmp);
+                    for (int i = 0; i < len; i++) dst[i] %= b;
+                };
+                default -> (cols, off, len, dst, tmp) -> {
+                    a.calc(cols, off, len, dst, tmp);
+                    for (int i = 0; i < len; i++) dst[i] = Math.pow(dst[i], b);
+                };
+            };
+        }
+        if (binary.b() instanceof Variable variable) {
+            int slot = slots.get(variable.name());
+            return switch (binary.operator()) {
+                case '+' -> (cols, off, len, dst, tmp) -> {
+                    a.calc(cols, off, len, dst, tmp);
+                    double[] b = cols[slot];
+                    for (int i = 0; i < len; i++) dst[i] += b[off + i];
+                };
+                case '-' -> (cols, off, len, dst, tmp) -> {
+                    a.calc(cols, off, len, dst, tmp);
+                    double[] b = cols[slot];
+                    for (int i = 0; i < len; i++) dst[i] -= b[off + i];
+                };
+                case '*' -> (cols, off, len, dst, tmp) -> {
+                    a.calc(cols, off, len, dst, tmp);
+                    double[] b = cols[slot];
+                    for (int i = 0; i < len; i++) dst[i] *= b[off + i];
+                };
+                case '/' -> (cols, off, len, dst, tmp) -> {
+                    a.calc(cols, off, len, dst, tmp);
+                    double[] b = cols[slot];
+                    for (int i = 0; i < len; i++) dst[i] /= b[off + i];
+                };
+                case '%' -> (cols, off, len, dst, tmp) -> {
+                    a.calc(cols, off, len, dst, tmp);
+                    double[] b = cols[slot];
+                    for (int i = 0; i < len; i++) dst[i] %= b[off + i];
+                };
+                default -> (cols, off, len, dst, tmp) -> {
+                    a.calc(cols, off, len, dst, tmp);
+                    double[] b = cols[slot];
+                    for (int i = 0; i < len; i++) dst[i] = Math.pow(dst[i], b[off + i]);
+                };
+            };
+        }
+        BatchTerm b = toTerm(binary.b(), depth + 1);
+        return switch (binary.operator()) {
+            case '+' -> (cols, off, len, dst, tmp) -> {
+                a.calc(cols, off, len, dst, tmp);
+                double[] bDst = tmp[depth];
+                b.calc(cols, off, len, bDst, tmp);
+                for (int i = 0; i < len; i++) dst[i] += bDst[i];
+            };
+            case '-' -> (cols, off, len, dst, tmp) -> {
+                a.calc(cols, off, len, dst, tmp);
+                double[] bDst = tmp[depth];
+                b.calc(cols, off, len, bDst, tmp);
+                for (int i = 0; i < len; i++) dst[i] -= bDst[i];
+            };
+            case '*' -> (cols, off, len, dst, tmp) -> {
+                a.calc(cols, off, len, dst, tmp);
+                double[] bDst = tmp[depth];
+                b.calc(cols, off, len, bDst, tmp);
+                for (int i = 0; i < len; i++) dst[i] *= bDst[i];
+            };
+            case '/' -> (cols, off, len, dst, tmp) -> {
+                a.calc(cols, off, len, dst, tmp);
+                double[] bDst = tmp[depth];
+                b.calc(cols, off, len, bDst, tmp);
+                for (int i = 0; i < len; i++) dst[i] /= bDst[i];
+            };
+            case '%' -> (cols, off, len, dst, tmp) -> {
+                a.calc(cols, off, len, dst, tmp);
+                double[] bDst = tmp[depth];
+                b.calc(cols, off, len, bDst, tmp);
+                for (int i = 0; i < len; i++) dst[i] %= bDst[i];
+            };
+            default -> (cols, off, len, dst, tmp) -> {
+                a.calc(cols, off, len, dst, tmp);
+                double[] bDst = tmp[depth];
+                b.calc(cols, off, len, bDst, tmp);
+                for (int i = 0; i < len; i++) dst[i] = Math.pow(dst[i], bDst[i]);
+            };
+        };
+    }
+
+    private BatchTerm toTerm(Chain chain, int depth) {
+        List<Node> operands = chain.operands();
+        BatchTerm[] terms = new BatchTerm[operands.size()];
+        terms[0] = toTerm(operands.get(0), depth);
+        for (int t = 1; t < terms.length; t++) terms[t] = toTerm(operands.get(t), depth + 1);
+        char[] operators = chain.operators().toCharArray();
+        return (cols, off, len, dst, tmp) -> {
+            terms[0].calc(cols, off, len, dst, tmp);
+            double[] bDst = tmp[depth];
+            for (int t = 1; t < terms.length; t++) {
+                terms[t].calc(cols, off, len, bDst, tmp);
+                switch (operators[t - 1]) {
+                    case '+' -> {
+                        for (int i = 0; i < len; i++) dst[i] += bDst[i];
+                    }
+                    case '-' -> {
+                        for (int i = 0; i < len; i++) dst[i] -= bDst[i];
+                    }
+                    case '*' -> {
+                        for (int i = 0; i < len; i++) dst[i] *= bDst[i];
+                    }
+                    case '/' -> {
+                        for (int i = 0; i < len; i++) dst[i] /= bDst[i];
+                    }
+                    default -> {
+                        for (int i = 0; i < len; i++) dst[i] %= bDst[i];
+                    }
+                }
+            }
+        };
+    }
+
+    private BatchTerm toTerm(Call call, int depth) {
+        MathFunction function = call.function();
+        List<Node> args = call.args();
+        BatchTerm a = toTerm(args.get(0), depth);
+        if (args.size() == 1) {
+            if (function == SQRT) {
+                return (cols, off, len, dst, tmp) -> {
+                    a.calc(cols, off, len, dst, tmp);
+                    for (int i = 0; i < len; i++) dst[i] = Math.sqrt(dst[i]);
+                };
+            } else if (function == ABS) {
+                return (cols, off, len, dst, tmp) -> {
+                    a.calc(cols, off, len, dst, tmp);
+                    for (int i = 0; i < len; i++) dst[i] = Math.abs(dst[i]);
+                };
+            }
+            return (cols, off, len, dst, tmp) -> {
+                a.calc(cols, off, len, dst, tmp);
+                for (int i = 0; i < len; i++) dst[i] = function.accept(dst[i]);
+            };
+        }
+        BatchTerm b = toTerm(args.get(1), depth + 1);
+        if (args.size() == 2) {
+            if (function == MIN) {
+                return (cols, off, len, dst, tmp) -> {
+                    a.calc(cols, off, len, dst, tmp);
+                    double[] bDst = tmp[depth];
+                    b.calc(cols, off, len, bDst, tmp);
+                    for (int i = 0; i < len; i++) dst[i] = Math.min(dst[i], bDst[i]);
+                };
+            } else if (function == MAX) {
+                return (cols, off, len, dst, tmp) -> {
+                    a.calc(cols, off, len, dst, tmp);
+                    double[] bDst = tmp[depth];
+                    b.calc(cols, off, len, bDst, tmp);
+                    for (int i = 0; i < len; i++) dst[i] = Math.max(dst[i], bDst[i]);
+                };
+            }
+            return (cols, off, len, dst, tmp) -> {
+                a.calc(cols, off, len, dst, tmp);
+                double[] bDst = tmp[depth];
+                b.calc(cols, off, len, bDst, tmp);
+                for (int i = 0; i < len; i++) dst[i] = function.accept(dst[i], bDst[i]);
+            };
+        }
+        BatchTerm[] rest = new BatchTerm[args.size() - 1];
+        rest[0] = b;
+        for (int j = 1; j < rest.length; j++) {
+            rest[j] = toTerm(args.get(j + 1), depth + j + 1);
+        }
+        if (function == FMA && rest.length == 2) {
+            BatchTerm c = rest[1];
+            return (cols, off, len, dst, tmp) -> {
+                a.calc(cols, off, len, dst, tmp);
+                double[] bDst = tmp[depth];
+                b.calc(cols, off, len, bDst, tmp);
+                double[] cDst = tmp[depth + 1];
+                c.calc(cols, off, len, cDst, tmp);
+                for (int i = 0; i < len; i++) dst[i] = Math.fma(dst[i], bDst[i], cDst[i]);
+            };
+        }
+        if (rest.length == 2) {
+            BatchTerm c = rest[1];
+            return (cols, off, len, dst, tmp) -> {
+                a.calc(cols, off, len, dst, tmp);
+                double[] bDst = tmp[depth];
+                b.calc(cols, off, len, bDst, tmp);
+                double[] cDst = tmp[depth + 1];
+                c.calc(cols, off, len, cDst, tmp);
+                for (int i = 0; i < len; i++) dst[i] = function.accept(dst[i], bDst[i], cDst[i]);
+            };
+        }
+        return (cols, off, len, dst, tmp) -> {
+            a.calc(cols, off, len, dst, tmp);
+            for (int j = 0; j < rest.length; j++) {
+                rest[j].calc(cols, off, len, tmp[depth + j], tmp);
+            }
+            double[] row = new double[rest.length + 1];
+            for (int i = 0; i < len; i++) {
+                row[0] = dst[i];
+                for (int j = 0; j < rest.length; j++) row[j + 1] = tmp[depth + j][i];
+                dst[i] = function.accept(row, 0, row.length);
+            }
+        };
+    }
+
+    @FunctionalInterface
+    interface BatchTerm {
+        /**
+         * @param cols columns of variables
+         * @param off index of the first row to evaluate
+         * @param len amount of rows to evaluate
+         * @param dst buffer to write results into, starting from {@code 0}
+         * @param tmp scratch buffers
+         */
+        void calc(double[][] cols, int off, int len, double[] dst, double[][] tmp);
+    }
+
+    @FunctionalInterface
+    private interface RowTerm {
+        /**
+         * @param mask values of the test per row, or {@code null} to evaluate every row
+         * @param taken whether to evaluate the rows where the test is true or where it's false
+         * @see BatchTerm#calc
+         */
+        void calc(double[][] cols, int off, int len, double[] dst, double[] mask, boolean taken);
+    }
+
+    /**
+     * Compiled batch code along with the amount of scratch buffers it needs.
+     */
+    record Batch(BatchTerm term, int buffers) {
+        void eval(double[][] columns, double[] out, int from, int to) {
+            double[][] tmp = new double[buffers][Math.min(CHUNK, Math.max(to - from, 0))];
+            for (int off = from; off < to; off += CHUNK) {
+                int len = Math.min(CHUNK, to - off);
+                term.calc(columns, off, len, tmp[0], tmp);
+                System.arraycopy(tmp[0], 0, out, off, len);
+            }
+        }
+    }
+}
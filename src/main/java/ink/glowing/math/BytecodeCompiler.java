@@ -0,0 +1,466 @@
+package ink.glowing.math;
+
+import ink.glowing.math.MathDictionary.MathFunction;
+import ink.glowing.math.Node.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles a {@link Node} tree into a hidden class implementing {@link SlotTerm}.
+ * <p>
+ * The class is written for the Java 5 class file format, so no stack map frames are required for branches.
+ * Built-in functions of {@link MathDictionary} are invoked as static {@link Math} methods,
+ * every other function is called through an array of {@link MathFunction} held by the instance.
+ */
+final class BytecodeCompiler {
+    private static final String TERM = "ink/glowing/math/SlotTerm";
+    private static final String FUNCTION = "ink/glowing/math/MathDictionary$MathFunction";
+    private static final String FUNCTIONS_DESC = "[L" + FUNCTION + ";";
+    private static final int MAX_CODE_LENGTH = 0xFFFF;
+    private static final int MAX_POOL_SIZE = 0xFFFF;
+
+    private static final Map<MathFunction, Map<Integer, Intrinsic>> INTRINSICS = new IdentityHashMap<>();
+    static {
+        String[][] unary = {
+                {"cos", "cos"}, {"sin", "sin"}, {"tan", "tan"}, {"acos", "acos"}, {"asin", "asin"},
+                {"atan", "atan"}, {"cosh", "cosh"}, {"sinh", "sinh"}, {"tanh", "tanh"}, {"abs", "abs"},
+                {"log10", "log10"}, {"log1p", "log1p"}, {"ceil", "ceil"}, {"floor", "floor"}, {"rint", "rint"},
+                {"sqrt", "sqrt"}, {"cbrt", "cbrt"}, {"exp", "exp"}, {"expm1", "expm1"},
+                {"to_degrees", "toDegrees"}, {"to_radians", "toRadians"}, {"next_down", "nextDown"},
+                {"next_up", "nextUp"}, {"signum", "signum"}, {"ulp", "ulp"}, {"log", "log"}
+        };
+        for (String[] func : unary) {
+            intrinsic(func[0], 1, new Intrinsic(func[1], "(D)D", -1));
+        }
+        intrinsic("round", 1, new Intrinsic("round", "(D)J", 0x8a)); // l2d
+        intrinsic("get_exponent", 1, new Intrinsic("getExponent", "(D)I", 0x87)); // i2d
+        String[][] binary = {
+                {"max", "max"}, {"min", "min"}, {"pow", "pow"}, {"atan2", "atan2"}, {"next_after", "nextAfter"},
+                {"ieee_remainder", "IEEEremainder"}, {"copy_sign", "copySign"}, {"hypot", "hypot"}
+        };
+        for (String[] func : binary) {
+            intrinsic(func[0], 2, new Intrinsic(func[1], "(DD)D", -1));
+        }
+        intrinsic("fma", 3, new Intrinsic("fma", "(DDD)D", -1));
+    }
+
+    private static void intrinsic(String name, int arity, Intrinsic intrinsic) {
+        INTRINSICS.computeIfAbsent(MathDictionary.BASIC_FUNCTIONS.get(name), (f) -> new HashMap<>())
+                .put(arity, intrinsic);
+    }
+
+    private final Map<String, Integer> slots;
+    private final ConstantPool pool = new ConstantPool();
+    private final Code code = new Code();
+    private final List<MathFunction> functions = new ArrayList<>();
+    private final Map<MathFunction, Integer> functionIndexes = new IdentityHashMap<>();
+    private int stack;
+    private int maxStack;
+    /**
+     * Whether some jump is too long for a 16-bit offset
+     */
+    private boolean farJump;
+
+    private BytecodeCompiler(Map<String, Integer> slots) {
+        this.slots = slots;
+    }
+
+    /**
+     * @param root validated formula tree
+     * @param slots variable slots
+     * @return compiled term, or {@code null} if the formula doesn't fit into a single method, or is nested deeper
+     * than {@link Node#MAX_RECURSION}
+     */
+    static SlotTerm compile(Node root, Map<String, Integer> slots) {
+        if (Node.depth(root) > Node.MAX_RECURSION) return null;
+        BytecodeCompiler compiler = new BytecodeCompiler(slots);
+        compiler.emit(root);
+        compiler.op(0xaf, -2); // dreturn
+        if (compiler.code.size() > MAX_CODE_LENGTH || compiler.farJump) return null;
+        byte[] bytes = compiler.toClassFile();
+        if (bytes == null) return null;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            MethodType type = MethodType.methodType(void.class, MathFunction[].class);
+            return (SlotTerm) lookup.findConstructor(lookup.lookupClass(), type)
+                    .invoke((Object) compiler.functions.toArray(new MathFunction[0]));
+        } catch (Throwable e) {
+            throw new IllegalStateException("Couldn't define formula class", e);
+        }
+    }
+
+    private void emit(Node node) {
+        if (node instanceof Constant cons) {
+            double value = cons.value();
+            if (Double.doubleToRawLongBits(value) == 0) {
+                op(0x0e, 2); // dconst_0
+            } else if (value == 1) {
+                op(0x0f, 2); // dconst_1
+            } else {
+                op(0x14, 2); // ldc2_w
+                u2(pool.doubleConst(value));
+            }
+        } else if (node instanceof Variable variable) {
+            op(0x2b, 1); // aload_1
+            pushInt(slots.get(variable.name()));
+            op(0x31, 0); // daload
+        } else if (node instanceof Negate negate) {
+            emit(negate.a());
+            op(0x77, 0); // dneg
+        } else if (node instanceof Binary binary) {
+            emit(binary.a());
+            emit(binary.b());
+            if (binary.operator() == '^') {
+                invokeMath("pow", "(DD)D", -2);
+            } else if (binary.isComparison()) {
+                compare(binary.operator());
+            } else {
+                arithmetic(binary.operator());
+            }
+        } else if (node instanceof Chain chain) {
+            List<Node> operands = chain.operands();
+            emit(operands.get(0));
+            for (int i = 1; i < operands.size(); i++) {
+                emit(operands.get(i));
+                arithmetic(chain.operators().charAt(i - 1));
+            }
+        } else if (node instanceof Condition condition) {
+            emit(condition.test());
+            op(0x0e, 2); // dconst_0
+            op(0x97, -3); // dcmpl, NaN results in -1, so it's true
+            int branch = jump(0x99, -1); // ifeq
+            int depth = stack;
+            emit(condition.then());
+            int end = jump(0xa7, 0); // goto
+            target(branch);
+            // Only one of the branches runs, so both start from the same depth
+            stack = depth;
+            emit(condition.otherwise());
+            target(end);
+        } else if (node instanceof Junction junction) {
+            emit(junction);
+        } else {
+            emitCall((Call) node);
+        }
+    }
+
+    /**
+     * Every operand that decides the result jumps to the end, where the decided constant is pushed.
+     */
+    private void emit(Junction junction) {
+        List<Node> operands = junction.operands();
+        int[] jumps = new int[operands.size()];
+        for (int i = 0; i < jumps.length; i++) {
+            emit(operands.get(i));
+            op(0x0e, 2); // dconst_0
+            op(0x97, -3); // dcmpl, NaN results in -1, so it's true
+            jumps[i] = jump(junction.operator() == '&' ? 0x99 : 0x9a, -1); // ifeq, ifne
+        }
+        op(junction.decided() == 0 ? 0x0f : 0x0e, 2); // dconst_1, dconst_0
+        int end = jump(0xa7, 0); // goto
+        for (int jump : jumps) target(jump);
+        stack -= 2;
+        op(junction.decided() == 0 ? 0x0e : 0x0f, 2);
+        target(end);
+    }
+
+    private void emitCall(Call call) {
+        List<Node> args = call.args();
+        Map<Integer, Intrinsic> intrinsics = INTRINSICS.get(call.function());
+        Intrinsic intrinsic = intrinsics == null ? null : intrinsics.get(args.size());
+        if (intrinsic != null) {
+            for (Node arg : args) emit(arg);
+            invokeMath(intrinsic.method, intrinsic.descriptor, 2 - args.size() * 2);
+            if (intrinsic.conversion != -1) op(intrinsic.conversion, 0);
+            return;
+        }
+        op(0x2a, 1); // aload_0
+        op(0xb4, 0); // getfield
+        u2(pool.member(9, pool.className(pool.thisClass), "fns", FUNCTIONS_DESC));
+        pushInt(functionIndexes.computeIfAbsent(call.function(), (f) -> {
+            functions.add(f);
+            return functions.size() - 1;
+        }));
+        op(0x32, -1); // aaload
+        String descriptor;
+        int argSlots;
+        if (args.size() <= 4) {
+            for (Node arg : args) emit(arg);
+            descriptor = "(" + "D".repeat(args.size()) + ")D";
+            argSlots = args.size() * 2;
+        } else {
+            // The array never escapes, so it can be scalar-replaced once the call is inlined
+            pushInt(args.size());
+            op(0xbc, 0); // newarray
+            code.write(7); // T_DOUBLE
+            for (int i = 0; i < args.size(); i++) {
+                op(0x59, 1); // dup
+                pushInt(i);
+                emit(args.get(i));
+                op(0x52, -4); // dastore
+            }
+            pushInt(0);
+            pushInt(args.size());
+            descriptor = "([DII)D";
+            argSlots = 3;
+        }
+        op(0xb9, 2 - 1 - argSlots); // invokeinterface
+        u2(pool.member(11, pool.className(FUNCTION), "accept", descriptor));
+        code.write(1 + argSlots);
+        code.write(0);
+    }
+
+    /**
+     * @param operator one of {@code + - * / %}
+     */
+    private void arithmetic(char operator) {
+        switch (operator) {
+            case '+' -> op(0x63, -2); // dadd
+            case '-' -> op(0x67, -2); // dsub
+            case '*' -> op(0x6b, -2); // dmul
+            case '/' -> op(0x6f, -2); // ddiv
+            default -> op(0x73, -2); // drem
+        }
+    }
+
+    /**
+     * Replaces two doubles on the stack with {@code 1} or {@code 0}.
+     */
+    private void compare(char operator) {
+        // dcmpg results in 1 for NaN and dcmpl in -1, so that NaN fails every comparison but ≠
+        op(operator == '<' || operator == '≤' ? 0x98 : 0x97, -3);
+        int otherwise = jump(switch (operator) {
+            case '<' -> 0x9c; // ifge
+            case '≤' -> 0x9d; // ifgt
+            case '>' -> 0x9e; // ifle
+            case '≥' -> 0x9b; // iflt
+            case '=' -> 0x9a; // ifne
+            default -> 0x99; // ifeq
+        }, -1);
+        op(0x0f, 2); // dconst_1
+        int end = jump(0xa7, 0); // goto
+        target(otherwise);
+        stack -= 2;
+        op(0x0e, 2); // dconst_0
+        target(end);
+    }
+
+    /**
+     * @return offset of the jump, to {@link #target} it later
+     */
+    private int jump(int opcode, int stackDelta) {
+        int at = code.size();
+        op(opcode, stackDelta);
+        u2(0);
+        return at;
+    }
+
+    /**
+     * Points the jump at the given offset to the end of code written so far.
+     */
+    private void target(int jump) {
+        int offset = code.size() - jump;
+        if (offset > Short.MAX_VALUE) farJump = true;
+        code.patch(jump + 1, offset);
+    }
+
+    private void invokeMath(String method, String descriptor, int stackDelta) {
+        op(0xb8, stackDelta); // invokestatic
+        u2(pool.member(10, pool.className("java/lang/Math"), method, descriptor));
+    }
+
+    private void pushInt(int value) {
+        if (value <= 5) {
+            op(0x03 + value, 1); // iconst_<n>
+        } else if (value <= Byte.MAX_VALUE) {
+            op(0x10, 1); // bipush
+            code.write(value);
+        } else if (value <= Short.MAX_VALUE) {
+            op(0x11, 1); // sipush
+            u2(value);
+        } else {
+            op(0x13, 1); // ldc_w
+            u2(pool.intConst(value));
+        }
+    }
+
+    private void op(int opcode, int stackDelta) {
+        code.write(opcode);
+        stack += stackDelta;
+        if (stack > maxStack) maxStack = stack;
+    }
+
+    private void u2(int value) {
+        code.write(value >>> 8);
+        code.write(value);
+    }
+
+    /**
+     * @return class file, or {@code null} if its constant pool doesn't fit, counting the entries added here
+     */
+    private byte[] toClassFile() {
+        int thisClass = pool.className(pool.thisClass);
+        int superClass = pool.className("java/lang/Object");
+        int termClass = pool.className(TERM);
+        int fieldName = pool.utf8("fns");
+        int fieldDesc = pool.utf8(FUNCTIONS_DESC);
+        int objectInit = pool.member(10, superClass, "<init>", "()V");
+        int fieldRef = pool.member(9, thisClass, "fns", FUNCTIONS_DESC);
+        int initName = pool.utf8("<init>");
+        int initDesc = pool.utf8("(" + FUNCTIONS_DESC + ")V");
+        int calcName = pool.utf8("calc");
+        int calcDesc = pool.utf8("([D)D");
+        int codeName = pool.utf8("Code");
+        if (pool.size() > MAX_POOL_SIZE) return null;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(code.size() + 512);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            pool.write(out);
+            out.writeShort(0x0031); // public final super
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(termClass);
+            out.writeShort(1); // fields
+            out.writeShort(0x0012); // private final
+            out.writeShort(fieldName);
+            out.writeShort(fieldDesc);
+            out.writeShort(0);
+            out.writeShort(2); // methods
+            byte[] init = {
+                    0x2a, // aload_0
+                    (byte) 0xb7, (byte) (objectInit >>> 8), (byte) objectInit, // invokespecial
+                    0x2a, // aload_0
+                    0x2b, // aload_1
+                    (byte) 0xb5, (byte) (fieldRef >>> 8), (byte) fieldRef, // putfield
+                    (byte) 0xb1 // return
+            };
+            writeMethod(out, initName, initDesc, codeName, 2, 2, init);
+            writeMethod(out, calcName, calcDesc, codeName, maxStack, 2, code.toByteArray());
+            out.writeShort(0); // attributes
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeMethod(DataOutputStream out, int name, int desc, int codeName,
+                                    int maxStack, int maxLocals, byte[] code) throws IOException {
+        out.writeShort(0x0001); // public
+        out.writeShort(name);
+        out.writeShort(desc);
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(12 + code.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0); // exception table
+        out.writeShort(0); // attributes
+    }
+
+    private record Intrinsic(String method, String descriptor, int conversion) { }
+
+    private static final class Code extends ByteArrayOutputStream {
+        private Code() {
+            super(256);
+        }
+
+        private void patch(int at, int value) {
+            buf[at] = (byte) (value >>> 8);
+            buf[at + 1] = (byte) value;
+        }
+    }
+
+    private static final class ConstantPool {
+        final String thisClass = "ink/glowing/math/GeneratedFormula";
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<Object, Integer> entries = new HashMap<>();
+        private int count = 1;
+
+        int size() {
+            return count;
+        }
+
+        int utf8(String value) {
+            return entry(value, () -> {
+                out.writeByte(1);
+                out.writeUTF(value);
+            }, 1);
+        }
+
+        int className(String name) {
+            int nameIndex = utf8(name);
+            return entry(List.of("class", name), () -> {
+                out.writeByte(7);
+                out.writeShort(nameIndex);
+            }, 1);
+        }
+
+        int member(int tag, int owner, String name, String desc) {
+            int nameIndex = utf8(name);
+            int descIndex = utf8(desc);
+            int nameAndType = entry(List.of("nat", name, desc), () -> {
+                out.writeByte(12);
+                out.writeShort(nameIndex);
+                out.writeShort(descIndex);
+            }, 1);
+            return entry(List.of(tag, owner, nameAndType), () -> {
+                out.writeByte(tag);
+                out.writeShort(owner);
+                out.writeShort(nameAndType);
+            }, 1);
+        }
+
+        int doubleConst(double value) {
+            long bits = Double.doubleToRawLongBits(value);
+            return entry(bits, () -> {
+                out.writeByte(6);
+                out.writeLong(bits);
+            }, 2);
+        }
+
+        int intConst(int value) {
+            return entry(value, () -> {
+                out.writeByte(3);
+                out.writeInt(value);
+            }, 1);
+        }
+
+        private int entry(Object key, Writer writer, int width) {
+            Integer index = entries.get(key);
+            if (index != null) return index;
+            try {
+                writer.write();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            entries.put(key, count);
+            count += width;
+            return count - width;
+        }
+
+        void write(DataOutputStream to) throws IOException {
+            to.writeShort(count);
+            to.write(bytes.toByteArray());
+        }
+
+        @FunctionalInterface
+        private interface Writer {
+            void write() throws IOException;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package ink.glowing.math;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("ink.glowing.math.Compile")
+@Label("Formula Compile")
+@Category("EzMath")
+@Description("Formula tree compiled for a backend")
+@StackTrace(false)
+final class CompileEvent extends Event {
+    @Label("Expression")
+    String expression;
+
+    @Label("Backend")
+    String backend;
+
+    @Label("Nodes")
+    int nodes;
+}
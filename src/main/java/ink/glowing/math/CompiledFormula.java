@@ -0,0 +1,554 @@
+package ink.glowing.math;
+
+import ink.glowing.math.MathDictionary.MathFunction;
+import ink.glowing.math.Node.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Formula with variables resolved to fixed slots at compile time.
+ * Evaluation does no name lookups or boxing.
+ * <p>
+ * Instances are immutable and can be shared between threads freely.
+ * Random functions draw from {@link java.util.concurrent.ThreadLocalRandom}, so they don't contend either.
+ * @see FormulaEvaluator#compile(String, MathDictionary, String...)
+ */
+public final class CompiledFormula {
+    /**
+     * Default amount of rows evaluated by a single task of {@link #evalParallel(double[][], double[])}
+     */
+    public static final int DEFAULT_GRANULARITY = BatchCompiler.CHUNK * 16;
+
+    private final Node root;
+    /**
+     * Normalized expression of the formula for instrumentation, or {@code null} if it's unknown
+     */
+    private final String label;
+    private final MathDictionary math;
+    private final String[] variables;
+    private final Map<String, Integer> slots;
+    private final Backend backend;
+    /**
+     * Declared ranges of variables, or {@code null} if there are none
+     */
+    private final double[] lower;
+    private final double[] upper;
+    private final SlotTerm term;
+    private BatchCompiler.Batch batch;
+
+    CompiledFormula(Node root, MathDictionary math, String... variables) {
+        this(null, root, null, math, variables);
+    }
+
+    CompiledFormula(String label, Node root, MathDictionary math, String... variables) {
+        this(label, root, null, math, variables);
+    }
+
+    CompiledFormula(FormulaProgram program, MathDictionary math, String... variables) {
+        this(null, null, program, math, variables);
+    }
+
+    private CompiledFormula(String label, Node root, FormulaProgram program, MathDictionary math,
+                            String[] variables) {
+        this.label = label;
+        this.math = math;
+        this.variables = new String[variables.length];
+        this.slots = new HashMap<>(variables.length);
+        for (int i = 0; i < variables.length; i++) {
+            String name = variables[i].toLowerCase(Locale.ROOT);
+            if (slots.putIfAbsent(name, i) != null) {
+                throw new IllegalArgumentException("Variable '" + name + "' is declared more than once");
+            }
+            this.variables[i] = name;
+        }
+        SlotTerm term = program == null ? compile(root, Backend.TREE) : program;
+        if (term == null) term = compile(root, Backend.INTERPRETER);
+        this.backend = term instanceof FormulaProgram ? Backend.INTERPRETER : Backend.TREE;
+        this.root = term instanceof FormulaProgram ? null : root;
+        this.lower = null;
+        this.upper = null;
+        this.term = instrument(term);
+    }
+
+    private CompiledFormula(CompiledFormula origin, Node root, Backend backend,
+                            double[] lower, double[] upper, SlotTerm term) {
+        // Interpreted formulas restore the tree on demand, so that they only hold the program
+        this.root = term instanceof FormulaProgram ? null : root;
+        this.label = origin.label;
+        this.math = origin.math;
+        this.variables = origin.variables;
+        this.slots = origin.slots;
+        this.backend = backend;
+        this.lower = lower;
+        this.upper = upper;
+        this.term = instrument(term);
+    }
+
+    /**
+     * Evaluates the formula.
+     * @param vars values of variables, indexed the same way they were declared on compilation
+     * @return result of calculation
+     */
+    public double eval(double[] vars) {
+        return term.calc(vars);
+    }
+
+    /**
+     * Evaluates the formula over columns of data, one chunk of rows at a time.
+     * Considerably faster than calling {@link #eval(double[])} for every row of a large dataset.
+     * @param columns values of variables, indexed as {@code columns[slot][row]}
+     * @param out array to write results into, indexed by row
+     * @param from the first row to evaluate, inclusive
+     * @param to the last row to evaluate, exclusive
+     */
+    public void evalBatch(double[][] columns, double[] out, int from, int to) {
+        BatchCompiler.Batch batch = this.batch;
+        if (batch == null) {
+            // Racy, but compiled batch is immutable, so the worst case is compiling it twice
+            this.batch = batch = BatchCompiler.compile(root(), slots);
+        }
+        batch.eval(columns, out, from, to);
+    }
+
+    /**
+     * Evaluates the formula over columns of data on all cores of the {@link ForkJoinPool#commonPool() common pool}.
+     * @param columns values of variables, indexed as {@code columns[slot][row]}
+     * @param out array to write results into, its length defines the amount of rows
+     * @see #evalBatch(double[][], double[], int, int)
+     */
+    public void evalParallel(double[][] columns, double[] out) {
+        evalParallel(columns, out, ForkJoinPool.commonPool(), DEFAULT_GRANULARITY);
+    }
+
+    /**
+     * Evaluates the formula over columns of data, split into tasks of the provided pool.
+     * @param columns values of variables, indexed as {@code columns[slot][row]}
+     * @param out array to write results into, its length defines the amount of rows
+     * @param pool pool to run tasks in
+     * @param granularity maximum amount of rows evaluated by a single task
+     * @see #evalBatch(double[][], double[], int, int)
+     */
+    public void evalParallel(double[][] columns, double[] out, ForkJoinPool pool, int granularity) {
+        if (granularity <= 0) {
+            throw new IllegalArgumentException("Granularity should be positive");
+        }
+        pool.invoke(new EvalTask(this, columns, out, 0, out.length, granularity));
+    }
+
+    /**
+     * @return names of declared variables in their slot order
+     */
+    public List<String> variables() {
+        return List.of(variables);
+    }
+
+    /**
+     * @param name name of variable
+     * @return slot of variable, or {@code -1} if it wasn't declared
+     */
+    public int slot(String name) {
+        for (int i = 0; i < variables.length; i++) {
+            if (variables[i].equals(name)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return dictionary the formula was compiled against
+     * @see MathRegistry#isStale(CompiledFormula)
+     */
+    public MathDictionary dictionary() {
+        return math;
+    }
+
+    /**
+     * @return backend that runs this formula
+     */
+    public Backend backend() {
+        return backend;
+    }
+
+    /**
+     * Recompiles the formula for another backend.
+     * Bytecode falls back to the tree if the formula is too large for a single method, and both of them fall back
+     * to the interpreter if the formula is nested too deeply for code that recurses.
+     * @param backend backend to run the formula with
+     * @return formula with the same variables running on the backend
+     */
+    public CompiledFormula withBackend(Backend backend) {
+        if (backend == this.backend) return this;
+        return compile(root(), backend, lower, upper);
+    }
+
+    /**
+     * Specializes the formula for declared ranges of variables, dropping operations that are no-op within them,
+     * like {@code abs} of a non-negative variable, and expanding powers with small integer exponents.
+     * <p>
+     * Inputs are checked on every evaluation, and ones out of ranges, including NaN, are evaluated by the general
+     * formula. Results of the specialized formula may differ from the general one in the last bit for powers only.
+     * @param lower lower bounds of variables, inclusive and indexed by slots; {@code -0} is only accepted if it's
+     *              the lower bound itself, or the bound is negative
+     * @param upper upper bounds of variables, inclusive and indexed by slots
+     * @return formula with the same variables specialized for the ranges
+     * @throws IllegalArgumentException if bounds don't match declared variables, or a range is empty
+     */
+    public CompiledFormula withRanges(double[] lower, double[] upper) {
+        if (lower.length != variables.length || upper.length != variables.length) {
+            throw new IllegalArgumentException("Ranges should be provided for all " + variables.length + " variables");
+        }
+        for (int i = 0; i < variables.length; i++) {
+            if (!(Double.compare(lower[i], upper[i]) <= 0)) {
+                throw new IllegalArgumentException("Range of '" + variables[i] + "' is empty");
+            }
+        }
+        return compile(root(), backend, lower.clone(), upper.clone());
+    }
+
+    /**
+     * Checks whether a divisor of the formula can be zero, for values within the {@link #withRanges declared ranges}
+     * or any values if there are none.
+     * @return {@code false} if the formula never divides by zero
+     */
+    public boolean mayDivideByZero() {
+        return RangeAnalyzer.mayDivideByZero(root(), ranges());
+    }
+
+    private CompiledFormula compile(Node root, Backend backend, double[] lower, double[] upper) {
+        SlotTerm term = compile(root, backend);
+        if (term == null) return compile(root, fallback(backend), lower, upper);
+        if (lower != null) {
+            Node specialized = RangeAnalyzer.specialize(root, ranges(lower, upper));
+            SlotTerm fast = compile(specialized, backend);
+            for (Backend other = backend; fast == null; ) fast = compile(specialized, other = fallback(other));
+            term = new RangeGuard(lower, upper, fast, term);
+        }
+        return new CompiledFormula(this, root, backend, lower, upper, term);
+    }
+
+    /**
+     * @return compiled code, or {@code null} if the backend can't compile the formula
+     */
+    private SlotTerm compile(Node root, Backend backend) {
+        FormulaListener listener = Instrumentation.listener;
+        CompileEvent event = new CompileEvent();
+        event.begin();
+        long start = listener == null ? 0 : System.nanoTime();
+        SlotTerm term = switch (backend) {
+            case TREE -> Node.depth(root) > Node.MAX_RECURSION ? null : toTerm(root, slots);
+            case BYTECODE -> BytecodeCompiler.compile(root, slots);
+            case INTERPRETER -> FormulaProgram.compile(root, slots);
+        };
+        if (listener != null) listener.compiled(label, backend, System.nanoTime() - start);
+        if (event.shouldCommit()) {
+            event.expression = label;
+            event.backend = backend.name();
+            event.nodes = Node.size(root);
+            event.commit();
+        }
+        return term;
+    }
+
+    /**
+     * @return backend to compile with if the given one can't
+     */
+    private static Backend fallback(Backend backend) {
+        return backend == Backend.BYTECODE ? Backend.TREE : Backend.INTERPRETER;
+    }
+
+    private SlotTerm instrument(SlotTerm term) {
+        FormulaListener listener = Instrumentation.listener;
+        return listener == null ? term : new InstrumentedTerm(label, term, listener);
+    }
+
+    /**
+     * @return compiled code without instrumentation
+     */
+    private SlotTerm raw() {
+        return term instanceof InstrumentedTerm instrumented ? instrumented.term : term;
+    }
+
+    private Map<String, RangeAnalyzer.Interval> ranges() {
+        return lower == null ? Map.of() : ranges(lower, upper);
+    }
+
+    private Map<String, RangeAnalyzer.Interval> ranges(double[] lower, double[] upper) {
+        Map<String, RangeAnalyzer.Interval> ranges = new HashMap<>(variables.length);
+        for (int i = 0; i < variables.length; i++) {
+            ranges.put(variables[i], RangeAnalyzer.Interval.of(lower[i], upper[i]));
+        }
+        return ranges;
+    }
+
+    /**
+     * Differentiates the formula symbolically.
+     * Functions without a known derivative, including custom ones, are differentiated
+     * through {@link MathFunction#partial(int, double[], int, int)}.
+     * @param variable variable to differentiate by
+     * @return derivative with the same variables, running on the same backend
+     * @throws IllegalArgumentException if the variable is not declared
+     */
+    public CompiledFormula derivative(String variable) {
+        String name = variable.toLowerCase(Locale.ROOT);
+        if (!slots.containsKey(name)) {
+            throw new IllegalArgumentException("Variable '" + name + "' is not declared");
+        }
+        CompiledFormula derivative = new CompiledFormula(Differentiator.derive(root(), name), math, variables);
+        return lower == null
+                ? derivative.withBackend(backend)
+                : derivative.compile(derivative.root, backend, lower, upper);
+    }
+
+    /**
+     * Compiles the formula along with its partial derivatives by every variable into a single set, so that
+     * subexpressions shared by them are computed once.
+     * The result {@code 0} is the value of formula, the result {@code i + 1} is the derivative by variable {@code i}.
+     * @return set evaluating the value and the gradient of the formula
+     * @see #derivative(String)
+     */
+    public FormulaSet gradient() {
+        Node root = root();
+        String[] names = new String[variables.length + 1];
+        Node[] roots = new Node[variables.length + 1];
+        names[0] = "value";
+        roots[0] = root;
+        for (int i = 0; i < variables.length; i++) {
+            names[i + 1] = "d/d" + variables[i];
+            roots[i + 1] = Differentiator.derive(root, variables[i]);
+        }
+        return FormulaSet.compile(names, roots, variables);
+    }
+
+    Node root() {
+        return root != null ? root : ((FormulaProgram) raw()).toNode(variables);
+    }
+
+    FormulaProgram program() {
+        return raw() instanceof FormulaProgram program ? program : FormulaProgram.compile(root(), slots);
+    }
+
+    private static SlotTerm toTerm(Node node, Map<String, Integer> slots) {
+        if (node instanceof Constant cons) {
+            double value = cons.value();
+            return (vars) -> value;
+        } else if (node instanceof Variable variable) {
+            Integer slot = slots.get(variable.name());
+            if (slot == null) {
+                throw new IllegalArgumentException("Variable '" + variable.name() + "' is not declared");
+            }
+            int index = slot;
+            return (vars) -> vars[index];
+        } else if (node instanceof Negate negate) {
+            SlotTerm a = toTerm(negate.a(), slots);
+            return (vars) -> -a.calc(vars);
+        } else if (node instanceof Binary binary) {
+            SlotTerm a = toTerm(binary.a(), slots);
+            SlotTerm b = toTerm(binary.b(), slots);
+            return switch (binary.operator()) {
+                case '+' -> (vars) -> a.calc(vars) + b.calc(vars);
+                case '-' -> (vars) -> a.calc(vars) - b.calc(vars);
+                case '*' -> (vars) -> a.calc(vars) * b.calc(vars);
+                case '/' -> (vars) -> a.calc(vars) / b.calc(vars);
+                case '%' -> (vars) -> a.calc(vars) % b.calc(vars);
+                case '<' -> (vars) -> a.calc(vars) < b.calc(vars) ? 1 : 0;
+                case '≤' -> (vars) -> a.calc(vars) <= b.calc(vars) ? 1 : 0;
+                case '>' -> (vars) -> a.calc(vars) > b.calc(vars) ? 1 : 0;
+                case '≥' -> (vars) -> a.calc(vars) >= b.calc(vars) ? 1 : 0;
+                case '=' -> (vars) -> a.calc(vars) == b.calc(vars) ? 1 : 0;
+                case '≠' -> (vars) -> a.calc(vars) != b.calc(vars) ? 1 : 0;
+                default -> (vars) -> Math.pow(a.calc(vars), b.calc(vars));
+            };
+        } else if (node instanceof Chain chain) {
+            List<Node> operands = chain.operands();
+            SlotTerm[] terms = new SlotTerm[operands.size()];
+            for (int i = 0; i < terms.length; i++) terms[i] = toTerm(operands.get(i), slots);
+            if (chain.isUniform('+')) {
+                return (vars) -> {
+                    double x = terms[0].calc(vars);
+                    for (int i = 1; i < terms.length; i++) x += terms[i].calc(vars);
+                    return x;
+                };
+            } else if (chain.isUniform('*')) {
+                return (vars) -> {
+                    double x = terms[0].calc(vars);
+                    for (int i = 1; i < terms.length; i++) x *= terms[i].calc(vars);
+                    return x;
+                };
+            }
+            char[] operators = chain.operators().toCharArray();
+            return (vars) -> {
+                double x = terms[0].calc(vars);
+                for (int i = 1; i < terms.length; i++) {
+                    x = FormulaOptimizer.apply(operators[i - 1], x, terms[i].calc(vars));
+                }
+                return x;
+            };
+        } else if (node instanceof Condition condition) {
+            SlotTerm test = toTerm(condition.test(), slots);
+            SlotTerm then = toTerm(condition.then(), slots);
+            SlotTerm otherwise = toTerm(condition.otherwise(), slots);
+            return (vars) -> test.calc(vars) != 0 ? then.calc(vars) : otherwise.calc(vars);
+        } else if (node instanceof Junction junction) {
+            List<Node> operands = junction.operands();
+            SlotTerm[] terms = new SlotTerm[operands.size()];
+            for (int i = 0; i < terms.length; i++) terms[i] = toTerm(operands.get(i), slots);
+            if (junction.operator() == '&') {
+                return (vars) -> {
+                    for (SlotTerm term : terms) {
+                        if (term.calc(vars) == 0) return 0;
+                    }
+                    return 1;
+                };
+            }
+            return (vars) -> {
+                for (SlotTerm term : terms) {
+                    if (term.calc(vars) != 0) return 1;
+                }
+                return 0;
+            };
+        }
+        Call call = (Call) node;
+        MathFunction function = call.function();
+        if (function == null) {
+            throw new IllegalArgumentException("Function '" + call.name() + "' is not registered");
+        }
+        List<Node> args = call.args();
+        SlotTerm a = toTerm(args.get(0), slots);
+        if (args.size() == 1) {
+            return (vars) -> function.accept(a.calc(vars));
+        }
+        SlotTerm b = toTerm(args.get(1), slots);
+        if (args.size() == 2) {
+            return (vars) -> function.accept(a.calc(vars), b.calc(vars));
+        }
+        SlotTerm c = toTerm(args.get(2), slots);
+        if (args.size() == 3) {
+            return (vars) -> function.accept(a.calc(vars), b.calc(vars), c.calc(vars));
+        }
+        SlotTerm d = toTerm(args.get(3), slots);
+        if (args.size() == 4) {
+            return (vars) -> function.accept(a.calc(vars), b.calc(vars), c.calc(vars), d.calc(vars));
+        }
+        SlotTerm[] finArgs = new SlotTerm[args.size()];
+        finArgs[0] = a;
+        finArgs[1] = b;
+        finArgs[2] = c;
+        finArgs[3] = d;
+        for (int i = 4; i < finArgs.length; i++) {
+            finArgs[i] = toTerm(args.get(i), slots);
+        }
+        return (vars) -> {
+            EvalStack stack = EvalStack.local();
+            int base = stack.reserve(finArgs.length);
+            try {
+                for (int i = 0; i < finArgs.length; i++) {
+                    double value = finArgs[i].calc(vars);
+                    stack.data[base + i] = value;
+                }
+                return function.accept(stack.data, base, finArgs.length);
+            } finally {
+                stack.top = base;
+            }
+        };
+    }
+
+    public enum Backend {
+        /**
+         * Tree of small closures. Cheap to compile.
+         */
+        TREE,
+        /**
+         * Hidden class with a single straight-line method, built-in functions are called directly.
+         * Costlier to compile, but a lot faster to evaluate once there are many different formulas in use.
+         */
+        BYTECODE,
+        /**
+         * Linear code for a stack machine. Takes a fraction of memory of the other backends,
+         * so it's the best fit for keeping a lot of rarely used formulas around.
+         */
+        INTERPRETER
+    }
+
+    private record RangeGuard(double[] lower, double[] upper, SlotTerm fast, SlotTerm general) implements SlotTerm {
+        @Override
+        public double calc(double[] vars) {
+            for (int i = 0; i < lower.length; i++) {
+                // Rejects NaN, as well as -0 if the lower bound is +0
+                if (Double.compare(vars[i], lower[i]) < 0 || Double.compare(vars[i], upper[i]) > 0) {
+                    return general.calc(vars);
+                }
+            }
+            return fast.calc(vars);
+        }
+    }
+
+    /**
+     * Reports every evaluation to the listener, timing one of every {@link Instrumentation#SAMPLE_INTERVAL}.
+     */
+    private static final class InstrumentedTerm implements SlotTerm {
+        private final String label;
+        private final SlotTerm term;
+        private final FormulaListener listener;
+        /**
+         * Racy, as losing a few increments only shifts the sampling
+         */
+        private int evaluations;
+
+        private InstrumentedTerm(String label, SlotTerm term, FormulaListener listener) {
+            this.label = label;
+            this.term = term;
+            this.listener = listener;
+        }
+
+        @Override
+        public double calc(double[] vars) {
+            double result;
+            if (++evaluations % Instrumentation.SAMPLE_INTERVAL == 0) {
+                long start = System.nanoTime();
+                result = term.calc(vars);
+                listener.timed(label, System.nanoTime() - start);
+            } else {
+                result = term.calc(vars);
+            }
+            listener.evaluated(label, result);
+            return result;
+        }
+    }
+
+    private static final class EvalTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final CompiledFormula formula;
+        private final double[][] columns;
+        private final double[] out;
+        private final int from;
+        private final int to;
+        private final int granularity;
+
+        EvalTask(CompiledFormula formula, double[][] columns, double[] out, int from, int to, int granularity) {
+            this.formula = formula;
+            this.columns = columns;
+            this.out = out;
+            this.from = from;
+            this.to = to;
+            this.granularity = granularity;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= granularity) {
+                formula.evalBatch(columns, out, from, to);
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(
+                        new EvalTask(formula, columns, out, from, middle, granularity),
+                        new EvalTask(formula, columns, out, middle, to, granularity)
+                );
+            }
+        }
+    }
+}
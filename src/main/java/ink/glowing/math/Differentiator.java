@@ -0,0 +1,308 @@
+package ink.glowing.math;
+
+import ink.glowing.math.MathDictionary.MathFunction;
+import ink.glowing.math.Node.*;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Symbolic differentiation of formula trees.
+ * <p>
+ * Operators and most of the built-in functions are differentiated by the usual rules. Other functions, including
+ * custom ones, are differentiated through {@link MathFunction#partial(int, double[], int, int)}.
+ * Piecewise constant functions, like {@code floor}, and comparisons are treated as having a zero derivative
+ * everywhere, and conditions are differentiated branch by branch.
+ */
+final class Differentiator {
+    private static final Map<MathFunction, String> BUILT_IN = new IdentityHashMap<>();
+    static {
+        MathDictionary.BASIC_FUNCTIONS.forEach((name, function) -> BUILT_IN.put(function, name));
+        for (FastFunctions fast : FastFunctions.values()) BUILT_IN.put(fast, fast.name().toLowerCase(Locale.ROOT));
+    }
+
+    private final String variable;
+
+    private Differentiator(String variable) {
+        this.variable = variable;
+    }
+
+    /**
+     * @param node formula tree
+     * @param variable variable to differentiate by
+     * @return tree of the derivative
+     */
+    static Node derive(Node node, String variable) {
+        Node derivative = Node.walk(node, new Differentiator(variable)::d);
+        return FormulaOptimizer.optimize(derivative == null ? new Constant(0) : derivative);
+    }
+
+    /**
+     * @param derivatives derivatives of the children of the node, {@code null} where they're zero
+     * @return derivative of the node, or {@code null} if it's zero
+     */
+    private Node d(Node node, List<Node> derivatives) {
+        if (node instanceof Constant) {
+            return null;
+        } else if (node instanceof Variable var) {
+            return var.name().equals(variable) ? num(1) : null;
+        } else if (node instanceof Negate) {
+            return neg(derivatives.get(0));
+        } else if (node instanceof Binary binary && binary.isComparison() || node instanceof Junction) {
+            return null;
+        } else if (node instanceof Condition condition) {
+            Node then = derivatives.get(1);
+            Node otherwise = derivatives.get(2);
+            if (then == null && otherwise == null) return null;
+            return new Condition(condition.test(), then == null ? num(0) : then,
+                    otherwise == null ? num(0) : otherwise);
+        } else if (node instanceof Chain chain) {
+            return d(chain, derivatives);
+        } else if (node instanceof Binary binary) {
+            return d(binary.operator(), binary.a(), binary.b(), derivatives.get(0), derivatives.get(1));
+        }
+        Call call = (Call) node;
+        List<Node> args = call.args();
+        Node[] ds = derivatives.toArray(new Node[0]);
+        boolean constant = true;
+        for (Node d : ds) constant &= d == null;
+        if (constant) return null;
+        String name = BUILT_IN.get(call.function());
+        Node a = args.get(0);
+        Node da = ds[0];
+        if (name != null && args.size() == 1) {
+            switch (name) {
+                case "cos": return mul(da, neg(call("sin", a)));
+                case "sin": return mul(da, call("cos", a));
+                case "tan": return div(da, mul(call("cos", a), call("cos", a)));
+                case "acos": return neg(div(da, call("sqrt", sub(num(1), mul(a, a)))));
+                case "asin": return div(da, call("sqrt", sub(num(1), mul(a, a))));
+                case "atan": return div(da, add(num(1), mul(a, a)));
+                case "cosh": return mul(da, call("sinh", a));
+                case "sinh": return mul(da, call("cosh", a));
+                case "tanh": return mul(da, sub(num(1), mul(call("tanh", a), call("tanh", a))));
+                case "abs": return mul(da, call("signum", a));
+                case "log": return div(da, a);
+                case "log10": return div(da, mul(a, num(Math.log(10))));
+                case "log1p": return div(da, add(num(1), a));
+                case "sqrt": return div(da, mul(num(2), call("sqrt", a)));
+                case "cbrt": return div(da, mul(num(3), mul(call("cbrt", a), call("cbrt", a))));
+                case "exp", "expm1": return mul(da, call("exp", a));
+                case "to_degrees", "to_radians": return call(name, da);
+                case "next_up", "next_down": return da;
+                case "raw_hypot": return mul(num(2), mul(a, da));
+                case "hypot", "avg", "fma", "max", "min": return da;
+                case "ceil", "floor", "round", "rint", "trunc", "signum", "ulp", "get_exponent", "format_float":
+                    return null;
+                default: break;
+            }
+        } else if (name != null) {
+            Node b = args.get(1);
+            Node db = ds[1];
+            switch (name) {
+                case "pow": if (args.size() == 2) return pow(a, b, da, db); break;
+                case "root": if (args.size() == 2) return pow(a, div(num(1), b), da, neg(div(db, mul(b, b)))); break;
+                case "atan2":
+                    if (args.size() == 2) return div(sub(mul(b, da), mul(a, db)), add(mul(a, a), mul(b, b)));
+                    break;
+                case "log":
+                    if (args.size() == 2) {
+                        // log(a, b) = ln(a) / ln(b)
+                        return div(sub(div(da, a), mul(div(call("log", a), call("log", b)), div(db, b))),
+                                call("log", b));
+                    }
+                    break;
+                case "next_after": if (args.size() == 2) return da; break;
+                case "copy_sign":
+                    if (args.size() == 2) {
+                        return mul(da, mul(call("copy_sign", num(1), a), call("copy_sign", num(1), b)));
+                    }
+                    break;
+                case "scalb": if (args.size() == 2) return da == null ? null : call("scalb", da, b); break;
+                case "fma": if (args.size() == 3) return add(add(mul(da, b), mul(a, db)), ds[2]); break;
+                case "avg": {
+                    Node sum = null;
+                    for (Node d : ds) sum = add(sum, d);
+                    return div(sum, num(args.size()));
+                }
+                case "max", "min": {
+                    // Follows the argument that is picked, the first one of equal ones like Math.max
+                    char operator = name.equals("max") ? '>' : '<';
+                    Node picked = a;
+                    Node derivative = da;
+                    for (int i = 1; i < ds.length; i++) {
+                        Node arg = args.get(i);
+                        if (ds[i] != null || derivative != null) {
+                            derivative = new Condition(new Binary(operator, arg, picked),
+                                    ds[i] == null ? num(0) : ds[i], derivative == null ? num(0) : derivative);
+                        }
+                        picked = call(name, picked, arg);
+                    }
+                    return derivative;
+                }
+                case "hypot", "raw_hypot": {
+                    Node sum = null;
+                    for (int i = 0; i < ds.length; i++) sum = add(sum, mul(args.get(i), ds[i]));
+                    return name.equals("hypot") ? div(sum, node) : mul(num(2), sum);
+                }
+                default: break;
+            }
+        }
+        // Chain rule over partial derivatives of an opaque function
+        Node sum = null;
+        for (int i = 0; i < ds.length; i++) {
+            if (ds[i] == null) continue;
+            Partial partial = new Partial(call.function(), i);
+            sum = add(sum, mul(new Call("d" + i + "_" + call.name(), partial, args), ds[i]));
+        }
+        return sum;
+    }
+
+    /**
+     * @return derivative of the operation, or {@code null} if it's zero
+     */
+    private static Node d(char operator, Node a, Node b, Node da, Node db) {
+        return switch (operator) {
+            case '+' -> add(da, db);
+            case '-' -> sub(da, db);
+            case '*' -> add(mul(da, b), mul(a, db));
+            case '/' -> div(sub(mul(da, b), mul(a, db)), mul(b, b));
+            case '%' -> sub(da, mul(db, call("trunc", new Binary('/', a, b))));
+            default -> pow(a, b, da, db);
+        };
+    }
+
+    private static Node pow(Node a, Node b, Node da, Node db) {
+        if (db == null) {
+            if (b instanceof Constant cons) {
+                return mul(mul(b, pow(a, cons.value() - 1)), da);
+            }
+            return mul(mul(b, new Binary('^', a, sub(b, num(1)))), da);
+        }
+        // a^b * (b' * ln(a) + b * a' / a)
+        return mul(new Binary('^', a, b), add(mul(db, call("log", a)), div(mul(b, da), a)));
+    }
+
+    private static Node pow(Node a, double exponent) {
+        if (exponent == 1) return a;
+        return new Binary('^', a, num(exponent));
+    }
+
+    private static Node call(String name, Node... args) {
+        return new Call(name, MathDictionary.BASIC_FUNCTIONS.get(name), List.of(args));
+    }
+
+    private static Node num(double value) {
+        return new Constant(value);
+    }
+
+    /**
+     * Sums are differentiated term by term and stay flat, products are differentiated as nested operations.
+     */
+    private static Node d(Chain chain, List<Node> derivatives) {
+        List<Node> operands = chain.operands();
+        String operators = chain.operators();
+        if (!chain.isAdditive()) {
+            Node nested = operands.get(0);
+            Node derivative = derivatives.get(0);
+            for (int i = 1; i < operands.size(); i++) {
+                char operator = operators.charAt(i - 1);
+                derivative = d(operator, nested, operands.get(i), derivative, derivatives.get(i));
+                nested = new Binary(operator, nested, operands.get(i));
+            }
+            return derivative;
+        }
+        List<Node> terms = new ArrayList<>(operands.size());
+        StringBuilder signs = new StringBuilder(operators.length());
+        for (int i = 0; i < operands.size(); i++) {
+            Node d = derivatives.get(i);
+            if (d == null) continue;
+            char operator = i == 0 ? '+' : operators.charAt(i - 1);
+            if (terms.isEmpty()) {
+                terms.add(operator == '-' ? new Negate(d) : d);
+            } else {
+                terms.add(d);
+                signs.append(operator);
+            }
+        }
+        return terms.isEmpty() ? null : Node.fold(terms, signs);
+    }
+
+    private static Node neg(Node a) {
+        return a == null ? null : new Negate(a);
+    }
+
+    private static Node add(Node a, Node b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        return new Binary('+', a, b);
+    }
+
+    private static Node sub(Node a, Node b) {
+        if (b == null) return a;
+        if (a == null) return new Negate(b);
+        return new Binary('-', a, b);
+    }
+
+    private static Node mul(Node a, Node b) {
+        if (a == null || b == null) return null;
+        return new Binary('*', a, b);
+    }
+
+    private static Node div(Node a, Node b) {
+        if (a == null) return null;
+        return new Binary('/', a, b);
+    }
+
+    /**
+     * Partial derivative of a function by one of its arguments.
+     */
+    private record Partial(MathFunction function, int index) implements MathFunction {
+        @Override
+        public double accept(double[] args, int offset, int length) {
+            return function.partial(index, args, offset, length);
+        }
+
+        @Override
+        public boolean isPure() {
+            return function.isPure();
+        }
+
+        @Override
+        public int cost() {
+            // Finite difference calls the function twice
+            return function.cost() * 2;
+        }
+
+        @Override
+        public double accept(double a, double... num) {
+            double[] args = new double[num.length + 1];
+            args[0] = a;
+            System.arraycopy(num, 0, args, 1, num.length);
+            return accept(args, 0, args.length);
+        }
+
+        @Override
+        public double accept(double a, double b, double c, double d) {
+            return accept(new double[] {a, b, c, d}, 0, 4);
+        }
+
+        @Override
+        public double accept(double a, double b, double c) {
+            return accept(new double[] {a, b, c}, 0, 3);
+        }
+
+        @Override
+        public double accept(double a, double b) {
+            return accept(new double[] {a, b}, 0, 2);
+        }
+
+        @Override
+        public double accept(double a) {
+            return accept(new double[] {a}, 0, 1);
+        }
+    }
+}
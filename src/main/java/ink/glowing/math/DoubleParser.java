@@ -0,0 +1,191 @@
+package ink.glowing.math;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * Correctly rounded parser of decimal literals that works on ranges of a {@link CharSequence} without allocating.
+ * <p>
+ * Literals of up to 19 significant digits are converted by the Eisel-Lemire algorithm, which only
+ * needs a couple of 64-bit multiplications. The rare cases it can't decide on are handed to {@link BigDecimal}.
+ */
+public final class DoubleParser {
+    private static final int MIN_POWER = -342;
+    private static final int MAX_POWER = 308;
+    private static final long[] POWERS_HIGH = new long[MAX_POWER - MIN_POWER + 1];
+    private static final long[] POWERS_LOW = new long[MAX_POWER - MIN_POWER + 1];
+    private static final double[] EXACT_POWERS = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    static {
+        // 128-bit approximations of 5^q, truncated for positive and rounded up for negative powers
+        BigInteger limit = BigInteger.ONE.shiftLeft(128);
+        for (int q = MIN_POWER; q <= MAX_POWER; q++) {
+            BigInteger power;
+            if (q < 0) {
+                BigInteger power5 = BigInteger.valueOf(5).pow(-q);
+                int z = power5.subtract(BigInteger.ONE).bitLength();
+                int b = q >= -27 ? z + 127 : 2 * z + 128;
+                power = BigInteger.ONE.shiftLeft(b).divide(power5).add(BigInteger.ONE);
+                while (power.compareTo(limit) >= 0) power = power.shiftRight(1);
+            } else {
+                power = BigInteger.valueOf(5).pow(q);
+                power = power.bitLength() <= 128
+                        ? power.shiftLeft(128 - power.bitLength())
+                        : power.shiftRight(power.bitLength() - 128);
+            }
+            POWERS_HIGH[q - MIN_POWER] = power.shiftRight(64).longValue();
+            POWERS_LOW[q - MIN_POWER] = power.longValue();
+        }
+    }
+
+    private DoubleParser() { }
+
+    /**
+     * @see #parse(CharSequence, int, int, double)
+     */
+    public static double parse(CharSequence seq, double def) {
+        return parse(seq, 0, seq.length(), def);
+    }
+
+    /**
+     * Parses a literal of {@code [+-]?\d*(\.\d*)?([eE][+-]?\d+)?} format, with at least one digit before the exponent.
+     * @param seq sequence containing the literal
+     * @param start index of the first character of literal
+     * @param end index after the last character of literal
+     * @param def value to return if the literal is malformed
+     * @return the closest double to the literal
+     */
+    public static double parse(CharSequence seq, int start, int end, double def) {
+        return parse(seq, start, end, def, false);
+    }
+
+    /**
+     * Parses a literal of {@code \d+(\.\d+([eE][+-]?\d+)?)?} format, as expected by the evaluators.
+     */
+    static double parseStrict(CharSequence seq, int start, int end, double def) {
+        return parse(seq, start, end, def, true);
+    }
+
+    private static double parse(CharSequence seq, int start, int end, double def, boolean strict) {
+        int i = start;
+        boolean negative = false;
+        if (!strict && i < end && (seq.charAt(i) == '-' || seq.charAt(i) == '+')) {
+            negative = seq.charAt(i++) == '-';
+        }
+        long significand = 0;
+        int significant = 0;
+        int exponent = 0;
+        boolean truncated = false;
+        int intStart = i;
+        for (char c; i < end && (c = seq.charAt(i)) >= '0' && c <= '9'; i++) {
+            if (significant < 19) {
+                significand = significand * 10 + (c - '0');
+                if (significand != 0) significant++;
+            } else {
+                exponent++;
+                truncated |= c != '0';
+            }
+        }
+        int digits = i - intStart;
+        if (strict && digits == 0) return def;
+        if (i < end && seq.charAt(i) == '.') {
+            int fracStart = ++i;
+            for (char c; i < end && (c = seq.charAt(i)) >= '0' && c <= '9'; i++) {
+                if (significant < 19) {
+                    significand = significand * 10 + (c - '0');
+                    if (significand != 0) significant++;
+                    exponent--;
+                } else {
+                    truncated |= c != '0';
+                }
+            }
+            if (strict && i == fracStart) return def;
+            digits += i - fracStart;
+        } else if (strict && i < end) {
+            return def;
+        }
+        if (digits == 0) return def;
+        if (i < end && (seq.charAt(i) == 'e' || seq.charAt(i) == 'E')) {
+            i++;
+            boolean negativeExp = false;
+            if (i < end && (seq.charAt(i) == '-' || seq.charAt(i) == '+')) {
+                negativeExp = seq.charAt(i++) == '-';
+            }
+            int expStart = i;
+            int explicit = 0;
+            for (char c; i < end && (c = seq.charAt(i)) >= '0' && c <= '9'; i++) {
+                if (explicit < 100_000) explicit = explicit * 10 + (c - '0');
+            }
+            if (i == expStart) return def;
+            exponent += negativeExp ? -explicit : explicit;
+        }
+        if (i != end) return def;
+
+        double value = toDouble(significand, exponent);
+        if (truncated && !Double.isNaN(value) && toDouble(significand + 1, exponent) != value) {
+            value = Double.NaN;
+        }
+        if (Double.isNaN(value)) {
+            value = new BigDecimal(seq.subSequence(negative ? start + 1 : start, end).toString()).doubleValue();
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Converts {@code significand * 10^exponent} to the closest double.
+     * @param significand unsigned decimal significand
+     * @param exponent decimal exponent
+     * @return converted value, or {@code NaN} if it can't be decided without arbitrary precision
+     */
+    static double toDouble(long significand, int exponent) {
+        if (significand == 0 || exponent < MIN_POWER) return 0;
+        if (exponent > MAX_POWER) return Double.POSITIVE_INFINITY;
+        if (exponent >= -22 && exponent <= 22 && Long.compareUnsigned(significand, 1L << 53) <= 0) {
+            // Both the significand and the power of ten are exact, so a single operation rounds correctly
+            return exponent < 0
+                    ? significand / EXACT_POWERS[-exponent]
+                    : significand * EXACT_POWERS[exponent];
+        }
+        long powerHigh = POWERS_HIGH[exponent - MIN_POWER];
+        long binaryExponent = ((217706L * exponent) >> 16) + 1024 + 63;
+        int lz = Long.numberOfLeadingZeros(significand);
+        significand <<= lz;
+        long lower = significand * powerHigh;
+        long upper = unsignedMultiplyHigh(significand, powerHigh);
+        if ((upper & 0x1FF) == 0x1FF && Long.compareUnsigned(lower + significand, lower) < 0) {
+            long powerLow = POWERS_LOW[exponent - MIN_POWER];
+            long productLow = significand * powerLow;
+            long productMiddle = lower + unsignedMultiplyHigh(significand, powerLow);
+            if (Long.compareUnsigned(productMiddle, lower) < 0) upper++;
+            if (productMiddle + 1 == 0 && (upper & 0x1FF) == 0x1FF
+                    && Long.compareUnsigned(productLow + significand, productLow) < 0) {
+                return Double.NaN;
+            }
+            lower = productMiddle;
+        }
+        long upperBit = upper >>> 63;
+        long mantissa = upper >>> (upperBit + 9);
+        lz += (int) (1 ^ upperBit);
+        if (lower == 0 && (upper & 0x1FF) == 0 && (mantissa & 3) == 1) {
+            return Double.NaN; // exactly halfway, too close to call
+        }
+        mantissa += mantissa & 1;
+        mantissa >>>= 1;
+        if (mantissa >= (1L << 53)) {
+            mantissa = 1L << 52;
+            lz--;
+        }
+        mantissa &= ~(1L << 52);
+        long realExponent = binaryExponent - lz;
+        if (realExponent < 1 || realExponent > 2046) {
+            return Double.NaN; // subnormals and overflows are left for the slow path
+        }
+        return Double.longBitsToDouble(mantissa | realExponent << 52);
+    }
+
+    private static long unsignedMultiplyHigh(long a, long b) {
+        return Math.multiplyHigh(a, b) + ((a >> 63) & b) + ((b >> 63) & a);
+    }
+}
@@ -0,0 +1,32 @@
+package ink.glowing.math;
+
+import java.util.Arrays;
+
+/**
+ * Per-thread buffer for arguments of functions that take arbitrary amount of them.
+ * Used as a stack, so evaluations are free to nest.
+ */
+final class EvalStack {
+    private static final ThreadLocal<EvalStack> LOCAL = ThreadLocal.withInitial(EvalStack::new);
+
+    double[] data = new double[64];
+    int top;
+
+    private EvalStack() { }
+
+    static EvalStack local() {
+        return LOCAL.get();
+    }
+
+    /**
+     * Reserves space on top of the stack. {@link #data} may be replaced by a larger array after the call.
+     * @param size amount of values to reserve
+     * @return index of the first reserved value
+     */
+    int reserve(int size) {
+        int base = top;
+        top += size;
+        if (top > data.length) data = Arrays.copyOf(data, Math.max(top, data.length * 2));
+        return base;
+    }
+}
@@ -1,116 +1,418 @@
 package ink.glowing.math;
 
 import java.util.Arrays;
-import java.util.Locale;
 
 import static ink.glowing.math.MathDictionary.*;
 
 /**
  * Better performance for one-time calculations over {@link FormulaEvaluator}.
- * Also generates much less memory garbage than {@link FormulaEvaluator}.
+ * <p>
+ * The expression is scanned in place, so evaluation generates no garbage: every thread reuses its own evaluator
+ * along with its stacks of operands and operators. The stacks are explicit rather than recursive calls, so
+ * expressions of any length and nesting are evaluated in linear time. Branches that aren't taken are still
+ * scanned, but without calling any functions.
  */
 public class ExpressionEvaluator {
-    private final String expression;
-    private final MathDictionary math;
+    private static final char NEGATE = FormulaParser.NEGATE;
+    private static final char GROUP = FormulaParser.GROUP;
+    private static final char CALL = FormulaParser.CALL;
+    private static final char CONDITIONAL = '#';
+    private static final ThreadLocal<ExpressionEvaluator> LOCAL = ThreadLocal.withInitial(ExpressionEvaluator::new);
+
+    private CharSequence expression;
+    private MathDictionary math;
     private int pointer;
+    private boolean busy;
+    /**
+     * Operands, including arguments of functions
+     */
+    private double[] args = new double[8];
+    private int argsTop;
+    /**
+     * Pending operators, along with the count of operands before them and their state
+     */
+    private char[] kinds = new char[8];
+    private int[] bases = new int[8];
+    private int[] states = new int[8];
+    private int operatorsTop;
+    /**
+     * Depth of branches that aren't taken, where functions aren't called
+     */
+    private int skipped;
+    /**
+     * Listener of the current evaluation, or {@code null} if instrumentation is disabled
+     */
+    private FormulaListener listener;
+    /**
+     * Normalized expression of the current evaluation, which listeners know it by
+     */
+    private String label;
+    private int evaluations;
 
-    private ExpressionEvaluator(String expression, MathDictionary math) {
-        this.expression = expression.replace(" ", "").toLowerCase(Locale.ROOT);
-        this.math = math;
-    }
+    private ExpressionEvaluator() { }
 
     public static double eval(String expression) {
         return eval(expression, MathDictionary.INSTANCE);
     }
 
     public static double eval(String expression, MathDictionary math) {
-        return new ExpressionEvaluator(expression, math).eval();
+        return eval((CharSequence) expression, math);
+    }
+
+    public static double eval(CharSequence expression) {
+        return eval(expression, MathDictionary.INSTANCE);
+    }
+
+    public static double eval(CharSequence expression, MathDictionary math) {
+        ExpressionEvaluator evaluator = LOCAL.get();
+        // Functions are free to evaluate other expressions
+        if (evaluator.busy) evaluator = new ExpressionEvaluator();
+        evaluator.busy = true;
+        evaluator.expression = expression;
+        evaluator.math = math;
+        FormulaListener listener = Instrumentation.listener;
+        try {
+            return listener == null ? evaluator.eval() : evaluator.eval(listener);
+        } finally {
+            evaluator.listener = null;
+            evaluator.label = null;
+            evaluator.expression = null;
+            evaluator.math = null;
+            evaluator.argsTop = 0;
+            evaluator.operatorsTop = 0;
+            evaluator.skipped = 0;
+            evaluator.busy = false;
+        }
     }
 
     private double eval() {
         this.pointer = 0;
-        return thirdImportance();
+        do {
+            operand();
+        } while (operator());
+        while (operatorsTop > 0) {
+            if (isGroup(kinds[operatorsTop - 1])) {
+                close();
+            } else {
+                reduce();
+            }
+        }
+        return args[--argsTop];
     }
 
-    private double thirdImportance() {
-        double x = secondImportance();
-        while (true) {
-            if (progress('+')) x += secondImportance();
-            else if (progress('-')) x -= secondImportance();
-            else return x;
+    private double eval(FormulaListener listener) {
+        this.listener = listener;
+        this.label = FormulaParser.normalize(expression.toString());
+        double result;
+        if (++evaluations % Instrumentation.SAMPLE_INTERVAL == 0) {
+            long start = System.nanoTime();
+            result = eval();
+            listener.timed(label, System.nanoTime() - start);
+        } else {
+            result = eval();
         }
+        listener.evaluated(label, result);
+        return result;
     }
 
-    private double secondImportance() {
-        double x = firstImportance();
-        while (true) {
-            if (progress('*')) x *= firstImportance();
-            else if (progress('/')) x /= firstImportance();
-            else if (progress('%')) x %= firstImportance();
-            else return x;
+    private void unknown(int start, int end) {
+        if (listener != null) {
+            listener.unknownIdentifier(label, FormulaParser.normalize(expression.subSequence(start, end).toString()));
         }
     }
 
-    private double firstImportance() {
-        if (progress('-')) return -firstImportance(); // "-5", "--5"..
-        //noinspection StatementWithEmptyBody
-        while (progress('+')) /* just skip */; // "+5", "++5"..
-        double x = 0;
-        int start = pointer;
-        if (progress('(')) {
-            x = thirdImportance();
-            progress(')');
-        } else if (isDigit(current())) {
-            pointer++;
-            while (isDigit(current())) pointer++;
-            if (progress('.')) {
-                while (isDigit(current())) pointer++;
-                if (progress('e')) {
-                    if (!progress('-')) progress('+');
-                    while (isDigit(current())) pointer++;
-                }
+    /**
+     * Reads prefix operators and opening parentheses up to the next operand, which is {@code 0} if it's missing.
+     */
+    private void operand() {
+        while (true) {
+            if (progress('-')) { // "-5", "--5"..
+                pushOperator(NEGATE, 0);
+                continue;
             }
-            x = MathDictionary.asDouble(expression.substring(start, pointer), 0);
-        } else if (isLetter(current())) {
-            pointer++;
-            while (isLetter(current()) || isDigit(current())) pointer++;
-            String str = expression.substring(start, pointer);
+            if (progress('+')) continue; // "+5", "++5"..
             if (progress('(')) {
-                MathFunction function = math.getFunction(str);
-                x = thirdImportance();
-                if (!progress(',')) {
-                    x = function == null
-                            ? 0
-                            : function.accept(x);
-                } else {
-                    double b = thirdImportance();
-                    if (!progress(',')) {
-                        x = function == null
-                                ? 0
-                                : function.accept(x, b);
+                pushOperator(GROUP, 0);
+                continue;
+            }
+            char c = current();
+            if (isDigit(c)) {
+                push(number());
+            } else if (isLetter(c)) {
+                int start = pointer;
+                pointer++;
+                while (isLetter(current()) || isDigit(current())) pointer++;
+                int end = pointer;
+                if (progress('(')) {
+                    if (end - start == 2 && isCondition(start)) {
+                        pushOperator(CONDITIONAL, 0);
                     } else {
-                        double[] args = {b, thirdImportance()};
-                        while (progress(',')) {
-                            args = Arrays.copyOfRange(args, 0, args.length + 1);
-                            args[args.length - 1] = thirdImportance();
-                        }
-                        x = function == null
-                                ? 0
-                                : function.accept(x, args);
+                        int id = math.functionId(expression, start, end);
+                        if (id < 0 && skipped == 0) unknown(start, end);
+                        pushOperator(CALL, id);
                     }
+                    continue;
+                }
+                int id = math.constantId(expression, start, end);
+                if (id >= 0) {
+                    push(math.constant(id));
+                } else {
+                    if (skipped == 0) unknown(start, end);
+                    push(0);
                 }
-                progress(')');
             } else {
-                x = math.getConstant(str, 0);
+                push(0);
+            }
+            return;
+        }
+    }
+
+    /**
+     * Reads closing parentheses and the infix operator after an operand.
+     * @return {@code false} if the expression ends
+     */
+    private boolean operator() {
+        while (true) {
+            char operator = infix();
+            switch (operator) {
+                case ')' -> {
+                    if (!reduceGroup()) return false;
+                    close();
+                }
+                case ',' -> {
+                    if (!reduceGroup()) return false;
+                    char group = kinds[operatorsTop - 1];
+                    if (group == CONDITIONAL) advance();
+                    return group != GROUP;
+                }
+                case '?' -> {
+                    reduceAbove(precedence('?'));
+                    boolean test = args[argsTop - 1] != 0;
+                    if (!test) skipped++;
+                    pushOperator('?', test ? 1 : 0);
+                    return true;
+                }
+                case ':' -> {
+                    while (operatorsTop > 0 && (kinds[operatorsTop - 1] == ':'
+                            || precedence(kinds[operatorsTop - 1]) > 1)) reduce();
+                    if (operatorsTop == 0 || kinds[operatorsTop - 1] != '?') return false;
+                    kinds[operatorsTop - 1] = ':';
+                    // Then-branch is over, so the other one is skipped instead
+                    if (states[operatorsTop - 1] == 1) {
+                        skipped++;
+                    } else {
+                        skipped--;
+                    }
+                    return true;
+                }
+                case '&', '|' -> {
+                    reduceAbove(precedence(operator) - 1);
+                    double x = args[argsTop - 1];
+                    // The result is already known, so the right operand is skipped
+                    boolean decided = operator == '&' ? x == 0 : x != 0;
+                    if (decided) skipped++;
+                    pushOperator(operator, decided ? 1 : 0);
+                    return true;
+                }
+                case 0 -> {
+                    return false;
+                }
+                default -> {
+                    // Only exponentiation is right-associative
+                    reduceAbove(precedence(operator) - (operator == '^' ? 0 : 1));
+                    pushOperator(operator, 0);
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return infix operator, {@code ) , ? :}, or {@code 0} if there's none
+     */
+    private char infix() {
+        char c = current();
+        pointer++;
+        return switch (c) {
+            case '+', '-', '*', '/', '%', '^', '?', ':', ',', ')' -> c;
+            case '<' -> progress('=') ? '≤' : '<';
+            case '>' -> progress('=') ? '≥' : '>';
+            case '=' -> progress('=') ? '=' : 0;
+            case '!' -> progress('=') ? '≠' : 0;
+            case '&' -> progress('&') ? '&' : 0;
+            case '|' -> progress('|') ? '|' : 0;
+            default -> 0;
+        };
+    }
+
+    /**
+     * Reduces operators of the innermost group.
+     * @return {@code false} if there's no group
+     */
+    private boolean reduceGroup() {
+        reduceAbove(0);
+        return operatorsTop > 0;
+    }
+
+    private void reduceAbove(int precedence) {
+        while (operatorsTop > 0 && precedence(kinds[operatorsTop - 1]) > precedence) reduce();
+    }
+
+    private void reduce() {
+        operatorsTop--;
+        char operator = kinds[operatorsTop];
+        int state = states[operatorsTop];
+        if (operator == NEGATE) {
+            args[argsTop - 1] = -args[argsTop - 1];
+            return;
+        }
+        double b = args[--argsTop];
+        double a = args[argsTop - 1];
+        double x;
+        switch (operator) {
+            case '?' -> {
+                if (state == 0) skipped--;
+                x = state == 1 ? b : 0;
+            }
+            case ':' -> {
+                if (state == 1) skipped--;
+                // The test is below the then-branch
+                argsTop--;
+                x = state == 1 ? a : b;
             }
+            case '&' -> {
+                if (state == 1) skipped--;
+                // Zero decides it, but negative zero still gives the same result as other zeros
+                x = state == 1 ? 0 : b != 0 ? 1 : 0;
+            }
+            case '|' -> {
+                if (state == 1) skipped--;
+                x = state == 1 ? 1 : b != 0 ? 1 : 0;
+            }
+            default -> x = FormulaOptimizer.apply(operator, a, b);
+        }
+        args[argsTop - 1] = x;
+    }
+
+    /**
+     * Moves {@code if} to its next argument, so that only the branch that's taken calls functions.
+     */
+    private void advance() {
+        int index = operatorsTop - 1;
+        if (isSkipping(states[index])) skipped--;
+        // The test is the first argument, and nothing else is left above the group
+        int state = states[index] == 0 ? 2 + (args[argsTop - 1] != 0 ? 1 : 0) : states[index] + 2;
+        if (isSkipping(state)) skipped++;
+        states[index] = state;
+    }
+
+    /**
+     * @param state argument of {@code if} being evaluated, doubled, plus {@code 1} if the test is true
+     */
+    private static boolean isSkipping(int state) {
+        int argument = state >> 1;
+        boolean test = (state & 1) == 1;
+        return argument == 1 ? !test : argument >= 2 && (test || argument > 2);
+    }
+
+    /**
+     * Replaces the innermost group with its value.
+     */
+    private void close() {
+        operatorsTop--;
+        char group = kinds[operatorsTop];
+        if (group == GROUP) return;
+        int state = states[operatorsTop];
+        int base = bases[operatorsTop];
+        int count = argsTop - base;
+        argsTop = base;
+        double x;
+        if (group == CONDITIONAL) {
+            if (isSkipping(state)) skipped--;
+            x = args[base] != 0 ? (count > 1 ? args[base + 1] : 0) : (count > 2 ? args[base + 2] : 0);
+        } else if (skipped > 0 || state < 0) {
+            x = 0;
+        } else {
+            // Arguments are left intact above the top until the next push
+            x = call(math.function(state), base, count);
+        }
+        push(x);
+    }
+
+    private static int precedence(char operator) {
+        return operator == CONDITIONAL ? 0 : FormulaParser.precedence(operator);
+    }
+
+    private static boolean isGroup(char operator) {
+        return operator == GROUP || operator == CALL || operator == CONDITIONAL;
+    }
+
+    private boolean isCondition(int start) {
+        return Character.toLowerCase(expression.charAt(start)) == CONDITION.charAt(0)
+                && Character.toLowerCase(expression.charAt(start + 1)) == CONDITION.charAt(1);
+    }
+
+    /**
+     * @param state state of the operator: id of the called function, whether the branch or operand is skipped,
+     * or the current argument of {@code if}
+     */
+    private void pushOperator(char operator, int state) {
+        if (operatorsTop == kinds.length) {
+            kinds = Arrays.copyOf(kinds, operatorsTop * 2);
+            bases = Arrays.copyOf(bases, operatorsTop * 2);
+            states = Arrays.copyOf(states, operatorsTop * 2);
         }
+        kinds[operatorsTop] = operator;
+        bases[operatorsTop] = argsTop;
+        states[operatorsTop] = state;
+        operatorsTop++;
+    }
+
+    private double call(MathFunction function, int base, int count) {
+        return switch (count) {
+            case 1 -> function.accept(args[base]);
+            case 2 -> function.accept(args[base], args[base + 1]);
+            case 3 -> function.accept(args[base], args[base + 1], args[base + 2]);
+            case 4 -> function.accept(args[base], args[base + 1], args[base + 2], args[base + 3]);
+            default -> function.accept(args, base, count);
+        };
+    }
+
+    private void push(double value) {
+        if (argsTop == args.length) args = Arrays.copyOf(args, args.length * 2);
+        args[argsTop++] = value;
+    }
 
-        if (progress('^')) x = Math.pow(x, firstImportance());
-        return x;
+    /**
+     * Parses a decimal literal in place. Malformed literals are evaluated as {@code 0}.
+     */
+    private double number() {
+        int start = pointer;
+        boolean spaced = false;
+        while (isDigit(current())) pointer++;
+        if (progress('.')) {
+            while (isDigit(current())) pointer++;
+            if (progress('e')) {
+                if (!progress('-')) progress('+');
+                while (isDigit(current())) pointer++;
+            }
+        }
+        for (int i = start; i < pointer && !spaced; i++) {
+            spaced = expression.charAt(i) == ' ';
+        }
+        if (!spaced) return DoubleParser.parseStrict(expression, start, pointer, 0);
+        StringBuilder builder = new StringBuilder(pointer - start);
+        for (int i = start; i < pointer; i++) {
+            char c = expression.charAt(i);
+            if (c != ' ') builder.append(c);
+        }
+        return DoubleParser.parseStrict(builder, 0, builder.length(), 0);
     }
 
     private char current() {
-        return expression.length() > pointer ? expression.charAt(pointer) : ' ';
+        int length = expression.length();
+        while (pointer < length && expression.charAt(pointer) == ' ') pointer++;
+        return pointer < length ? Character.toLowerCase(expression.charAt(pointer)) : ' ';
     }
 
     private boolean progress(char c) {
@@ -0,0 +1,194 @@
+package ink.glowing.math;
+
+import ink.glowing.math.MathDictionary.MathFunction;
+
+/**
+ * Approximations of the hottest built-in functions, trading accuracy for speed.
+ * <p>
+ * Arguments are reduced by powers of two or multiples of {@code pi/2}, and the rest is evaluated by polynomials
+ * interpolated at Chebyshev nodes, which are within a small factor of minimax ones. Special values, and arguments
+ * outside the ranges the reductions are accurate for, are handed to {@link Math}, so the approximations only differ
+ * from strict functions by the stated errors, and never in NaN, infinities or signs.
+ * @see MathDictionary#withFastMath()
+ */
+enum FastFunctions implements MathFunction {
+    /**
+     * Absolute error below {@code 1e-12} for {@code |a| < 1.6e6}, strict otherwise
+     */
+    SIN {
+        @Override
+        public double accept(double a) {
+            return sin(a);
+        }
+    },
+    /**
+     * Absolute error below {@code 1e-12} for {@code |a| < 1.6e6}, strict otherwise
+     */
+    COS {
+        @Override
+        public double accept(double a) {
+            return cos(a);
+        }
+    },
+    /**
+     * Relative error below {@code 1e-11} for {@code |a| < 708}, strict otherwise
+     */
+    EXP {
+        @Override
+        public double accept(double a) {
+            return exp(a);
+        }
+    },
+    /**
+     * Absolute error below {@code 1e-11} and relative error below {@code 1e-10} for positive normal numbers,
+     * strict otherwise
+     */
+    LOG {
+        @Override
+        public double accept(double a) {
+            return log(a);
+        }
+
+        @Override
+        public double accept(double a, double b) {
+            return log(a) / log(b);
+        }
+    },
+    /**
+     * Relative error below {@code 1e-10 * (1 + |b * ln(a)|)} for finite non-zero results, strict otherwise
+     */
+    POW {
+        @Override
+        public double accept(double a, double b) {
+            return pow(a, b);
+        }
+
+        @Override
+        public double accept(double a) {
+            return a;
+        }
+    };
+
+    private static final double LN2_HI = 6.93147180369123816490e-01; // upper 32 bits of ln(2)
+    private static final double LN2_LO = 1.90821492927058770002e-10;
+    private static final double LOG2E = 1.4426950408889634;
+    private static final double SQRT2 = 1.4142135623730951;
+    private static final double TWO_OVER_PI = 0.6366197723675814;
+    private static final double PIO2_1 = 1.57079632673412561417e+00; // upper 33 bits of pi/2
+    private static final double PIO2_2 = 6.07710050630396597660e-11; // next 33 bits
+    private static final double PIO2_3 = 2.02226624871116645580e-21;
+    /**
+     * Products of multiples of {@code pi/2} parts up to this one are exact
+     */
+    private static final double REDUCTION_LIMIT = 0x1p20 * Math.PI / 2;
+
+    private static final double E0 = 0.999999999995509;
+    private static final double E1 = 0.4999999999995511;
+    private static final double E2 = 0.16666666786308587;
+    private static final double E3 = 0.04166666678626573;
+    private static final double E4 = 0.008333283538708528;
+    private static final double E5 = 0.0013888839110572009;
+    private static final double E6 = 0.00019907569310848288;
+    private static final double E7 = 2.4867870179687727e-05;
+
+    private static final double L0 = 0.6666666655445165;
+    private static final double L1 = 0.40000121876972;
+    private static final double L2 = 0.2855081659971155;
+    private static final double L3 = 0.23330581938241896;
+
+    private static final double S0 = -0.16666666666663885;
+    private static final double S1 = 0.008333333331078323;
+    private static final double S2 = -0.00019841266916110632;
+    private static final double S3 = 2.7555990664728974e-06;
+    private static final double S4 = -2.4805611712122475e-08;
+
+    private static final double C0 = 0.041666666664320264;
+    private static final double C1 = -0.0013888887671652504;
+    private static final double C2 = 2.480060018036381e-05;
+    private static final double C3 = -2.7300933687212943e-07;
+
+    @Override
+    public boolean isPure() {
+        return true;
+    }
+
+    static double exp(double x) {
+        // Also rejects NaN; results beyond it may overflow or be subnormal
+        if (!(Math.abs(x) < 708)) return Math.exp(x);
+        double k = Math.rint(x * LOG2E);
+        double r = (x - k * LN2_HI) - k * LN2_LO;
+        // exp(r) = 1 + r * q(r), so that exp(0) is exactly 1
+        double p = 1 + r * (E0 + r * (E1 + r * (E2 + r * (E3 + r * (E4 + r * (E5 + r * (E6 + r * E7)))))));
+        return p * Double.longBitsToDouble((long) (k + 1023) << 52);
+    }
+
+    static double log(double x) {
+        if (!(x >= Double.MIN_NORMAL && x < Double.POSITIVE_INFINITY)) return Math.log(x);
+        long bits = Double.doubleToRawLongBits(x);
+        int e = (int) (bits >>> 52) - 1023;
+        double m = Double.longBitsToDouble(bits & 0x000FFFFFFFFFFFFFL | 0x3FF0000000000000L);
+        if (m > SQRT2) {
+            m *= 0.5;
+            e++;
+        }
+        // log(m) = 2 * atanh(s)
+        double s = (m - 1) / (m + 1);
+        double t = s * s;
+        double p = s * t * (L0 + t * (L1 + t * (L2 + t * L3)));
+        return e * LN2_HI + ((2 * s + p) + e * LN2_LO);
+    }
+
+    static double sin(double x) {
+        double abs = Math.abs(x);
+        if (abs < 0x1p-26) return x;
+        if (!(abs < REDUCTION_LIMIT)) return Math.sin(x);
+        double k = Math.rint(x * TWO_OVER_PI);
+        double r = ((x - k * PIO2_1) - k * PIO2_2) - k * PIO2_3;
+        return quadrant((int) k, r);
+    }
+
+    static double cos(double x) {
+        double abs = Math.abs(x);
+        if (!(abs < REDUCTION_LIMIT)) return Math.cos(x);
+        double k = Math.rint(abs * TWO_OVER_PI);
+        double r = ((abs - k * PIO2_1) - k * PIO2_2) - k * PIO2_3;
+        return quadrant((int) k + 1, r);
+    }
+
+    static double pow(double a, double b) {
+        if (a > 0 && a < Double.POSITIVE_INFINITY && Math.abs(b) < Double.POSITIVE_INFINITY) {
+            return exp(b * log(a));
+        } else if (a < 0 && a > Double.NEGATIVE_INFINITY && Math.abs(b) < 0x1p53 && b == Math.rint(b)) {
+            double result = exp(b * log(-a));
+            return b % 2 == 0 ? result : -result;
+        }
+        return Math.pow(a, b);
+    }
+
+    /**
+     * Sine of {@code q * pi/2 + r}. Both polynomials are evaluated and the result is picked without branches,
+     * as quadrants of arbitrary arguments are unpredictable.
+     */
+    private static double quadrant(int q, double r) {
+        double sin = sinPoly(r);
+        double cos = cosPoly(r);
+        double value = (q & 1) == 0 ? sin : cos;
+        return Double.longBitsToDouble(Double.doubleToRawLongBits(value) ^ ((long) (q & 2) << 62));
+    }
+
+    /**
+     * @param r argument within {@code [-pi/4, pi/4]}
+     */
+    private static double sinPoly(double r) {
+        double t = r * r;
+        return r + r * t * (S0 + t * (S1 + t * (S2 + t * (S3 + t * S4))));
+    }
+
+    /**
+     * @param r argument within {@code [-pi/4, pi/4]}
+     */
+    private static double cosPoly(double r) {
+        double t = r * r;
+        return (1 - 0.5 * t) + t * t * (C0 + t * (C1 + t * (C2 + t * C3)));
+    }
+}
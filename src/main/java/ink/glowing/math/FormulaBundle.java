@@ -0,0 +1,241 @@
+package ink.glowing.math;
+
+import ink.glowing.math.MathDictionary.MathFunction;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary format for bundles of compiled formulas, loaded without parsing any expressions.
+ * <p>
+ * Formulas are stored as {@link CompiledFormula.Backend#INTERPRETER interpreter} programs, along with the checksum
+ * of the dictionary they were compiled against. Names of variables and functions are shared across the whole bundle.
+ * <p>
+ * Layout, big-endian:
+ * <pre>
+ * int magic, short version, long dictionary checksum
+ * int names count, names: unsigned short length, UTF-8 bytes
+ * int formulas count, formulas:
+ *     int variables count, int[] name indexes
+ *     int functions count, int[] name indexes
+ *     int constants count, double[] constants
+ *     int max stack, int code length, int[] code
+ * </pre>
+ */
+public final class FormulaBundle {
+    private static final int MAGIC = 0x474C4D46; // GLMF
+    /**
+     * Version 2 adds comparison and jump instructions, version 3 adds junction ones, and version 4 switches to
+     * the order-independent {@link MathDictionary#checksum() checksum}, so older bundles are still readable
+     */
+    private static final short VERSION = 4;
+
+    private FormulaBundle() { }
+
+    /**
+     * Encodes formulas into a new buffer.
+     * @param formulas formulas to encode
+     * @param math dictionary formulas were compiled against
+     * @return buffer with the bundle, ready to be read
+     * @throws IllegalArgumentException if formulas use functions that aren't registered in the dictionary
+     */
+    public static ByteBuffer encode(List<CompiledFormula> formulas, MathDictionary math) {
+        List<String> names = new ArrayList<>();
+        Map<String, Integer> nameIndexes = new HashMap<>();
+        List<FormulaProgram> programs = new ArrayList<>(formulas.size());
+        int size = 4 + 2 + 8 + 4 + 4;
+        for (CompiledFormula formula : formulas) {
+            FormulaProgram program = formula.program();
+            String[] functionNames = program.functionNames();
+            MathFunction[] functions = program.functions();
+            for (int i = 0; i < functions.length; i++) {
+                if (math.getFunction(functionNames[i]) != functions[i]) {
+                    throw new IllegalArgumentException("Function '" + functionNames[i] + "' is not registered");
+                }
+                size += index(names, nameIndexes, functionNames[i]);
+            }
+            for (String variable : formula.variables()) {
+                size += index(names, nameIndexes, variable);
+            }
+            programs.add(program);
+            size += 4 * 5 + 4 * (formula.variables().size() + functions.length + program.code().length)
+                    + 8 * program.constants().length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC).putShort(VERSION).putLong(math.checksum());
+        buffer.putInt(names.size());
+        for (String name : names) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            buffer.putShort((short) bytes.length).put(bytes);
+        }
+        buffer.putInt(formulas.size());
+        for (int f = 0; f < formulas.size(); f++) {
+            FormulaProgram program = programs.get(f);
+            List<String> variables = formulas.get(f).variables();
+            buffer.putInt(variables.size());
+            for (String variable : variables) buffer.putInt(nameIndexes.get(variable));
+            buffer.putInt(program.functionNames().length);
+            for (String function : program.functionNames()) buffer.putInt(nameIndexes.get(function));
+            buffer.putInt(program.constants().length);
+            buffer.asDoubleBuffer().put(program.constants());
+            buffer.position(buffer.position() + 8 * program.constants().length);
+            buffer.putInt(program.maxStack());
+            buffer.putInt(program.code().length);
+            buffer.asIntBuffer().put(program.code());
+            buffer.position(buffer.position() + 4 * program.code().length);
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Size of a name entry if it's new to the bundle, or {@code 0}.
+     */
+    private static int index(List<String> names, Map<String, Integer> nameIndexes, String name) {
+        if (nameIndexes.putIfAbsent(name, names.size()) != null) return 0;
+        names.add(name);
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("Name '" + name + "' is too long");
+        }
+        return 2 + bytes.length;
+    }
+
+    /**
+     * Writes encoded formulas into a channel.
+     * @param formulas formulas to write
+     * @param math dictionary formulas were compiled against
+     * @param channel channel to write into
+     * @throws IOException if writing fails
+     * @see #encode(List, MathDictionary)
+     */
+    public static void write(List<CompiledFormula> formulas, MathDictionary math, WritableByteChannel channel)
+            throws IOException {
+        ByteBuffer buffer = encode(formulas, math);
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+
+    /**
+     * Writes encoded formulas into a file, replacing its contents.
+     * @param formulas formulas to write
+     * @param math dictionary formulas were compiled against
+     * @param path file to write into
+     * @throws IOException if writing fails
+     * @see #encode(List, MathDictionary)
+     */
+    public static void write(List<CompiledFormula> formulas, MathDictionary math, Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(formulas, math, channel);
+        }
+    }
+
+    /**
+     * Maps a file into memory and decodes formulas from it.
+     * @param path file to read
+     * @param math dictionary to resolve functions with, should be the one formulas were compiled against
+     * @return decoded formulas
+     * @throws IOException if reading fails
+     * @see #decode(ByteBuffer, MathDictionary)
+     */
+    public static List<CompiledFormula> read(Path path, MathDictionary math) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), math);
+        }
+    }
+
+    /**
+     * Decodes formulas from the buffer, starting at its position.
+     * Formulas are run by the {@link CompiledFormula.Backend#INTERPRETER interpreter} backend.
+     * @param buffer buffer to read from, its position is moved past the bundle
+     * @param math dictionary to resolve functions with, should be the one formulas were compiled against
+     * @return decoded formulas
+     * @throws IllegalArgumentException if the buffer doesn't hold a supported bundle, the bundle is truncated or
+     *                                  corrupt, or it was compiled against another dictionary
+     */
+    public static List<CompiledFormula> decode(ByteBuffer buffer, MathDictionary math) {
+        if (buffer.remaining() < 4 + 2 + 8 || buffer.getInt() != MAGIC) {
+            throw new IllegalArgumentException("Not a formula bundle");
+        }
+        short version = buffer.getShort();
+        if (version < 1 || version > VERSION) {
+            throw new IllegalArgumentException("Unsupported bundle version " + version);
+        }
+        if (buffer.getLong() != (version < 4 ? math.legacyChecksum() : math.checksum())) {
+            throw new IllegalArgumentException("Bundle was compiled against another dictionary");
+        }
+        try {
+            String[] names = new String[count(buffer, 2)];
+            for (int i = 0; i < names.length; i++) {
+                byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+                buffer.get(bytes);
+                names[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            // Functions are only resolved once per name
+            MathFunction[] resolved = new MathFunction[names.length];
+
+            int count = count(buffer, 4 * 5);
+            List<CompiledFormula> formulas = new ArrayList<>(count);
+            for (int f = 0; f < count; f++) {
+                String[] variables = new String[count(buffer, 4)];
+                for (int i = 0; i < variables.length; i++) variables[i] = names[index(buffer, names)];
+                String[] functionNames = new String[count(buffer, 4)];
+                MathFunction[] functions = new MathFunction[functionNames.length];
+                for (int i = 0; i < functions.length; i++) {
+                    int index = index(buffer, names);
+                    functionNames[i] = names[index];
+                    if (resolved[index] == null) {
+                        resolved[index] = math.getFunction(names[index]);
+                        if (resolved[index] == null) {
+                            throw new IllegalArgumentException("Function '" + names[index] + "' is not registered");
+                        }
+                    }
+                    functions[i] = resolved[index];
+                }
+                double[] constants = new double[count(buffer, 8)];
+                buffer.asDoubleBuffer().get(constants);
+                buffer.position(buffer.position() + 8 * constants.length);
+                int maxStack = buffer.getInt();
+                int[] code = new int[count(buffer, 4)];
+                buffer.asIntBuffer().get(code);
+                buffer.position(buffer.position() + 4 * code.length);
+                FormulaProgram program = new FormulaProgram(code, constants, functions, functionNames, maxStack);
+                program.verify(variables.length);
+                formulas.add(new CompiledFormula(program, math, variables));
+            }
+            return formulas;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Bundle is truncated", e);
+        }
+    }
+
+    /**
+     * Reads the amount of entries that follow, so that a corrupt one fails before anything is allocated for it.
+     * @param size least size of an entry
+     */
+    private static int count(ByteBuffer buffer, int size) {
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining() / size) {
+            throw new IllegalArgumentException("Bundle is corrupt: invalid count " + count);
+        }
+        return count;
+    }
+
+    private static int index(ByteBuffer buffer, String[] names) {
+        int index = buffer.getInt();
+        if (index < 0 || index >= names.length) {
+            throw new IllegalArgumentException("Bundle is corrupt: invalid name index " + index);
+        }
+        return index;
+    }
+}
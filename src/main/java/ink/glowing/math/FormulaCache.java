@@ -0,0 +1,177 @@
+package ink.glowing.math;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Thread-safe size-bounded cache of {@link CompiledFormula}s.
+ * <p>
+ * Formulas are keyed by their normalized expression, dictionary identity and declared variables.
+ * Hits are lock-free; insertions are serialized only for the eviction bookkeeping, which follows the CLOCK
+ * (second chance) approximation of LRU.
+ */
+public final class FormulaCache {
+    private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<>();
+    private final ArrayDeque<Entry> clock = new ArrayDeque<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final long maximumWeight;
+    private final boolean weighByNodes;
+    private final CompiledFormula.Backend backend;
+    private long weight;
+
+    /**
+     * Creates a cache holding up to {@code maximumSize} formulas compiled with the tree backend.
+     * @param maximumSize maximum amount of formulas
+     */
+    public FormulaCache(int maximumSize) {
+        this(maximumSize, false, CompiledFormula.Backend.TREE);
+    }
+
+    /**
+     * Creates a cache.
+     * @param maximumWeight maximum total weight of formulas
+     * @param weighByNodes whether a formula weighs the amount of nodes in its tree, or just {@code 1}
+     * @param backend backend to compile formulas for
+     */
+    public FormulaCache(long maximumWeight, boolean weighByNodes, CompiledFormula.Backend backend) {
+        if (maximumWeight <= 0) {
+            throw new IllegalArgumentException("Maximum weight should be positive");
+        }
+        this.maximumWeight = maximumWeight;
+        this.weighByNodes = weighByNodes;
+        this.backend = backend;
+    }
+
+    /**
+     * @see #compile(String, MathDictionary, String...)
+     */
+    public CompiledFormula compile(String expression, String... variables) {
+        return compile(expression, MathDictionary.INSTANCE, variables);
+    }
+
+    /**
+     * Gets a formula compiled against the latest dictionary of the registry.
+     * Formulas compiled against replaced dictionaries are never returned, and are evicted over time.
+     * @see #compile(String, MathDictionary, String...)
+     */
+    public CompiledFormula compile(String expression, MathRegistry registry, String... variables) {
+        return compile(expression, registry.current(), variables);
+    }
+
+    /**
+     * Gets a cached formula, or compiles and caches a new one.
+     * @param expression expression to compile
+     * @param math dictionary to get constants and functions from
+     * @param variables names of variables in their slot order
+     * @return compiled formula
+     * @throws IllegalArgumentException if the expression refers to undeclared variables or unknown functions
+     * @see FormulaEvaluator#compile(String, MathDictionary, String...)
+     */
+    public CompiledFormula compile(String expression, MathDictionary math, String... variables) {
+        String[] names = new String[variables.length];
+        for (int i = 0; i < variables.length; i++) {
+            names[i] = variables[i].toLowerCase(Locale.ROOT);
+        }
+        Key key = new Key(FormulaParser.normalize(expression), math, List.of(names));
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            entry.referenced = true;
+            hits.increment();
+            return entry.formula;
+        }
+        misses.increment();
+        CompiledFormula formula = FormulaEvaluator.compile(key.expression, math, names).withBackend(backend);
+        Entry created = new Entry(key, formula, weighByNodes ? Node.size(formula.root()) : 1);
+        Entry existing = entries.putIfAbsent(key, created);
+        if (existing != null) {
+            existing.referenced = true;
+            return existing.formula;
+        }
+        evictionLock.lock();
+        try {
+            clock.addLast(created);
+            weight += created.weight;
+            while (weight > maximumWeight) {
+                Entry candidate = clock.pollFirst();
+                if (candidate.referenced) {
+                    candidate.referenced = false;
+                    clock.addLast(candidate);
+                } else {
+                    entries.remove(candidate.key, candidate);
+                    weight -= candidate.weight;
+                    evictions.increment();
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+        return formula;
+    }
+
+    /**
+     * Removes all cached formulas. Doesn't reset the counters.
+     */
+    public void clear() {
+        evictionLock.lock();
+        try {
+            entries.clear();
+            clock.clear();
+            weight = 0;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * @return amount of cached formulas
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return amount of lookups that found a cached formula
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return amount of lookups that compiled a new formula
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return amount of formulas evicted to stay within the maximum weight
+     */
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    private record Key(String expression, MathDictionary math, List<String> variables) { }
+
+    private static final class Entry {
+        final Key key;
+        final CompiledFormula formula;
+        final int weight;
+        /**
+         * Accessed without synchronization, losing a hit only delays the eviction a bit
+         */
+        boolean referenced;
+
+        Entry(Key key, CompiledFormula formula, int weight) {
+            this.key = key;
+            this.formula = formula;
+            this.weight = weight;
+        }
+    }
+}
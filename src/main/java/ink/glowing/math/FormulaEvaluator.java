@@ -1,189 +1,288 @@
 package ink.glowing.math;
 
-import java.util.Arrays;
-import java.util.Locale;
+import ink.glowing.math.MathDictionary.MathFunction;
+import ink.glowing.math.Node.*;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.function.Function;
 
-import static ink.glowing.math.MathDictionary.*;
-
 /**
  * Better performance for repeating calculations over {@link ExpressionEvaluator}.
  * Unlike {@link ExpressionEvaluator}, accepts custom variables after expression compiling.
+ * <p>
+ * Instances are thread-safe, as long as the provided variables are safe to read concurrently. They're immutable
+ * unless the expression has window functions, like {@code rolling_avg(x, 10)}, which keep the latest samples
+ * of their first argument in the evaluator. Every evaluation of such a function takes a sample, in constant time
+ * however large the window is, so concurrent evaluations take samples in no particular order.
+ * @see #compile(String, String...)
  */
 public class FormulaEvaluator {
     private static final Term ZERO = (vars) -> 0;
 
-    private final MathDictionary math;
     private final Term term;
+    /**
+     * Listener the evaluator was created with, or {@code null} if instrumentation was disabled
+     */
+    private final FormulaListener listener;
+    private final String label;
+    /**
+     * Racy, as losing a few increments only shifts the sampling
+     */
+    private int evaluations;
 
     public FormulaEvaluator(String expression) {
         this(expression, MathDictionary.INSTANCE);
     }
 
+    /**
+     * @param expression expression to evaluate
+     * @param math dictionary to get constants and functions from
+     * @throws IllegalArgumentException if a window function is called without a constant size of at least {@code 1}
+     */
     public FormulaEvaluator(String expression, MathDictionary math) {
-        this.math = math;
-        this.term = thirdImportance(new PointerHolder(expression.replace(" ", "").toLowerCase(Locale.ROOT)));
+        this.listener = Instrumentation.listener;
+        this.label = listener == null ? null : FormulaParser.normalize(expression);
+        Node root = FormulaOptimizer.optimize(FormulaParser.parse(expression, math));
+        this.term = Node.depth(root) > Node.MAX_RECURSION ? interpret(root) : toTerm(root);
     }
 
-    public double eval(Map<String, Double> variables) {
-        return eval(variables::get);
+    /**
+     * Compiles an expression with a fixed set of variables, each bound to its index in {@code variables}.
+     * @param expression expression to compile
+     * @param variables names of variables in the order they're passed to {@link CompiledFormula#eval(double[])}
+     * @return compiled formula
+     * @throws IllegalArgumentException if the expression refers to undeclared variables or unknown functions
+     */
+    public static CompiledFormula compile(String expression, String... variables) {
+        return compile(expression, MathDictionary.INSTANCE, variables);
     }
 
-    public double eval(Function<String, Double> variables) {
-        return term.calc(variables);
+    /**
+     * Compiles an expression with a fixed set of variables, each bound to its index in {@code variables}.
+     * @param expression expression to compile
+     * @param math dictionary to get constants and functions from
+     * @param variables names of variables in the order they're passed to {@link CompiledFormula#eval(double[])}
+     * @return compiled formula
+     * @throws IllegalArgumentException if the expression refers to undeclared variables or unknown functions
+     */
+    public static CompiledFormula compile(String expression, MathDictionary math, String... variables) {
+        Node root = FormulaOptimizer.optimize(FormulaParser.parse(expression, math));
+        return new CompiledFormula(FormulaParser.normalize(expression), root, math, variables);
     }
 
-    private Term thirdImportance(PointerHolder holder) {
-        Term x = secondImportance(holder);
-        while (true) {
-            if (holder.progress('+')) {
-                Term a = x;
-                Term b = secondImportance(holder);
-                x = (vars) -> a.calc(vars) + b.calc(vars);
-            } else if (holder.progress('-')) {
-                Term a = x;
-                Term b = secondImportance(holder);
-                x = (vars) -> a.calc(vars) - b.calc(vars);
-            } else {
-                return x;
-            }
-        }
+    public double eval(Map<String, Double> variables) {
+        return eval(variables::get);
     }
 
-    private Term secondImportance(PointerHolder holder) {
-        Term x = firstImportance(holder);
-        while (true) {
-            if (holder.progress('*')) {
-                Term a = x;
-                Term b = firstImportance(holder);
-                x = (vars) -> a.calc(vars) * b.calc(vars);
-            } else if (holder.progress('/')) {
-                Term a = x;
-                Term b = firstImportance(holder);
-                x = (vars) -> a.calc(vars) / b.calc(vars);
-            } else if (holder.progress('%')) {
-                Term a = x;
-                Term b = firstImportance(holder);
-                x = (vars) -> a.calc(vars) % b.calc(vars);
-            } else {
-                return x;
-            }
+    public double eval(Function<String, Double> variables) {
+        if (listener == null) return term.calc(variables);
+        double result;
+        if (++evaluations % Instrumentation.SAMPLE_INTERVAL == 0) {
+            long start = System.nanoTime();
+            result = term.calc(variables);
+            listener.timed(label, System.nanoTime() - start);
+        } else {
+            result = term.calc(variables);
         }
+        listener.evaluated(label, result);
+        return result;
     }
 
-    private Term firstImportance(PointerHolder holder) {
-        if (holder.progress('-')) { // "-5", "--5"..
-            Term a = firstImportance(holder);
+    private Term toTerm(Node node) {
+        if (node instanceof Constant cons) {
+            double value = cons.value();
+            return (vars) -> value;
+        } else if (node instanceof Variable variable) {
+            String name = variable.name();
+            if (listener != null) {
+                FormulaListener listener = this.listener;
+                String label = this.label;
+                return (vars) -> {
+                    Double value = vars.apply(name);
+                    if (value != null) return value;
+                    listener.unknownIdentifier(label, name);
+                    return 0;
+                };
+            }
+            return (vars) -> {
+                Double value = vars.apply(name);
+                return value == null ? 0 : value;
+            };
+        } else if (node instanceof Negate negate) {
+            Term a = toTerm(negate.a());
             return (vars) -> -a.calc(vars);
-        }
-        //noinspection StatementWithEmptyBody
-        while (holder.progress('+')) /* just skip */; // "+5", "++5"..
-        Term x = ZERO;
-        int start = holder.pointer;
-        if (holder.progress('(')) {
-            x = thirdImportance(holder);
-            holder.progress(')');
-        } else if (isDigit(holder.current())) {
-            holder.pointer++;
-            while (isDigit(holder.current())) holder.pointer++;
-            if (holder.progress('.')) {
-                while (isDigit(holder.current())) holder.pointer++;
-                if (holder.progress('e')) {
-                    if (!holder.progress('-')) holder.progress('+');
-                    while (isDigit(holder.current())) holder.pointer++;
-                }
+        } else if (node instanceof Binary binary) {
+            Term a = toTerm(binary.a());
+            Term b = toTerm(binary.b());
+            return switch (binary.operator()) {
+                case '+' -> (vars) -> a.calc(vars) + b.calc(vars);
+                case '-' -> (vars) -> a.calc(vars) - b.calc(vars);
+                case '*' -> (vars) -> a.calc(vars) * b.calc(vars);
+                case '/' -> (vars) -> a.calc(vars) / b.calc(vars);
+                case '%' -> (vars) -> a.calc(vars) % b.calc(vars);
+                case '<' -> (vars) -> a.calc(vars) < b.calc(vars) ? 1 : 0;
+                case '≤' -> (vars) -> a.calc(vars) <= b.calc(vars) ? 1 : 0;
+                case '>' -> (vars) -> a.calc(vars) > b.calc(vars) ? 1 : 0;
+                case '≥' -> (vars) -> a.calc(vars) >= b.calc(vars) ? 1 : 0;
+                case '=' -> (vars) -> a.calc(vars) == b.calc(vars) ? 1 : 0;
+                case '≠' -> (vars) -> a.calc(vars) != b.calc(vars) ? 1 : 0;
+                default -> (vars) -> Math.pow(a.calc(vars), b.calc(vars));
+            };
+        } else if (node instanceof Chain chain) {
+            List<Node> operands = chain.operands();
+            Term[] terms = new Term[operands.size()];
+            for (int i = 0; i < terms.length; i++) terms[i] = toTerm(operands.get(i));
+            if (chain.isUniform('+')) {
+                return (vars) -> {
+                    double x = terms[0].calc(vars);
+                    for (int i = 1; i < terms.length; i++) x += terms[i].calc(vars);
+                    return x;
+                };
+            } else if (chain.isUniform('*')) {
+                return (vars) -> {
+                    double x = terms[0].calc(vars);
+                    for (int i = 1; i < terms.length; i++) x *= terms[i].calc(vars);
+                    return x;
+                };
             }
-            double a = asDouble(holder.substring(start, holder.pointer), 0);
-            x = (vars) -> a;
-        } else if (isLetter(holder.current())) {
-            holder.pointer++;
-            while (isLetter(holder.current()) || isDigit(holder.current())) holder.pointer++;
-            String str = holder.substring(start, holder.pointer);
-            if (holder.progress('(')) {
-                MathFunction function = math.getFunction(str);
-                Term a = thirdImportance(holder);
-                if (!holder.progress(',')) {
-                    if (function != null) {
-                        x = (vars) -> function.accept(a.calc(vars));
-                    }
-                } else {
-                    Term b = thirdImportance(holder);
-                    if (!holder.progress(',')) {
-                        if (function != null) {
-                            x = (vars) -> function.accept(a.calc(vars), b.calc(vars));
-                        }
-                    } else {
-                        Term[] args = {b, thirdImportance(holder)};
-                        while (holder.progress(',')) {
-                            args = Arrays.copyOfRange(args, 0, args.length + 1);
-                            args[args.length - 1] = thirdImportance(holder);
-                        }
-                        if (function != null) {
-                            Term[] finArgs = args;
-                            x = (vars) -> {
-                                double[] numArgs = new double[finArgs.length];
-                                for (int i = 0; i < finArgs.length; i++)
-                                    numArgs[i] = finArgs[i].calc(vars);
-                                return function.accept(a.calc(vars), numArgs);
-                            };
-                        }
+            char[] operators = chain.operators().toCharArray();
+            return (vars) -> {
+                double x = terms[0].calc(vars);
+                for (int i = 1; i < terms.length; i++) {
+                    x = FormulaOptimizer.apply(operators[i - 1], x, terms[i].calc(vars));
+                }
+                return x;
+            };
+        } else if (node instanceof Condition condition) {
+            Term test = toTerm(condition.test());
+            Term then = toTerm(condition.then());
+            Term otherwise = toTerm(condition.otherwise());
+            return (vars) -> test.calc(vars) != 0 ? then.calc(vars) : otherwise.calc(vars);
+        } else if (node instanceof Junction junction) {
+            List<Node> operands = junction.operands();
+            Term[] terms = new Term[operands.size()];
+            for (int i = 0; i < terms.length; i++) terms[i] = toTerm(operands.get(i));
+            if (junction.operator() == '&') {
+                return (vars) -> {
+                    for (Term term : terms) {
+                        if (term.calc(vars) == 0) return 0;
                     }
+                    return 1;
+                };
+            }
+            return (vars) -> {
+                for (Term term : terms) {
+                    if (term.calc(vars) != 0) return 1;
                 }
-                holder.progress(')');
-            } else {
-                Double cons = math.getConstant(str);
-                if (cons == null) {
-                    x = (vars) -> {
-                        Double value = vars.apply(str);
-                        return value == null ? 0 : value;
-                    };
-                } else {
-                    double consValue = cons;
-                    x = (vars) -> consValue;
+                return 0;
+            };
+        }
+        Call call = (Call) node;
+        MathFunction function = call.function();
+        if (function == null) {
+            RollingWindow window = window(call);
+            if (window == null) return ZERO;
+            Term a = toTerm(call.args().get(0));
+            return (vars) -> {
+                double value = a.calc(vars);
+                synchronized (window) {
+                    return window.add(value);
                 }
-            }
+            };
         }
-
-        if (holder.progress('^')) {
-            Term a = x;
-            Term b = firstImportance(holder);
-            x = (vars) -> Math.pow(a.calc(vars), b.calc(vars));
+        List<Node> args = call.args();
+        Term a = toTerm(args.get(0));
+        if (args.size() == 1) {
+            return (vars) -> function.accept(a.calc(vars));
         }
-        return x;
-    }
-
-    @FunctionalInterface
-    private interface Term {
-        double calc(Function<String, Double> vars);
+        Term b = toTerm(args.get(1));
+        if (args.size() == 2) {
+            return (vars) -> function.accept(a.calc(vars), b.calc(vars));
+        }
+        Term c = toTerm(args.get(2));
+        if (args.size() == 3) {
+            return (vars) -> function.accept(a.calc(vars), b.calc(vars), c.calc(vars));
+        }
+        Term d = toTerm(args.get(3));
+        if (args.size() == 4) {
+            return (vars) -> function.accept(a.calc(vars), b.calc(vars), c.calc(vars), d.calc(vars));
+        }
+        Term[] finArgs = new Term[args.size()];
+        finArgs[0] = a;
+        finArgs[1] = b;
+        finArgs[2] = c;
+        finArgs[3] = d;
+        for (int i = 4; i < finArgs.length; i++) {
+            finArgs[i] = toTerm(args.get(i));
+        }
+        return (vars) -> {
+            EvalStack stack = EvalStack.local();
+            int base = stack.reserve(finArgs.length);
+            try {
+                for (int i = 0; i < finArgs.length; i++) {
+                    double value = finArgs[i].calc(vars);
+                    stack.data[base + i] = value;
+                }
+                return function.accept(stack.data, base, finArgs.length);
+            } finally {
+                stack.top = base;
+            }
+        };
     }
 
     /**
-     * Used in parse process to unload origin after ending of parse
+     * Evaluates a tree nested too deeply for the recursive terms with {@link FormulaProgram}, looking up each
+     * variable when it's first needed, like the terms do. Calls of window functions are bound to functions taking
+     * samples into their own windows, and calls of unknown functions are replaced with zero.
      */
-    private static final class PointerHolder {
-        final String origin;
-        int pointer;
-
-        PointerHolder(String origin) {
-            this.origin = origin;
-            this.pointer = 0;
-        }
-
-        String substring(int start, int end) {
-            return origin.substring(start, end);
+    private Term interpret(Node root) {
+        Node bound = Node.walk(root, (node, args) -> {
+            if (!(node instanceof Call call) || call.function() != null) return Node.withChildren(node, args);
+            RollingWindow window = window(call);
+            if (window == null) return new Constant(0);
+            MathFunction sample = (value) -> {
+                synchronized (window) {
+                    return window.add(value);
+                }
+            };
+            return new Call(call.name(), sample, List.copyOf(args));
+        });
+        Set<String> names = new LinkedHashSet<>();
+        Node.variables(bound, names);
+        Map<String, Integer> slots = new HashMap<>(names.size());
+        Term[] loads = new Term[names.size()];
+        for (String name : names) {
+            loads[slots.size()] = toTerm(new Variable(name));
+            slots.put(name, slots.size());
         }
+        FormulaProgram program = FormulaProgram.compile(bound, slots, true);
+        FormulaProgram.Fetch<Function<String, Double>> fetch = (vars, slot) -> loads[slot].calc(vars);
+        return (vars) -> program.calc(fetch, vars, loads.length);
+    }
 
-        char current() {
-            return origin.length() > pointer ? origin.charAt(pointer) : ' ';
+    /**
+     * @return empty window for the call, or {@code null} if it isn't a window function
+     * @throws IllegalArgumentException if the call of a window function has no valid constant size
+     */
+    private static RollingWindow window(Call call) {
+        if (!RollingWindow.isWindow(call.name())) return null;
+        List<Node> args = call.args();
+        RollingWindow window = args.size() == 2 && args.get(1) instanceof Constant size
+                ? RollingWindow.of(call.name(), size.value())
+                : null;
+        if (window == null) {
+            throw new IllegalArgumentException("Window function '" + call.name()
+                    + "' takes a value and a constant size of at least 1");
         }
+        return window;
+    }
 
-        boolean progress(char c) {
-            if (current() == c) {
-                pointer++;
-                return true;
-            }
-            return false;
-        }
+    @FunctionalInterface
+    private interface Term {
+        double calc(Function<String, Double> vars);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,258 @@
+package ink.glowing.math;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Spreadsheet-like graph of named cells, where formulas refer to other cells as variables.
+ * <p>
+ * Changing a cell only marks the cells that depend on it as dirty; recomputation evaluates just them,
+ * level by level of the dependency order, so cells of the same level can be evaluated in parallel.
+ * Cells that were never defined are inputs with the value of {@code 0}.
+ * <p>
+ * The graph itself is not thread-safe.
+ */
+public final class FormulaGraph {
+    /**
+     * Minimal amount of cells of a single level to evaluate in parallel
+     */
+    private static final int PARALLEL_THRESHOLD = 64;
+
+    private final MathDictionary math;
+    private final Map<String, Cell> cells = new HashMap<>();
+    private final Set<Cell> dirty = new LinkedHashSet<>();
+
+    public FormulaGraph() {
+        this(MathDictionary.INSTANCE);
+    }
+
+    /**
+     * @param math dictionary to get constants and functions from
+     */
+    public FormulaGraph(MathDictionary math) {
+        this.math = math;
+    }
+
+    /**
+     * Sets a cell to a constant value, dropping its formula if it had one.
+     * @param name name of cell
+     * @param value value of cell
+     */
+    public void set(String name, double value) {
+        Cell cell = cell(name.toLowerCase(Locale.ROOT));
+        link(cell, null, new Cell[0]);
+        cell.value = value;
+        markDirty(cell);
+    }
+
+    /**
+     * Sets a cell to a formula.
+     * @param name name of cell
+     * @param expression formula, other cells are referred to by their names
+     * @throws IllegalArgumentException if the formula depends on the cell itself, or refers to unknown functions
+     */
+    public void define(String name, String expression) {
+        String key = name.toLowerCase(Locale.ROOT);
+        Node root = FormulaOptimizer.optimize(FormulaParser.parse(expression, math));
+        Set<String> variables = new LinkedHashSet<>();
+        Node.variables(root, variables);
+        if (variables.contains(key) || dependsOn(variables, key)) {
+            throw new IllegalArgumentException("Formula of '" + key + "' depends on itself");
+        }
+        CompiledFormula formula = new CompiledFormula(FormulaParser.normalize(expression), root, math,
+                variables.toArray(new String[0]));
+        Cell[] dependencies = new Cell[variables.size()];
+        int i = 0;
+        for (String variable : variables) dependencies[i++] = cell(variable);
+        Cell cell = cell(key);
+        link(cell, formula, dependencies);
+        markDirty(cell);
+    }
+
+    /**
+     * Gets the value of a cell, recomputing dirty cells first.
+     * @param name name of cell
+     * @return value of cell, or {@code 0} if it was never defined
+     */
+    public double get(String name) {
+        Cell cell = cells.get(name.toLowerCase(Locale.ROOT));
+        if (cell == null) return 0;
+        if (!dirty.isEmpty()) recompute();
+        return cell.value;
+    }
+
+    /**
+     * Recomputes dirty cells in the current thread.
+     */
+    public void recompute() {
+        recompute(null);
+    }
+
+    /**
+     * Recomputes dirty cells, evaluating large levels of independent cells in the pool.
+     * @param pool pool to evaluate cells in, or {@code null} to evaluate them in the current thread
+     */
+    public void recompute(ForkJoinPool pool) {
+        for (List<Cell> level : levels(dirty)) {
+            if (pool != null && level.size() >= PARALLEL_THRESHOLD) {
+                pool.invoke(new LevelTask(level, 0, level.size()));
+            } else {
+                for (Cell cell : level) cell.eval();
+            }
+        }
+        dirty.clear();
+    }
+
+    /**
+     * @return amount of cells that will be evaluated on the next recomputation
+     */
+    public int dirtyCount() {
+        int count = 0;
+        for (Cell cell : dirty) {
+            if (cell.formula != null) count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return names of cells with formulas, each one following the cells it depends on
+     */
+    public List<String> order() {
+        List<String> order = new ArrayList<>();
+        for (List<Cell> level : levels(new HashSet<>(cells.values()))) {
+            for (Cell cell : level) order.add(cell.name);
+        }
+        return order;
+    }
+
+    /**
+     * Groups cells with formulas by their depth in the dependency graph, only counting the provided cells.
+     */
+    private static List<List<Cell>> levels(Set<Cell> scope) {
+        // Kahn's algorithm, as chains of cells can be too long to recurse over
+        Map<Cell, Integer> pending = new IdentityHashMap<>();
+        List<Cell> level = new ArrayList<>();
+        for (Cell cell : scope) {
+            if (cell.formula == null) continue;
+            int count = 0;
+            for (Cell dependency : cell.dependencies) {
+                if (dependency.formula != null && scope.contains(dependency)) count++;
+            }
+            if (count == 0) {
+                level.add(cell);
+            } else {
+                pending.put(cell, count);
+            }
+        }
+        List<List<Cell>> levels = new ArrayList<>();
+        while (!level.isEmpty()) {
+            levels.add(level);
+            List<Cell> next = new ArrayList<>();
+            for (Cell cell : level) {
+                for (Cell dependent : cell.dependents) {
+                    Integer count = pending.get(dependent);
+                    if (count == null) continue;
+                    if (count == 1) {
+                        pending.remove(dependent);
+                        next.add(dependent);
+                    } else {
+                        pending.put(dependent, count - 1);
+                    }
+                }
+            }
+            level = next;
+        }
+        return levels;
+    }
+
+    private boolean dependsOn(Set<String> variables, String name) {
+        Cell target = cells.get(name);
+        if (target == null || target.dependents.isEmpty()) return false;
+        Set<Cell> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        ArrayDeque<Cell> queue = new ArrayDeque<>();
+        for (String variable : variables) {
+            Cell cell = cells.get(variable);
+            if (cell != null) queue.add(cell);
+        }
+        while (!queue.isEmpty()) {
+            Cell cell = queue.poll();
+            if (cell == target) return true;
+            if (visited.add(cell)) Collections.addAll(queue, cell.dependencies);
+        }
+        return false;
+    }
+
+    private Cell cell(String name) {
+        return cells.computeIfAbsent(name, Cell::new);
+    }
+
+    private static void link(Cell cell, CompiledFormula formula, Cell[] dependencies) {
+        for (Cell dependency : cell.dependencies) dependency.dependents.remove(cell);
+        for (Cell dependency : dependencies) dependency.dependents.add(cell);
+        cell.formula = formula;
+        cell.dependencies = dependencies;
+        cell.vars = new double[dependencies.length];
+    }
+
+    private void markDirty(Cell cell) {
+        ArrayDeque<Cell> queue = new ArrayDeque<>();
+        queue.add(cell);
+        while (!queue.isEmpty()) {
+            Cell next = queue.poll();
+            if (dirty.add(next)) queue.addAll(next.dependents);
+        }
+    }
+
+    private static final class Cell {
+        private final String name;
+        private final Set<Cell> dependents = new LinkedHashSet<>();
+        private CompiledFormula formula;
+        private Cell[] dependencies = new Cell[0];
+        private double[] vars = new double[0];
+        private double value;
+
+        private Cell(String name) {
+            this.name = name;
+        }
+
+        private void eval() {
+            for (int i = 0; i < dependencies.length; i++) vars[i] = dependencies[i].value;
+            value = formula.eval(vars);
+        }
+    }
+
+    private static final class LevelTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Cell> level;
+        private final int from;
+        private final int to;
+
+        LevelTask(List<Cell> level, int from, int to) {
+            this.level = level;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= PARALLEL_THRESHOLD) {
+                for (int i = from; i < to; i++) level.get(i).eval();
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new LevelTask(level, from, middle), new LevelTask(level, middle, to));
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package ink.glowing.math;
+
+/**
+ * Receives instrumentation of parsing, compilation and evaluation once {@link Instrumentation#enable enabled}.
+ * <p>
+ * Formulas are identified by their expressions. Methods may be called from many threads at once, and are called
+ * on the hot path, so they should be cheap and never throw.
+ * @see FormulaMetrics
+ */
+public interface FormulaListener {
+    /**
+     * @param expression parsed expression, normalized
+     * @param nanos time spent parsing
+     */
+    default void parsed(String expression, long nanos) { }
+
+    /**
+     * @param expression expression of the compiled formula, or {@code null} if it's unknown
+     * @param backend backend the formula was compiled for
+     * @param nanos time spent compiling
+     */
+    default void compiled(String expression, CompiledFormula.Backend backend, long nanos) { }
+
+    /**
+     * Called for every evaluation of formulas created while instrumentation was enabled.
+     * @param expression evaluated expression, or {@code null} if it's unknown
+     * @param result result of evaluation
+     */
+    default void evaluated(String expression, double result) { }
+
+    /**
+     * Called for one of every {@link Instrumentation#SAMPLE_INTERVAL} evaluations of a formula.
+     * @param expression evaluated expression, or {@code null} if it's unknown
+     * @param nanos time spent evaluating
+     */
+    default void timed(String expression, long nanos) { }
+
+    /**
+     * Called when a name is neither a known function, constant nor provided variable, and is evaluated as {@code 0}.
+     * @param expression expression containing the name
+     * @param name the unknown name
+     */
+    default void unknownIdentifier(String expression, String name) { }
+}
@@ -0,0 +1,181 @@
+package ink.glowing.math;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Listener collecting metrics per expression, safe to use from many threads.
+ * <p>
+ * Formulas compiled from trees, rather than expressions, are accounted under {@link #UNKNOWN}.
+ */
+public final class FormulaMetrics implements FormulaListener {
+    /**
+     * Key of metrics for formulas without an expression
+     */
+    public static final String UNKNOWN = "<unknown>";
+
+    private final ConcurrentHashMap<String, Stats> stats = new ConcurrentHashMap<>();
+
+    @Override
+    public void parsed(String expression, long nanos) {
+        Stats stats = of(expression);
+        stats.parses.increment();
+        stats.parseNanos.add(nanos);
+    }
+
+    @Override
+    public void compiled(String expression, CompiledFormula.Backend backend, long nanos) {
+        Stats stats = of(expression);
+        stats.compilations.increment();
+        stats.compileNanos.add(nanos);
+    }
+
+    @Override
+    public void evaluated(String expression, double result) {
+        Stats stats = of(expression);
+        stats.evaluations.increment();
+        if (Double.isNaN(result)) {
+            stats.nans.increment();
+        } else if (Double.isInfinite(result)) {
+            stats.infinities.increment();
+        }
+    }
+
+    @Override
+    public void timed(String expression, long nanos) {
+        of(expression).latencies.incrementAndGet(63 - Long.numberOfLeadingZeros(Math.max(nanos, 1)));
+    }
+
+    @Override
+    public void unknownIdentifier(String expression, String name) {
+        of(expression).unknownIdentifiers.increment();
+    }
+
+    /**
+     * @param expression normalized expression, or {@link #UNKNOWN}
+     * @return metrics of the expression, or {@code null} if nothing was reported for it
+     */
+    public Stats stats(String expression) {
+        return stats.get(expression);
+    }
+
+    /**
+     * @return expressions that have metrics
+     */
+    public Set<String> expressions() {
+        return Set.copyOf(stats.keySet());
+    }
+
+    /**
+     * Forgets all the collected metrics.
+     */
+    public void reset() {
+        stats.clear();
+    }
+
+    private Stats of(String expression) {
+        return stats.computeIfAbsent(expression == null ? UNKNOWN : expression, (key) -> new Stats());
+    }
+
+    /**
+     * Metrics of a single expression. Counters are updated concurrently, so they may be slightly inconsistent
+     * with each other while evaluations are running.
+     */
+    public static final class Stats {
+        private final LongAdder parses = new LongAdder();
+        private final LongAdder parseNanos = new LongAdder();
+        private final LongAdder compilations = new LongAdder();
+        private final LongAdder compileNanos = new LongAdder();
+        private final LongAdder evaluations = new LongAdder();
+        private final LongAdder nans = new LongAdder();
+        private final LongAdder infinities = new LongAdder();
+        private final LongAdder unknownIdentifiers = new LongAdder();
+        /**
+         * Sampled evaluations by the highest bit of their latency in nanoseconds
+         */
+        private final AtomicLongArray latencies = new AtomicLongArray(64);
+
+        private Stats() { }
+
+        public long parses() {
+            return parses.sum();
+        }
+
+        public long parseNanos() {
+            return parseNanos.sum();
+        }
+
+        public long compilations() {
+            return compilations.sum();
+        }
+
+        public long compileNanos() {
+            return compileNanos.sum();
+        }
+
+        public long evaluations() {
+            return evaluations.sum();
+        }
+
+        /**
+         * @return amount of evaluations resulting in NaN
+         */
+        public long nans() {
+            return nans.sum();
+        }
+
+        /**
+         * @return amount of evaluations resulting in positive or negative infinity
+         */
+        public long infinities() {
+            return infinities.sum();
+        }
+
+        /**
+         * @return amount of unknown names met, once per name and evaluation for interpreted expressions,
+         * or once per name and compilation otherwise
+         */
+        public long unknownIdentifiers() {
+            return unknownIdentifiers.sum();
+        }
+
+        /**
+         * @return amount of timed evaluations
+         */
+        public long samples() {
+            long samples = 0;
+            for (int i = 0; i < latencies.length(); i++) samples += latencies.get(i);
+            return samples;
+        }
+
+        /**
+         * @param bucket power of two
+         * @return amount of timed evaluations that took from {@code 2^bucket} to {@code 2^(bucket+1)} nanoseconds
+         */
+        public long latencyBucket(int bucket) {
+            return latencies.get(bucket);
+        }
+
+        /**
+         * @param percentile percentile, from {@code 0} to {@code 100}
+         * @return upper bound of the percentile of timed evaluations, in nanoseconds, precise up to a factor of two,
+         * or {@code 0} if there were none
+         */
+        public long latencyPercentile(double percentile) {
+            if (!(percentile >= 0 && percentile <= 100)) {
+                throw new IllegalArgumentException("Percentile should be within [0, 100]");
+            }
+            long samples = samples();
+            if (samples == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(samples * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < latencies.length(); i++) {
+                seen += latencies.get(i);
+                if (seen >= rank) return i == 62 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package ink.glowing.math;
+
+import ink.glowing.math.MathDictionary.MathFunction;
+import ink.glowing.math.Node.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Folds constant subtrees of a formula and rewrites a few operations into cheaper, yet bit-identical forms.
+ * <p>
+ * Only rewrites that hold for every input, including NaN, infinities and signed zeros, are applied.
+ * Calls of functions that aren't {@link MathDictionary.MathFunction#isPure() pure} are never folded.
+ */
+final class FormulaOptimizer {
+    private FormulaOptimizer() { }
+
+    static Node optimize(Node node) {
+        return Node.walk(node, FormulaOptimizer::optimize);
+    }
+
+    /**
+     * @param args optimized children of the node
+     */
+    private static Node optimize(Node node, List<Node> args) {
+        if (node instanceof Negate) {
+            Node a = args.get(0);
+            if (a instanceof Constant cons) return new Constant(-cons.value());
+            if (a instanceof Negate inner) return inner.a();
+            return new Negate(a);
+        } else if (node instanceof Binary binary) {
+            return optimize(binary.operator(), args.get(0), args.get(1));
+        } else if (node instanceof Chain chain) {
+            return optimize(chain, args);
+        } else if (node instanceof Junction junction) {
+            return optimize(junction, args);
+        } else if (node instanceof Condition) {
+            Node test = args.get(0);
+            if (test instanceof Constant cons) return cons.value() != 0 ? args.get(1) : args.get(2);
+            return new Condition(test, args.get(1), args.get(2));
+        } else if (node instanceof Call call) {
+            boolean constant = true;
+            for (Node arg : args) constant &= arg instanceof Constant;
+            if (constant && MathDictionary.isDeterministic(call.function())) {
+                return new Constant(apply(call.function(), args));
+            }
+            return new Call(call.name(), call.function(), List.copyOf(args));
+        }
+        return node;
+    }
+
+    private static Node optimize(char operator, Node a, Node b) {
+        if (a instanceof Constant consA && b instanceof Constant consB) {
+            return new Constant(apply(operator, consA.value(), consB.value()));
+        }
+        switch (operator) {
+            case '+' -> { // only -0 is an identity for addition, as -0 + 0 == +0
+                if (isExactly(b, -0D)) return a;
+                if (isExactly(a, -0D)) return b;
+            }
+            case '-' -> {
+                if (isExactly(b, 0D)) return a;
+            }
+            case '*' -> {
+                if (isExactly(b, 1D)) return a;
+                if (isExactly(a, 1D)) return b;
+                if (isExactly(b, -1D)) return new Negate(a);
+                if (isExactly(a, -1D)) return new Negate(b);
+            }
+            case '/' -> {
+                if (isExactly(b, 1D)) return a;
+            }
+            case '^' -> {
+                if (isExactly(b, 1D)) return a;
+                if (isExactly(b, 2D) && a instanceof Variable) return new Binary('*', a, a);
+            }
+            case '≠' -> { // comparisons and junctions already result in 1 or 0
+                if (b instanceof Constant cons && cons.value() == 0 && Node.isBoolean(a)) return a;
+            }
+        }
+        return new Binary(operator, a, b);
+    }
+
+    /**
+     * Folds leading operands of a chain like a sequence of binary operations, then drops identities from the rest.
+     */
+    private static Node optimize(Chain chain, List<Node> args) {
+        List<Node> operands = new ArrayList<>(args.size());
+        StringBuilder operators = new StringBuilder(chain.operators().length());
+        Node first = args.get(0);
+        if (first instanceof Chain inner && inner.isAdditive() == chain.isAdditive()) {
+            operands.addAll(inner.operands());
+            operators.append(inner.operators());
+        } else {
+            operands.add(first);
+        }
+        for (int i = 1; i < args.size(); i++) {
+            char operator = chain.operators().charAt(i - 1);
+            Node b = args.get(i);
+            if (operands.size() == 1) {
+                Node a = operands.get(0);
+                Node folded = optimize(operator, a, b);
+                if (!(folded instanceof Binary binary && binary.a() == a && binary.b() == b)) {
+                    operands.set(0, folded);
+                    continue;
+                }
+            } else if (isIdentity(operator, b)) {
+                continue;
+            }
+            operands.add(b);
+            operators.append(operator);
+        }
+        return Node.fold(operands, operators);
+    }
+
+    /**
+     * Flattens nested junctions of the same kind, drops constants that never decide the result, and operands after
+     * a constant that always does.
+     */
+    static Node optimize(Junction junction, List<Node> args) {
+        List<Node> operands = new ArrayList<>(args.size());
+        for (Node arg : args) {
+            if (arg instanceof Junction inner && inner.operator() == junction.operator()) {
+                operands.addAll(inner.operands());
+            } else {
+                operands.add(arg);
+            }
+        }
+        List<Node> kept = new ArrayList<>(operands.size());
+        for (Node operand : operands) {
+            if (operand instanceof Constant cons) {
+                if (!junction.decides(cons.value())) continue;
+                if (kept.isEmpty()) return new Constant(junction.decided());
+                kept.add(operand);
+                break;
+            }
+            kept.add(operand);
+        }
+        return switch (kept.size()) {
+            case 0 -> new Constant(1 - junction.decided());
+            case 1 -> Node.isBoolean(kept.get(0)) ? kept.get(0) : new Binary('≠', kept.get(0), new Constant(0));
+            default -> new Junction(junction.operator(), List.copyOf(kept));
+        };
+    }
+
+    /**
+     * @return whether applying the operator with the right operand results in the left one
+     */
+    private static boolean isIdentity(char operator, Node b) {
+        return switch (operator) {
+            case '+' -> isExactly(b, -0D);
+            case '-' -> isExactly(b, 0D);
+            case '*', '/' -> isExactly(b, 1D);
+            default -> false;
+        };
+    }
+
+    private static boolean isExactly(Node node, double value) {
+        return node instanceof Constant cons
+                && Double.doubleToRawLongBits(cons.value()) == Double.doubleToRawLongBits(value);
+    }
+
+    static double apply(char operator, double a, double b) {
+        return switch (operator) {
+            case '+' -> a + b;
+            case '-' -> a - b;
+            case '*' -> a * b;
+            case '/' -> a / b;
+            case '%' -> a % b;
+            case '<' -> a < b ? 1 : 0;
+            case '≤' -> a <= b ? 1 : 0;
+            case '>' -> a > b ? 1 : 0;
+            case '≥' -> a >= b ? 1 : 0;
+            case '=' -> a == b ? 1 : 0;
+            case '≠' -> a != b ? 1 : 0;
+            default -> Math.pow(a, b);
+        };
+    }
+
+    private static double apply(MathFunction function, List<Node> args) {
+        double[] values = new double[args.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = ((Constant) args.get(i)).value();
+        }
+        return function.accept(values, 0, values.length);
+    }
+}
@@ -0,0 +1,353 @@
+package ink.glowing.math;
+
+import ink.glowing.math.Node.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static ink.glowing.math.MathDictionary.*;
+
+/**
+ * Builds the {@link Node} tree of an expression.
+ * <p>
+ * Operators are kept on explicit stacks rather than in recursive calls, so parsing takes linear time and constant
+ * depth of the Java stack however long or nested the expression is. Runs of {@code + -} and of {@code * / %}
+ * are collected into {@link Chain chains}, and runs of {@code &&} or {@code ||} into {@link Junction junctions},
+ * so the tree stays shallow too.
+ */
+final class FormulaParser {
+    private static final Node ZERO = new Constant(0);
+    static final char NEGATE = '~';
+    static final char GROUP = '(';
+    static final char CALL = '$';
+
+    private final String origin;
+    private final MathDictionary math;
+    private final FormulaListener listener;
+    private int pointer;
+    /**
+     * Operands, or {@code null} where they're chains still being built
+     */
+    private final List<Node> values = new ArrayList<>();
+    private final List<Fold> folds = new ArrayList<>();
+    private final List<Pending> operators = new ArrayList<>();
+
+    private FormulaParser(String origin, MathDictionary math, FormulaListener listener) {
+        this.origin = origin;
+        this.math = math;
+        this.listener = listener;
+    }
+
+    static String normalize(String expression) {
+        return expression.replace(" ", "").toLowerCase(Locale.ROOT);
+    }
+
+    static Node parse(String expression, MathDictionary math) {
+        String origin = normalize(expression);
+        FormulaListener listener = Instrumentation.listener;
+        ParseEvent event = new ParseEvent();
+        event.begin();
+        long start = listener == null ? 0 : System.nanoTime();
+        Node root = new FormulaParser(origin, math, listener).parse();
+        if (listener != null) listener.parsed(origin, System.nanoTime() - start);
+        if (event.shouldCommit()) {
+            event.expression = origin;
+            event.nodes = Node.size(root);
+            event.commit();
+        }
+        return root;
+    }
+
+    /**
+     * Parses operands and operators in turns, until the expression ends or meets something unexpected.
+     */
+    private Node parse() {
+        do {
+            operand();
+        } while (operator());
+        while (!operators.isEmpty()) {
+            if (isGroup(top().operator())) {
+                close();
+            } else {
+                reduce();
+            }
+        }
+        return pop();
+    }
+
+    /**
+     * Reads prefix operators and opening parentheses up to the next operand, which is {@code 0} if it's missing.
+     */
+    private void operand() {
+        while (true) {
+            if (progress('-')) { // "-5", "--5"..
+                operators.add(new Pending(NEGATE, 0, 0, 0));
+                continue;
+            }
+            if (progress('+')) continue; // "+5", "++5"..
+            int start = pointer;
+            if (progress('(')) {
+                operators.add(new Pending(GROUP, values.size(), start, start));
+                continue;
+            }
+            if (isDigit(current())) {
+                pointer++;
+                while (isDigit(current())) pointer++;
+                if (progress('.')) {
+                    while (isDigit(current())) pointer++;
+                    if (progress('e')) {
+                        if (!progress('-')) progress('+');
+                        while (isDigit(current())) pointer++;
+                    }
+                }
+                push(new Constant(DoubleParser.parseStrict(origin, start, pointer, 0)));
+            } else if (isLetter(current())) {
+                pointer++;
+                while (isLetter(current()) || isDigit(current())) pointer++;
+                int end = pointer;
+                if (progress('(')) {
+                    operators.add(new Pending(CALL, values.size(), start, end));
+                    continue;
+                }
+                int id = math.constantId(origin, start, end);
+                push(id < 0 ? new Variable(origin.substring(start, end)) : new Constant(math.constant(id)));
+            } else {
+                push(ZERO);
+            }
+            return;
+        }
+    }
+
+    /**
+     * Reads closing parentheses and the infix operator after an operand.
+     * @return {@code false} if the expression ends
+     */
+    private boolean operator() {
+        while (true) {
+            char operator = infix();
+            switch (operator) {
+                case ')' -> {
+                    if (!reduceGroup()) return false;
+                    close();
+                }
+                case ',' -> {
+                    return reduceGroup() && top().operator() == CALL;
+                }
+                case '?' -> {
+                    reduceAbove(precedence('?'));
+                    operators.add(new Pending('?', 0, 0, 0));
+                    return true;
+                }
+                case ':' -> {
+                    while (!operators.isEmpty() && (top().operator() == ':' || precedence(top().operator()) > 1)) {
+                        reduce();
+                    }
+                    if (operators.isEmpty() || top().operator() != '?') return false;
+                    operators.set(operators.size() - 1, new Pending(':', 0, 0, 0));
+                    return true;
+                }
+                case 0 -> {
+                    return false;
+                }
+                default -> {
+                    // Only exponentiation is right-associative
+                    reduceAbove(precedence(operator) - (operator == '^' ? 0 : 1));
+                    operators.add(new Pending(operator, 0, 0, 0));
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return infix operator, {@code ) , ? :}, or {@code 0} if there's none
+     */
+    private char infix() {
+        char c = current();
+        pointer++;
+        return switch (c) {
+            case '+', '-', '*', '/', '%', '^', '?', ':', ',', ')' -> c;
+            case '<' -> progress('=') ? '≤' : '<';
+            case '>' -> progress('=') ? '≥' : '>';
+            case '=' -> progress('=') ? '=' : 0;
+            case '!' -> progress('=') ? '≠' : 0;
+            case '&' -> progress('&') ? '&' : 0;
+            case '|' -> progress('|') ? '|' : 0;
+            default -> 0;
+        };
+    }
+
+    /**
+     * Reduces operators of the innermost group.
+     * @return {@code false} if there's no group
+     */
+    private boolean reduceGroup() {
+        reduceAbove(0);
+        return !operators.isEmpty();
+    }
+
+    private void reduceAbove(int precedence) {
+        while (!operators.isEmpty() && precedence(top().operator()) > precedence) reduce();
+    }
+
+    private void reduce() {
+        char operator = operators.remove(operators.size() - 1).operator();
+        switch (operator) {
+            case NEGATE -> push(new Negate(pop()));
+            case '?' -> {
+                Node then = pop();
+                push(new Condition(pop(), then, ZERO));
+            }
+            case ':' -> {
+                Node otherwise = pop();
+                Node then = pop();
+                push(new Condition(pop(), then, otherwise));
+            }
+            case '+', '-', '*', '/', '%', '&', '|' -> {
+                Node b = pop();
+                int last = values.size() - 1;
+                Fold fold = folds.get(last);
+                if (fold == null || !fold.accepts(operator)) {
+                    fold = new Fold(value(last));
+                    values.set(last, null);
+                    folds.set(last, fold);
+                }
+                fold.add(operator, b);
+            }
+            default -> {
+                Node b = pop();
+                push(new Binary(operator, pop(), b));
+            }
+        }
+    }
+
+    /**
+     * Replaces the innermost group with its value.
+     */
+    private void close() {
+        Pending group = operators.remove(operators.size() - 1);
+        if (group.operator() == GROUP) return;
+        int start = group.start();
+        int end = group.end();
+        List<Node> args = new ArrayList<>(values.size() - group.base());
+        for (int i = group.base(); i < values.size(); i++) args.add(value(i));
+        values.subList(group.base(), values.size()).clear();
+        folds.subList(group.base(), folds.size()).clear();
+        if (end - start == 2 && origin.startsWith(CONDITION, start)) {
+            push(new Condition(args.get(0), arg(args, 1), arg(args, 2)));
+            return;
+        }
+        int id = math.functionId(origin, start, end);
+        if (id < 0) {
+            String name = origin.substring(start, end);
+            // Window functions are known to FormulaEvaluator only, as they need a place for the samples
+            if (listener != null && !RollingWindow.isWindow(name)) listener.unknownIdentifier(origin, name);
+            push(new Call(name, null, List.copyOf(args)));
+        } else {
+            push(new Call(math.functionName(id), math.function(id), List.copyOf(args)));
+        }
+    }
+
+    /**
+     * @param operator pending operator
+     * @return precedence of the operator, higher for the ones applied first, or {@code 0} for groups
+     */
+    static int precedence(char operator) {
+        return switch (operator) {
+            case GROUP, CALL -> 0;
+            case '?', ':' -> 1;
+            case '|' -> 2;
+            case '&' -> 3;
+            case '+', '-' -> 5;
+            case '*', '/', '%' -> 6;
+            case NEGATE -> 7;
+            case '^' -> 8;
+            default -> 4;
+        };
+    }
+
+    private static boolean isGroup(char operator) {
+        return operator == GROUP || operator == CALL;
+    }
+
+    private Pending top() {
+        return operators.get(operators.size() - 1);
+    }
+
+    private void push(Node node) {
+        values.add(node);
+        folds.add(null);
+    }
+
+    private Node pop() {
+        int last = values.size() - 1;
+        Node node = value(last);
+        values.remove(last);
+        folds.remove(last);
+        return node;
+    }
+
+    /**
+     * @return operand at the index, with its chain built
+     */
+    private Node value(int index) {
+        Fold fold = folds.get(index);
+        if (fold == null) return values.get(index);
+        Node node = fold.build();
+        values.set(index, node);
+        folds.set(index, null);
+        return node;
+    }
+
+    private static Node arg(List<Node> args, int index) {
+        return index < args.size() ? args.get(index) : ZERO;
+    }
+
+    private char current() {
+        return origin.length() > pointer ? origin.charAt(pointer) : ' ';
+    }
+
+    private boolean progress(char c) {
+        if (current() == c) {
+            pointer++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param operator one of the infix operators, {@link #NEGATE}, or a group
+     * @param base count of operands before the group
+     * @param start start of the name of the function called by the group
+     * @param end end of the name
+     */
+    private record Pending(char operator, int base, int start, int end) { }
+
+    /**
+     * Chain or junction still being built, so that appending to it takes constant time.
+     */
+    static final class Fold {
+        private final List<Node> operands = new ArrayList<>();
+        private final StringBuilder operators = new StringBuilder();
+
+        Fold(Node first) {
+            operands.add(first);
+        }
+
+        boolean accepts(char operator) {
+            return operators.isEmpty() || precedence(operators.charAt(0)) == precedence(operator);
+        }
+
+        void add(char operator, Node operand) {
+            operators.append(operator);
+            operands.add(operand);
+        }
+
+        Node build() {
+            char operator = operators.charAt(0);
+            if (operator == '&' || operator == '|') return new Junction(operator, List.copyOf(operands));
+            return Node.fold(operands, operators);
+        }
+    }
+}
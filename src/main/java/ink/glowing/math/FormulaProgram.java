@@ -0,0 +1,608 @@
+package ink.glowing.math;
+
+import ink.glowing.math.MathDictionary.MathFunction;
+import ink.glowing.math.Node.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Formula compiled into a linear code for a stack machine.
+ * <p>
+ * Every instruction is a single {@code int}, with the opcode in the lowest byte and the operand in the rest,
+ * so the whole program is a couple of primitive arrays that are run by a single loop.
+ * Operands are kept on {@link EvalStack}, so evaluation doesn't allocate.
+ */
+final class FormulaProgram implements SlotTerm {
+    static final int CONST = 0;
+    static final int LOAD = 1;
+    static final int NEG = 2;
+    static final int ADD = 3;
+    static final int SUB = 4;
+    static final int MUL = 5;
+    static final int DIV = 6;
+    static final int REM = 7;
+    static final int POW = 8;
+    static final int CALL1 = 9;
+    static final int CALL2 = 10;
+    static final int CALL3 = 11;
+    static final int CALL4 = 12;
+    /**
+     * Followed by an extra {@code int} with the amount of arguments.
+     */
+    static final int CALLN = 13;
+    /**
+     * Comparisons in the order of {@link Binary#COMPARISONS}, resulting in {@code 1} or {@code 0}.
+     */
+    static final int LT = 14;
+    static final int LE = 15;
+    static final int GT = 16;
+    static final int GE = 17;
+    static final int EQ = 18;
+    static final int NE = 19;
+    /**
+     * Pops the test and jumps to the operand if it's zero.
+     */
+    static final int BRANCH = 20;
+    /**
+     * Jumps to the operand.
+     */
+    static final int JUMP = 21;
+    /**
+     * Jumps to the operand if the top of the stack decides an {@code &&} junction, leaving {@code 0} there,
+     * or pops it otherwise.
+     */
+    static final int AND = 22;
+    /**
+     * Jumps to the operand if the top of the stack decides an {@code ||} junction, leaving {@code 1} there,
+     * or pops it otherwise.
+     */
+    static final int OR = 23;
+    /**
+     * Loads the variable of the slot like {@link #LOAD}, but fetches it through the {@link Fetch} of the evaluation
+     * the first time. Only emitted for programs compiled to {@link #calc(Fetch, Object, int) fetch} variables,
+     * which are never stored.
+     */
+    static final int FETCH = 24;
+
+    /**
+     * Operators of {@link #ADD} and the following opcodes
+     */
+    static final String ARITHMETIC = "+-*/%^";
+    private static final int MAX_OPERAND = 0xFFFFFF;
+
+    private final int[] code;
+    private final double[] constants;
+    private final MathFunction[] functions;
+    private final String[] functionNames;
+    private final int maxStack;
+
+    FormulaProgram(int[] code, double[] constants, MathFunction[] functions, String[] functionNames, int maxStack) {
+        this.code = code;
+        this.constants = constants;
+        this.functions = functions;
+        this.functionNames = functionNames;
+        this.maxStack = maxStack;
+    }
+
+    /**
+     * @param root optimized formula tree
+     * @param slots slots of declared variables
+     * @return compiled program
+     * @throws IllegalArgumentException if the formula refers to undeclared variables or unknown functions
+     */
+    static FormulaProgram compile(Node root, Map<String, Integer> slots) {
+        return compile(root, slots, false);
+    }
+
+    /**
+     * @param fetch whether variables are {@link #FETCH fetched} rather than loaded from an array
+     * @see #compile(Node, Map)
+     */
+    static FormulaProgram compile(Node root, Map<String, Integer> slots, boolean fetch) {
+        Compiler compiler = new Compiler(slots, fetch ? FETCH : LOAD);
+        compiler.emit(root);
+        return new FormulaProgram(
+                Arrays.copyOf(compiler.code, compiler.size),
+                compiler.constants.stream().mapToDouble(Double::doubleValue).toArray(),
+                compiler.functions.toArray(new MathFunction[0]),
+                compiler.functionNames.toArray(new String[0]),
+                compiler.maxStack
+        );
+    }
+
+    @Override
+    public double calc(double[] vars) {
+        return run(vars, null, null, 0);
+    }
+
+    /**
+     * Evaluates a program compiled to fetch variables. Each of them is fetched once per evaluation, when it's loaded
+     * the first time, so variables of branches that aren't taken aren't fetched at all.
+     * @param fetch source of variables
+     * @param context context passed to the source
+     * @param slots amount of variable slots
+     */
+    <T> double calc(Fetch<T> fetch, T context, int slots) {
+        return run(null, fetch, context, slots);
+    }
+
+    @SuppressWarnings("unchecked")
+    private double run(double[] vars, Fetch<?> fetch, Object context, int slots) {
+        EvalStack stack = EvalStack.local();
+        // Fetched variables are cached above the operands, each with a flag of whether it's fetched yet
+        int base = stack.reserve(maxStack + slots * 2);
+        // Nested evaluations may replace the array, but never touch the reserved part of this one
+        double[] s = stack.data;
+        int cache = base + maxStack;
+        Arrays.fill(s, cache, cache + slots * 2, 0);
+        int top = base - 1;
+        try {
+            for (int pc = 0; pc < code.length; pc++) {
+                int instruction = code[pc];
+                int operand = instruction >>> 8;
+                switch (instruction & 0xFF) {
+                    case CONST -> s[++top] = constants[operand];
+                    case LOAD -> s[++top] = vars[operand];
+                    case FETCH -> {
+                        int flag = cache + operand * 2;
+                        if (s[flag] == 0) {
+                            s[flag + 1] = ((Fetch<Object>) fetch).fetch(context, operand);
+                            s[flag] = 1;
+                        }
+                        s[++top] = s[flag + 1];
+                    }
+                    case NEG -> s[top] = -s[top];
+                    case ADD -> { top--; s[top] += s[top + 1]; }
+                    case SUB -> { top--; s[top] -= s[top + 1]; }
+                    case MUL -> { top--; s[top] *= s[top + 1]; }
+                    case DIV -> { top--; s[top] /= s[top + 1]; }
+                    case REM -> { top--; s[top] %= s[top + 1]; }
+                    case POW -> { top--; s[top] = Math.pow(s[top], s[top + 1]); }
+                    case LT -> { top--; s[top] = s[top] < s[top + 1] ? 1 : 0; }
+                    case LE -> { top--; s[top] = s[top] <= s[top + 1] ? 1 : 0; }
+                    case GT -> { top--; s[top] = s[top] > s[top + 1] ? 1 : 0; }
+                    case GE -> { top--; s[top] = s[top] >= s[top + 1] ? 1 : 0; }
+                    case EQ -> { top--; s[top] = s[top] == s[top + 1] ? 1 : 0; }
+                    case NE -> { top--; s[top] = s[top] != s[top + 1] ? 1 : 0; }
+                    case BRANCH -> {
+                        // The loop moves to the instruction right after the target
+                        if (s[top--] == 0) pc = operand - 1;
+                    }
+                    case JUMP -> pc = operand - 1;
+                    case AND -> {
+                        if (s[top] == 0) {
+                            s[top] = 0;
+                            pc = operand - 1;
+                        } else {
+                            top--;
+                        }
+                    }
+                    case OR -> {
+                        if (s[top] != 0) {
+                            s[top] = 1;
+                            pc = operand - 1;
+                        } else {
+                            top--;
+                        }
+                    }
+                    case CALL1 -> s[top] = functions[operand].accept(s[top]);
+                    case CALL2 -> {
+                        top -= 1;
+                        s[top] = functions[operand].accept(s[top], s[top + 1]);
+                    }
+                    case CALL3 -> {
+                        top -= 2;
+                        s[top] = functions[operand].accept(s[top], s[top + 1], s[top + 2]);
+                    }
+                    case CALL4 -> {
+                        top -= 3;
+                        s[top] = functions[operand].accept(s[top], s[top + 1], s[top + 2], s[top + 3]);
+                    }
+                    default -> {
+                        int count = code[++pc];
+                        top -= count - 1;
+                        // Arguments are already laid out in order
+                        s[top] = functions[operand].accept(s, top, count);
+                    }
+                }
+            }
+            return s[top];
+        } finally {
+            stack.top = base;
+        }
+    }
+
+    /**
+     * Restores the tree the program was compiled from, in a single pass over the code.
+     * Consecutive additions and subtractions, as well as multiplications, divisions and remainders,
+     * are restored into {@link Chain chains}.
+     * @param variables names of variables in their slot order
+     * @return formula tree
+     */
+    Node toNode(String[] variables) {
+        Node[] stack = new Node[maxStack];
+        // Chains still being built, by the stack index
+        FormulaParser.Fold[] folds = new FormulaParser.Fold[maxStack];
+        List<Open> open = new ArrayList<>();
+        int top = -1;
+        for (int pc = 0; pc <= code.length; pc++) {
+            // Nested ones may end at the same instruction, the innermost is the last
+            while (!open.isEmpty() && open.get(open.size() - 1).end == pc) {
+                Open closed = open.remove(open.size() - 1);
+                Node last = value(stack, folds, top);
+                if (closed.opcode == BRANCH) {
+                    stack[top] = new Condition(closed.operands.get(0), closed.operands.get(1), last);
+                } else {
+                    // The last one is the result if no operand decides it
+                    stack[top] = new Junction(closed.opcode == AND ? '&' : '|', List.copyOf(closed.operands));
+                }
+            }
+            if (pc == code.length) break;
+            int instruction = code[pc];
+            int operand = instruction >>> 8;
+            int opcode = instruction & 0xFF;
+            switch (opcode) {
+                case CONST -> stack[++top] = new Constant(constants[operand]);
+                case LOAD, FETCH -> stack[++top] = new Variable(variables[operand]);
+                case NEG -> stack[top] = new Negate(value(stack, folds, top));
+                case ADD, SUB, MUL, DIV, REM -> {
+                    top--;
+                    char operator = ARITHMETIC.charAt(opcode - ADD);
+                    Node b = value(stack, folds, top + 1);
+                    if (folds[top] == null || !folds[top].accepts(operator)) {
+                        folds[top] = new FormulaParser.Fold(value(stack, folds, top));
+                    }
+                    folds[top].add(operator, b);
+                }
+                case POW -> {
+                    top--;
+                    stack[top] = new Binary('^', value(stack, folds, top), value(stack, folds, top + 1));
+                }
+                case LT, LE, GT, GE, EQ, NE -> {
+                    top--;
+                    char operator = Binary.COMPARISONS.charAt(opcode - LT);
+                    stack[top] = new Binary(operator, value(stack, folds, top), value(stack, folds, top + 1));
+                }
+                case BRANCH -> {
+                    // Then-branch ends with a jump past the otherwise-branch
+                    Open condition = new Open(BRANCH, code[operand - 1] >>> 8);
+                    condition.operands.add(value(stack, folds, top--));
+                    open.add(condition);
+                }
+                case JUMP -> open.get(open.size() - 1).operands.add(value(stack, folds, top--));
+                case AND, OR -> {
+                    Open junction = open.isEmpty() ? null : open.get(open.size() - 1);
+                    if (junction == null || junction.opcode != opcode || junction.end != operand) {
+                        junction = new Open(opcode, operand);
+                        open.add(junction);
+                    }
+                    junction.operands.add(value(stack, folds, top--));
+                }
+                default -> {
+                    int count = opcode == CALLN ? code[++pc] : opcode - CALL1 + 1;
+                    top -= count - 1;
+                    Node[] args = new Node[count];
+                    for (int i = 0; i < count; i++) args[i] = value(stack, folds, top + i);
+                    stack[top] = new Call(functionNames[operand], functions[operand], List.of(args));
+                }
+            }
+        }
+        return value(stack, folds, top);
+    }
+
+    /**
+     * Checks that the program is one the compiler could have produced, so that neither {@link #calc} nor
+     * {@link #toNode} go out of bounds running it: every operand is in range, the stack depth is the same
+     * on every path and fits into {@link #maxStack}, and jumps only go forward and nest like the tree does.
+     * @param variables amount of variable slots
+     * @throws IllegalArgumentException if the program is malformed
+     */
+    void verify(int variables) {
+        if (maxStack > code.length) throw malformed("it reserves more stack than it can use");
+        // Depth before each instruction, or -1 if nothing jumps there yet
+        int[] depths = new int[code.length + 1];
+        Arrays.fill(depths, -1);
+        // Open conditions and junctions as in toNode: opcode, end, and the end that nested ones must fit into
+        List<int[]> open = new ArrayList<>();
+        int depth = 0;
+        for (int pc = 0; pc <= code.length; pc++) {
+            if (depth < 0) {
+                depth = depths[pc];
+            } else if (depths[pc] >= 0 && depths[pc] != depth) {
+                throw malformed("stack depth differs at " + pc);
+            }
+            if (depth < 0) throw malformed("instruction " + pc + " is unreachable");
+            while (!open.isEmpty() && open.get(open.size() - 1)[1] == pc) open.remove(open.size() - 1);
+            if (pc == code.length) break;
+            int instruction = code[pc];
+            int operand = instruction >>> 8;
+            int opcode = instruction & 0xFF;
+            int[] last = open.isEmpty() ? null : open.get(open.size() - 1);
+            int limit = last == null ? code.length : last[2];
+            int pops = 0;
+            int pushes = 0;
+            switch (opcode) {
+                case CONST -> {
+                    check(operand < constants.length, pc);
+                    pushes = 1;
+                }
+                case LOAD -> {
+                    check(operand < variables, pc);
+                    pushes = 1;
+                }
+                case NEG -> pops = pushes = 1;
+                case ADD, SUB, MUL, DIV, REM, POW, LT, LE, GT, GE, EQ, NE -> {
+                    pops = 2;
+                    pushes = 1;
+                }
+                case CALL1, CALL2, CALL3, CALL4, CALLN -> {
+                    check(operand < functions.length, pc);
+                    if (opcode == CALLN) {
+                        // Nothing may jump into the amount of arguments, as jumps only go forward
+                        check(++pc < code.length && code[pc] > 0 && depths[pc] < 0, pc);
+                        pops = code[pc];
+                    } else {
+                        pops = opcode - CALL1 + 1;
+                    }
+                    pushes = 1;
+                }
+                case BRANCH -> {
+                    check(operand > pc + 1 && operand <= code.length, pc);
+                    // Then-branch ends with a jump past the otherwise-branch
+                    int jump = operand - 1;
+                    int end = code[jump] >>> 8;
+                    check((code[jump] & 0xFF) == JUMP && end <= limit, pc);
+                    open.add(new int[] {BRANCH, end, jump});
+                    pops = 1;
+                    jumpTo(depths, operand, depth - 1);
+                }
+                case JUMP -> {
+                    check(operand > pc && last != null && last[0] == BRANCH && last[2] == pc, pc);
+                    last[2] = last[1];
+                    jumpTo(depths, operand, depth);
+                }
+                case AND, OR -> {
+                    check(operand > pc && operand <= code.length, pc);
+                    if (last == null || last[0] != opcode || last[1] != operand) {
+                        check(operand <= limit, pc);
+                        open.add(new int[] {opcode, operand, operand});
+                    }
+                    pops = 1;
+                    jumpTo(depths, operand, depth);
+                }
+                default -> throw malformed("instruction " + pc + " has unknown opcode " + opcode);
+            }
+            if (depth < pops) throw malformed("stack underflows at " + pc);
+            depth += pushes - pops;
+            if (depth > maxStack) throw malformed("stack overflows at " + pc);
+            // Nothing runs right after a jump unless something else jumps there
+            if (opcode == JUMP) depth = -1;
+        }
+        if (depth != 1) throw malformed("it leaves " + depth + " values on the stack");
+    }
+
+    private static void jumpTo(int[] depths, int target, int depth) {
+        if (depths[target] >= 0 && depths[target] != depth) throw malformed("stack depth differs at " + target);
+        depths[target] = depth;
+    }
+
+    private static void check(boolean valid, int pc) {
+        if (!valid) throw malformed("instruction " + pc + " is invalid");
+    }
+
+    private static IllegalArgumentException malformed(String reason) {
+        return new IllegalArgumentException("Malformed formula program: " + reason);
+    }
+
+    /**
+     * @return node at the stack index, with its chain built
+     */
+    private static Node value(Node[] stack, FormulaParser.Fold[] folds, int index) {
+        if (folds[index] != null) {
+            stack[index] = folds[index].build();
+            folds[index] = null;
+        }
+        return stack[index];
+    }
+
+    int[] code() {
+        return code;
+    }
+
+    double[] constants() {
+        return constants;
+    }
+
+    String[] functionNames() {
+        return functionNames;
+    }
+
+    MathFunction[] functions() {
+        return functions;
+    }
+
+    int maxStack() {
+        return maxStack;
+    }
+
+    /**
+     * Condition or junction being restored, with the nodes restored so far.
+     * @param opcode {@link #BRANCH} for a condition, or the opcode of the junction
+     * @param end index of the instruction after it
+     */
+    private record Open(int opcode, int end, List<Node> operands) {
+        Open(int opcode, int end) {
+            this(opcode, end, new ArrayList<>());
+        }
+    }
+
+    /**
+     * Source of {@link #FETCH fetched} variables.
+     * @param <T> type of the context of evaluations
+     */
+    @FunctionalInterface
+    interface Fetch<T> {
+        double fetch(T context, int slot);
+    }
+
+    private static final class Compiler {
+        private final Map<String, Integer> slots;
+        /**
+         * {@link #LOAD} or {@link #FETCH}
+         */
+        private final int load;
+        private final List<Double> constants = new ArrayList<>();
+        private final Map<Long, Integer> constantIndexes = new HashMap<>();
+        private final List<MathFunction> functions = new ArrayList<>();
+        private final List<String> functionNames = new ArrayList<>();
+        private final Map<MathFunction, Integer> functionIndexes = new IdentityHashMap<>();
+        private int[] code = new int[16];
+        private int size;
+        private int stack;
+        private int maxStack;
+
+        private Compiler(Map<String, Integer> slots, int load) {
+            this.slots = slots;
+            this.load = load;
+        }
+
+        private void emit(Node root) {
+            Node.Walk walk = new Node.Walk(root);
+            while (!walk.isEmpty()) {
+                int stage = walk.stage();
+                int mark = walk.mark();
+                Node node = walk.pop();
+                if (node instanceof Condition condition) {
+                    emit(walk, condition, stage, mark);
+                    continue;
+                } else if (node instanceof Junction junction) {
+                    emit(walk, junction, stage, mark);
+                    continue;
+                }
+                if (node instanceof Chain chain && stage >= 2) {
+                    op(ADD + ARITHMETIC.indexOf(chain.operators().charAt(stage - 2)), 0, -1);
+                }
+                List<Node> children = Node.children(node);
+                if (stage < children.size()) {
+                    walk.push(node, stage + 1, 0);
+                    walk.push(children.get(stage), 0, 0);
+                } else if (node instanceof Constant cons) {
+                    op(CONST, constant(cons.value()), 1);
+                } else if (node instanceof Variable variable) {
+                    Integer slot = slots.get(variable.name());
+                    if (slot == null) {
+                        throw new IllegalArgumentException("Variable '" + variable.name() + "' is not declared");
+                    }
+                    op(load, slot, 1);
+                } else if (node instanceof Negate) {
+                    op(NEG, 0, 0);
+                } else if (node instanceof Binary binary) {
+                    int arithmetic = ARITHMETIC.indexOf(binary.operator());
+                    op(arithmetic >= 0 ? ADD + arithmetic : LT + Binary.COMPARISONS.indexOf(binary.operator()), 0, -1);
+                } else if (node instanceof Call call) {
+                    if (call.function() == null) {
+                        throw new IllegalArgumentException("Function '" + call.name() + "' is not registered");
+                    }
+                    int index = functionIndexes.computeIfAbsent(call.function(), (f) -> {
+                        functions.add(f);
+                        functionNames.add(call.name());
+                        return functions.size() - 1;
+                    });
+                    int count = children.size();
+                    op(count <= 4 ? CALL1 + count - 1 : CALLN, index, 1 - count);
+                    if (count > 4) write(count);
+                }
+            }
+        }
+
+        /**
+         * @param stage {@code 0} before the test, {@code 1} after it, {@code 2} after the then-branch,
+         *              {@code 3} after the otherwise-branch
+         * @param mark index of the branch after the test, or of the jump after the then-branch
+         */
+        private void emit(Node.Walk walk, Condition condition, int stage, int mark) {
+            switch (stage) {
+                case 0 -> {
+                    walk.push(condition, 1, 0);
+                    walk.push(condition.test(), 0, 0);
+                }
+                case 1 -> {
+                    walk.push(condition, 2, size);
+                    op(BRANCH, 0, -1);
+                    walk.push(condition.then(), 0, 0);
+                }
+                case 2 -> {
+                    walk.push(condition, 3, size);
+                    op(JUMP, 0, 0);
+                    target(mark);
+                    // Only one of the branches runs, so both start from the same depth
+                    stack--;
+                    walk.push(condition.otherwise(), 0, 0);
+                }
+                default -> target(mark);
+            }
+        }
+
+        /**
+         * @param stage index of the next operand
+         * @param mark index of the last jump emitted for the junction, jumps are linked through their operands
+         *             until the end is known, or {@code 0} if there are none yet
+         */
+        private void emit(Node.Walk walk, Junction junction, int stage, int mark) {
+            if (stage > 0) {
+                int jump = size;
+                op(junction.operator() == '&' ? AND : OR, mark, -1);
+                mark = jump;
+            }
+            List<Node> operands = junction.operands();
+            if (stage < operands.size()) {
+                walk.push(junction, stage + 1, mark);
+                walk.push(operands.get(stage), 0, 0);
+                return;
+            }
+            op(CONST, constant(1 - junction.decided()), 1);
+            while (mark != 0) {
+                int next = code[mark] >>> 8;
+                target(mark);
+                mark = next;
+            }
+        }
+
+        private int constant(double value) {
+            // Keyed by bits, so that -0 and NaN are kept apart properly
+            return constantIndexes.computeIfAbsent(Double.doubleToRawLongBits(value), (bits) -> {
+                constants.add(value);
+                return constants.size() - 1;
+            });
+        }
+
+        private void op(int opcode, int operand, int stackDelta) {
+            if (operand > MAX_OPERAND) {
+                throw new IllegalArgumentException("Formula is too large to compile");
+            }
+            write(opcode | operand << 8);
+            stack += stackDelta;
+            if (stack > maxStack) maxStack = stack;
+        }
+
+        /**
+         * Points the jump at the given index to the end of code written so far.
+         */
+        private void target(int jump) {
+            if (size > MAX_OPERAND) {
+                throw new IllegalArgumentException("Formula is too large to compile");
+            }
+            code[jump] = code[jump] & 0xFF | size << 8;
+        }
+
+        private void write(int value) {
+            if (size == code.length) code = Arrays.copyOf(code, size * 2);
+            code[size++] = value;
+        }
+    }
+}
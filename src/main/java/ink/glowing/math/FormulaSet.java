@@ -0,0 +1,446 @@
+package ink.glowing.math;
+
+import ink.glowing.math.MathDictionary.MathFunction;
+import ink.glowing.math.Node.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static ink.glowing.math.FormulaProgram.*;
+
+/**
+ * Set of named formulas over shared variables, evaluated together by a single plan.
+ * <p>
+ * Identical subexpressions are computed once per evaluation and shared by all the formulas, both within a single
+ * formula and across them. Only {@link MathDictionary.MathFunction#isPure() pure} functions are shared, so every
+ * {@code random} call and every call of an impure custom function is still made separately. Subexpressions within
+ * branches of conditions are only shared within the same branch, as the other branch skips them.
+ * <p>
+ * Instances are immutable and can be shared between threads freely.
+ */
+public final class FormulaSet {
+    /**
+     * Copies a register, to have the result of a condition in the same one on both branches
+     */
+    private static final int COPY = OR + 1;
+
+    private final String[] names;
+    private final String[] variables;
+    /**
+     * Instruction for every register in order, followed by indexes of registers it takes
+     */
+    private final int[] code;
+    private final double[] constants;
+    private final MathFunction[] functions;
+    private final int registers;
+    private final int maxArgs;
+    private final int[] outputs;
+
+    private FormulaSet(String[] names, String[] variables, Compiler compiler, int[] outputs) {
+        this.names = names;
+        this.variables = variables;
+        this.code = Arrays.copyOf(compiler.code, compiler.size);
+        this.constants = compiler.constants.stream().mapToDouble(Double::doubleValue).toArray();
+        this.functions = compiler.functions.toArray(new MathFunction[0]);
+        this.registers = compiler.registers;
+        this.maxArgs = compiler.maxArgs;
+        this.outputs = outputs;
+    }
+
+    /**
+     * @see #compile(Map, MathDictionary, String...)
+     */
+    public static FormulaSet compile(Map<String, String> formulas, String... variables) {
+        return compile(formulas, MathDictionary.INSTANCE, variables);
+    }
+
+    /**
+     * Compiles a set of formulas into a single evaluation plan.
+     * @param formulas expressions by their names, results are indexed in the iteration order of this map
+     * @param math dictionary to get constants and functions from
+     * @param variables names of variables in the order they're passed to {@link #eval(double[])}
+     * @return compiled set
+     * @throws IllegalArgumentException if expressions refer to undeclared variables or unknown functions
+     */
+    public static FormulaSet compile(Map<String, String> formulas, MathDictionary math, String... variables) {
+        Node[] roots = new Node[formulas.size()];
+        int index = 0;
+        for (String expression : formulas.values()) {
+            roots[index++] = FormulaOptimizer.optimize(FormulaParser.parse(expression, math));
+        }
+        return compile(formulas.keySet().toArray(new String[0]), roots, variables);
+    }
+
+    static FormulaSet compile(String[] formulas, Node[] roots, String... variables) {
+        String[] names = new String[variables.length];
+        Map<String, Integer> slots = new HashMap<>(variables.length);
+        for (int i = 0; i < variables.length; i++) {
+            String name = variables[i].toLowerCase(Locale.ROOT);
+            if (slots.putIfAbsent(name, i) != null) {
+                throw new IllegalArgumentException("Variable '" + name + "' is declared more than once");
+            }
+            names[i] = name;
+        }
+        Compiler compiler = new Compiler(slots);
+        int[] outputs = new int[roots.length];
+        for (int i = 0; i < roots.length; i++) {
+            outputs[i] = compiler.emit(roots[i]);
+        }
+        return new FormulaSet(formulas, names, compiler, outputs);
+    }
+
+    /**
+     * Evaluates all the formulas.
+     * @param vars values of variables, indexed the same way they were declared on compilation
+     * @return results of formulas, indexed in the order they were provided on compilation
+     */
+    public double[] eval(double[] vars) {
+        double[] out = new double[outputs.length];
+        eval(vars, out);
+        return out;
+    }
+
+    /**
+     * Evaluates all the formulas without allocating.
+     * @param vars values of variables, indexed the same way they were declared on compilation
+     * @param out array to write results into, indexed in the order formulas were provided on compilation
+     */
+    public void eval(double[] vars, double[] out) {
+        EvalStack stack = EvalStack.local();
+        int base = stack.reserve(registers + maxArgs);
+        double[] r = stack.data;
+        int args = base + registers;
+        try {
+            int pc = 0;
+            int reg = base;
+            while (pc < code.length) {
+                int instruction = code[pc++];
+                int operand = instruction >>> 8;
+                int opcode = instruction & 0xFF;
+                if (opcode == BRANCH || opcode == OR) {
+                    // Followed by the test and the first register of the otherwise-branch, OR jumps on non-zero
+                    if ((r[base + code[pc]] == 0) == (opcode == BRANCH)) {
+                        reg = base + code[pc + 1];
+                        pc = operand;
+                    } else {
+                        pc += 2;
+                    }
+                    continue;
+                } else if (opcode == JUMP) {
+                    // Followed by the result of the then-branch and the register of the condition
+                    reg = base + code[pc + 1];
+                    r[reg++] = r[base + code[pc]];
+                    pc = operand;
+                    continue;
+                }
+                r[reg++] = switch (opcode) {
+                    case CONST -> constants[operand];
+                    case LOAD -> vars[operand];
+                    case NEG -> -r[base + code[pc++]];
+                    case ADD -> r[base + code[pc++]] + r[base + code[pc++]];
+                    case SUB -> r[base + code[pc++]] - r[base + code[pc++]];
+                    case MUL -> r[base + code[pc++]] * r[base + code[pc++]];
+                    case DIV -> r[base + code[pc++]] / r[base + code[pc++]];
+                    case REM -> r[base + code[pc++]] % r[base + code[pc++]];
+                    case POW -> Math.pow(r[base + code[pc++]], r[base + code[pc++]]);
+                    case LT -> r[base + code[pc++]] < r[base + code[pc++]] ? 1 : 0;
+                    case LE -> r[base + code[pc++]] <= r[base + code[pc++]] ? 1 : 0;
+                    case GT -> r[base + code[pc++]] > r[base + code[pc++]] ? 1 : 0;
+                    case GE -> r[base + code[pc++]] >= r[base + code[pc++]] ? 1 : 0;
+                    case EQ -> r[base + code[pc++]] == r[base + code[pc++]] ? 1 : 0;
+                    case NE -> r[base + code[pc++]] != r[base + code[pc++]] ? 1 : 0;
+                    case COPY -> r[base + code[pc++]];
+                    case CALL1 -> functions[operand].accept(r[base + code[pc++]]);
+                    case CALL2 -> functions[operand].accept(r[base + code[pc++]], r[base + code[pc++]]);
+                    case CALL3 -> functions[operand].accept(
+                            r[base + code[pc++]], r[base + code[pc++]], r[base + code[pc++]]
+                    );
+                    case CALL4 -> functions[operand].accept(
+                            r[base + code[pc++]], r[base + code[pc++]], r[base + code[pc++]], r[base + code[pc++]]
+                    );
+                    default -> {
+                        int count = code[pc++];
+                        for (int i = 0; i < count; i++) r[args + i] = r[base + code[pc++]];
+                        yield functions[operand].accept(r, args, count);
+                    }
+                };
+            }
+            for (int i = 0; i < outputs.length; i++) {
+                out[i] = r[base + outputs[i]];
+            }
+        } finally {
+            stack.top = base;
+        }
+    }
+
+    /**
+     * @return names of formulas in the order of their results
+     */
+    public List<String> names() {
+        return List.of(names);
+    }
+
+    /**
+     * @param name name of formula
+     * @return index of formula result, or {@code -1} if there's no such formula
+     */
+    public int index(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return names of declared variables in their slot order
+     */
+    public List<String> variables() {
+        return List.of(variables);
+    }
+
+    /**
+     * @return amount of values computed per evaluation, after sharing
+     */
+    int registers() {
+        return registers;
+    }
+
+    private static final class Compiler {
+        private final Map<String, Integer> slots;
+        private Map<Key, Integer> shared = new HashMap<>();
+        /**
+         * Shared registers from outside of the branches being emitted, the innermost last
+         */
+        private final List<Map<Key, Integer>> outer = new ArrayList<>();
+        /**
+         * Registers holding results of nodes that are still to be taken by their parents
+         */
+        private int[] results = new int[16];
+        private int depth;
+        private final List<Double> constants = new ArrayList<>();
+        private final Map<Long, Integer> constantIndexes = new HashMap<>();
+        private final List<MathFunction> functions = new ArrayList<>();
+        private final Map<MathFunction, Integer> functionIndexes = new IdentityHashMap<>();
+        private boolean[] impure = new boolean[16];
+        private int[] code = new int[16];
+        private int size;
+        private int registers;
+        private int maxArgs;
+
+        private Compiler(Map<String, Integer> slots) {
+            this.slots = slots;
+        }
+
+        /**
+         * @return register holding the result of the tree
+         */
+        private int emit(Node root) {
+            Node.Walk walk = new Node.Walk(root);
+            while (!walk.isEmpty()) {
+                int stage = walk.stage();
+                int mark = walk.mark();
+                Node node = walk.pop();
+                if (node instanceof Condition condition) {
+                    emit(walk, condition, stage, mark);
+                    continue;
+                } else if (node instanceof Junction junction) {
+                    emit(walk, junction, stage, mark);
+                    continue;
+                }
+                if (node instanceof Chain chain && stage >= 2) {
+                    // Prefixes of a chain are shared just like the nested operations they stand for
+                    int b = pop();
+                    int a = pop();
+                    push(register(ADD + ARITHMETIC.indexOf(chain.operators().charAt(stage - 2)), 0, false, a, b));
+                }
+                List<Node> children = Node.children(node);
+                if (stage < children.size()) {
+                    walk.push(node, stage + 1, 0);
+                    walk.push(children.get(stage), 0, 0);
+                } else if (node instanceof Constant cons) {
+                    push(constant(cons.value()));
+                } else if (node instanceof Variable variable) {
+                    Integer slot = slots.get(variable.name());
+                    if (slot == null) {
+                        throw new IllegalArgumentException("Variable '" + variable.name() + "' is not declared");
+                    }
+                    push(register(LOAD, slot, false));
+                } else if (node instanceof Negate) {
+                    push(register(NEG, 0, false, pop()));
+                } else if (node instanceof Binary binary) {
+                    int b = pop();
+                    int a = pop();
+                    int arithmetic = ARITHMETIC.indexOf(binary.operator());
+                    int opcode = arithmetic >= 0 ? ADD + arithmetic : LT + Binary.COMPARISONS.indexOf(binary.operator());
+                    push(register(opcode, 0, false, a, b));
+                } else if (node instanceof Call call) {
+                    if (call.function() == null) {
+                        throw new IllegalArgumentException("Function '" + call.name() + "' is not registered");
+                    }
+                    int[] regs = new int[children.size()];
+                    for (int i = regs.length - 1; i >= 0; i--) regs[i] = pop();
+                    int index = functionIndexes.computeIfAbsent(call.function(), (f) -> {
+                        functions.add(f);
+                        return functions.size() - 1;
+                    });
+                    maxArgs = Math.max(maxArgs, regs.length);
+                    int opcode = regs.length <= 4 ? CALL1 + regs.length - 1 : CALLN;
+                    push(register(opcode, index, !MathDictionary.isDeterministic(call.function()), regs));
+                }
+            }
+            return pop();
+        }
+
+        /**
+         * @param stage {@code 0} before the test, {@code 1} after it, {@code 2} after the then-branch,
+         *              {@code 3} after the otherwise-branch
+         * @param mark index of the branch after the test, or of the jump after the then-branch
+         */
+        private void emit(Node.Walk walk, Condition condition, int stage, int mark) {
+            switch (stage) {
+                case 0 -> {
+                    walk.push(condition, 1, 0);
+                    walk.push(condition.test(), 0, 0);
+                }
+                case 1 -> {
+                    int test = pop();
+                    walk.push(condition, 2, size);
+                    write(BRANCH);
+                    write(test);
+                    write(0);
+                    // Registers of a branch aren't computed on the other one, so they can't be shared past it
+                    outer.add(shared);
+                    shared = new HashMap<>(shared);
+                    walk.push(condition.then(), 0, 0);
+                }
+                case 2 -> {
+                    int then = pop();
+                    walk.push(condition, 3, size);
+                    write(JUMP);
+                    write(then);
+                    write(0);
+                    code[mark] = BRANCH | size << 8;
+                    code[mark + 2] = registers;
+                    shared = new HashMap<>(outer.get(outer.size() - 1));
+                    walk.push(condition.otherwise(), 0, 0);
+                }
+                default -> {
+                    shared = outer.remove(outer.size() - 1);
+                    int result = register(COPY, 0, true, pop());
+                    code[mark] = JUMP | size << 8;
+                    code[mark + 2] = result;
+                    push(result);
+                }
+            }
+        }
+
+        /**
+         * Every operand is followed by a jump to the end if it decides the result, which copies the decided
+         * constant into the result register there. The undecided constant is copied after the last operand.
+         * @param stage index of the next operand
+         * @param mark index of the last jump emitted for the junction, jumps are linked through their targets
+         *             until the end is known, or {@code 0} if there are none yet
+         */
+        private void emit(Node.Walk walk, Junction junction, int stage, int mark) {
+            List<Node> operands = junction.operands();
+            if (stage == 0) {
+                // Constants are taken before the first jump, so that they're computed however the junction ends
+                push(constant(1 - junction.decided()));
+                push(constant(junction.decided()));
+                // Every operand runs after the previous ones, so they share registers up to the end
+                outer.add(shared);
+                shared = new HashMap<>(shared);
+            } else {
+                int test = pop();
+                int jump = size;
+                write((junction.operator() == '&' ? BRANCH : OR) | mark << 8);
+                write(test);
+                write(0);
+                mark = jump;
+            }
+            if (stage < operands.size()) {
+                walk.push(junction, stage + 1, mark);
+                walk.push(operands.get(stage), 0, 0);
+                return;
+            }
+            int decided = pop();
+            int undecided = pop();
+            shared = outer.remove(outer.size() - 1);
+            int end = size;
+            write(JUMP);
+            write(undecided);
+            write(0);
+            int result = registers;
+            while (mark != 0) {
+                int next = code[mark] >>> 8;
+                code[mark] = code[mark] & 0xFF | size << 8;
+                code[mark + 2] = result;
+                mark = next;
+            }
+            register(COPY, 0, true, decided);
+            code[end] = JUMP | size << 8;
+            code[end + 2] = result;
+            push(result);
+        }
+
+        private int constant(double value) {
+            int index = constantIndexes.computeIfAbsent(Double.doubleToRawLongBits(value), (bits) -> {
+                constants.add(value);
+                return constants.size() - 1;
+            });
+            return register(CONST, index, false);
+        }
+
+        private void push(int register) {
+            if (results.length == depth) results = Arrays.copyOf(results, depth * 2);
+            results[depth++] = register;
+        }
+
+        private int pop() {
+            return results[--depth];
+        }
+
+        /**
+         * Finds a register that already holds the same value, or emits an instruction for a new one.
+         */
+        private int register(int opcode, int operand, boolean unique, int... args) {
+            for (int arg : args) unique |= impure[arg];
+            Key key = null;
+            if (!unique) {
+                key = new Key(opcode | operand << 8, args);
+                Integer existing = shared.get(key);
+                if (existing != null) return existing;
+            }
+            write(opcode | operand << 8);
+            if (opcode == CALLN) write(args.length);
+            for (int arg : args) write(arg);
+            int register = registers++;
+            if (register == impure.length) impure = Arrays.copyOf(impure, register * 2);
+            impure[register] = unique;
+            if (key != null) shared.put(key, register);
+            return register;
+        }
+
+        private void write(int value) {
+            if (size == code.length) code = Arrays.copyOf(code, size * 2);
+            code[size++] = value;
+        }
+    }
+
+    private record Key(int instruction, int[] args) {
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key key && instruction == key.instruction && Arrays.equals(args, key.args);
+        }
+
+        @Override
+        public int hashCode() {
+            return instruction * 31 + Arrays.hashCode(args);
+        }
+    }
+}
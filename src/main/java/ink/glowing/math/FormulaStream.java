@@ -0,0 +1,314 @@
+package ink.glowing.math;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Streaming evaluation of formulas over delimited text, like CSV, with memory use independent of the input size.
+ * <p>
+ * The first line of input is a header, and formula variables are bound to the columns of the same names.
+ * Only the bound columns are parsed, directly into reusable column buffers, and formulas are evaluated over them
+ * a chunk of rows at a time. Output has a column per formula, in the same delimited format.
+ * <p>
+ * Fields may be surrounded by double quotes, but can't contain delimiters or line breaks. Missing, empty and
+ * malformed numeric fields are read as NaN.
+ * <p>
+ * Instances are immutable and can be shared between threads freely.
+ */
+public final class FormulaStream {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final String[] names;
+    private final CompiledFormula[] formulas;
+    private final byte delimiter;
+
+    /**
+     * @param formulas formulas by names of their output columns, in the order of columns
+     */
+    public FormulaStream(Map<String, CompiledFormula> formulas) {
+        this(formulas, ',');
+    }
+
+    /**
+     * @param formulas formulas by names of their output columns, in the order of columns
+     * @param delimiter ASCII character separating fields of both input and output
+     */
+    public FormulaStream(Map<String, CompiledFormula> formulas, char delimiter) {
+        if (delimiter >= 0x80 || delimiter == '"' || delimiter == '\n' || delimiter == '\r') {
+            throw new IllegalArgumentException("Delimiter should be an ASCII character other than quote or line break");
+        }
+        Map<String, CompiledFormula> copy = new LinkedHashMap<>(formulas);
+        this.names = copy.keySet().toArray(new String[0]);
+        this.formulas = copy.values().toArray(new CompiledFormula[0]);
+        this.delimiter = (byte) delimiter;
+    }
+
+    /**
+     * Evaluates formulas over a file.
+     * @param input path of file to read rows from
+     * @param output path of file to write results to, replaced if it exists
+     * @return amount of rows processed
+     * @throws IOException if reading or writing fails
+     * @throws IllegalArgumentException if input has no header or lacks columns for some variables
+     */
+    public long process(Path input, Path output) throws IOException {
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            return process(in, out);
+        }
+    }
+
+    /**
+     * Evaluates formulas over rows of a channel. Neither of channels is closed.
+     * @param in channel to read rows from
+     * @param out channel to write results to
+     * @return amount of rows processed
+     * @throws IOException if reading or writing fails
+     * @throws IllegalArgumentException if input has no header or lacks columns for some variables
+     */
+    public long process(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        LineReader reader = new LineReader(in);
+        if (!reader.next()) {
+            throw new IllegalArgumentException("Input has no header");
+        }
+        Map<String, Integer> header = new HashMap<>();
+        // Shared buffer for every bound column, indexed by header position, as names may repeat
+        int[] buffers = new int[header(reader, header)];
+        Arrays.fill(buffers, -1);
+        int chunk = BatchCompiler.CHUNK;
+        double[][][] columns = new double[formulas.length][][];
+        double[][] data = new double[header.size()][];
+        int bound = 0;
+        for (int f = 0; f < formulas.length; f++) {
+            List<String> variables = formulas[f].variables();
+            columns[f] = new double[variables.size()][];
+            for (int slot = 0; slot < variables.size(); slot++) {
+                Integer column = header.get(variables.get(slot));
+                if (column == null) {
+                    throw new IllegalArgumentException("Column '" + variables.get(slot) + "' is missing");
+                }
+                if (buffers[column] == -1) {
+                    buffers[column] = bound;
+                    data[bound++] = new double[chunk];
+                }
+                columns[f][slot] = data[buffers[column]];
+            }
+        }
+        double[][] results = new double[formulas.length][chunk];
+        LineWriter writer = new LineWriter(out, delimiter);
+        for (int i = 0; i < names.length; i++) {
+            if (i > 0) writer.delimiter();
+            writer.write(names[i].getBytes(StandardCharsets.UTF_8));
+        }
+        writer.newLine();
+        long rows = 0;
+        int row = 0;
+        while (reader.next()) {
+            if (reader.start == reader.end) continue;
+            for (int i = 0; i < bound; i++) data[i][row] = Double.NaN;
+            int field = 0;
+            int start = reader.start;
+            for (int i = start; i <= reader.end; i++) {
+                if (i == reader.end || reader.buffer[i] == delimiter) {
+                    if (field < buffers.length && buffers[field] != -1) {
+                        data[buffers[field]][row] = reader.parse(start, i);
+                    }
+                    field++;
+                    start = i + 1;
+                }
+            }
+            if (++row == chunk) {
+                flush(columns, results, row, writer);
+                rows += row;
+                row = 0;
+            }
+        }
+        flush(columns, results, row, writer);
+        writer.flush();
+        return rows + row;
+    }
+
+    private void flush(double[][][] columns, double[][] results, int rows, LineWriter writer) throws IOException {
+        for (int f = 0; f < formulas.length; f++) {
+            formulas[f].evalBatch(columns[f], results[f], 0, rows);
+        }
+        for (int row = 0; row < rows; row++) {
+            for (int f = 0; f < formulas.length; f++) {
+                if (f > 0) writer.delimiter();
+                writer.write(results[f][row]);
+            }
+            writer.newLine();
+        }
+    }
+
+    /**
+     * Collects the first column of every name in the header.
+     * @param header map to put names along with their columns into
+     * @return amount of columns, repeated and empty names included
+     */
+    private int header(LineReader reader, Map<String, Integer> header) {
+        int field = 0;
+        int start = reader.start;
+        for (int i = start; i <= reader.end; i++) {
+            if (i == reader.end || reader.buffer[i] == delimiter) {
+                int from = start;
+                int to = i;
+                while (from < to && reader.buffer[from] == ' ') from++;
+                while (to > from && reader.buffer[to - 1] == ' ') to--;
+                if (to - from >= 2 && reader.buffer[from] == '"' && reader.buffer[to - 1] == '"') {
+                    from++;
+                    to--;
+                }
+                String name = new String(reader.buffer, from, to - from, StandardCharsets.UTF_8);
+                header.putIfAbsent(name.toLowerCase(Locale.ROOT), field++);
+                start = i + 1;
+            }
+        }
+        return field;
+    }
+
+    /**
+     * Splits the channel into lines, growing its buffer only for lines longer than it.
+     */
+    private static final class LineReader implements CharSequence {
+        private final ReadableByteChannel channel;
+        private byte[] buffer = new byte[BUFFER_SIZE];
+        private ByteBuffer wrapper = ByteBuffer.wrap(buffer);
+        private int position;
+        private int limit;
+        private boolean eof;
+        /**
+         * Bounds of the current line, without the line break
+         */
+        private int start, end;
+
+        private LineReader(ReadableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        private boolean next() throws IOException {
+            while (true) {
+                for (int i = position; i < limit; i++) {
+                    if (buffer[i] == '\n') {
+                        line(position, i);
+                        position = i + 1;
+                        return true;
+                    }
+                }
+                if (eof) {
+                    if (position == limit) return false;
+                    line(position, limit);
+                    position = limit;
+                    return true;
+                }
+                fill();
+            }
+        }
+
+        private void line(int from, int to) {
+            start = from;
+            end = to > from && buffer[to - 1] == '\r' ? to - 1 : to;
+        }
+
+        private void fill() throws IOException {
+            if (position > 0) {
+                System.arraycopy(buffer, position, buffer, 0, limit - position);
+                limit -= position;
+                position = 0;
+            } else if (limit == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                wrapper = ByteBuffer.wrap(buffer);
+            }
+            wrapper.limit(buffer.length).position(limit);
+            int read = channel.read(wrapper);
+            if (read < 0) {
+                eof = true;
+            } else {
+                limit += read;
+            }
+        }
+
+        private double parse(int from, int to) {
+            while (from < to && buffer[from] == ' ') from++;
+            while (to > from && buffer[to - 1] == ' ') to--;
+            if (to - from >= 2 && buffer[from] == '"' && buffer[to - 1] == '"') {
+                from++;
+                to--;
+            }
+            return DoubleParser.parse(this, from, to, Double.NaN);
+        }
+
+        @Override
+        public int length() {
+            return limit;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (buffer[index] & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new String(buffer, start, end - start, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    /**
+     * Buffers output, formatting numbers without allocating.
+     */
+    private static final class LineWriter {
+        private final WritableByteChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private final StringBuilder number = new StringBuilder(32);
+        private final byte delimiter;
+
+        private LineWriter(WritableByteChannel channel, byte delimiter) {
+            this.channel = channel;
+            this.delimiter = delimiter;
+        }
+
+        private void write(double value) throws IOException {
+            number.setLength(0);
+            number.append(value);
+            if (buffer.remaining() < number.length()) flush();
+            for (int i = 0; i < number.length(); i++) buffer.put((byte) number.charAt(i));
+        }
+
+        private void write(byte[] bytes) throws IOException {
+            for (byte b : bytes) {
+                if (!buffer.hasRemaining()) flush();
+                buffer.put(b);
+            }
+        }
+
+        private void delimiter() throws IOException {
+            if (!buffer.hasRemaining()) flush();
+            buffer.put(delimiter);
+        }
+
+        private void newLine() throws IOException {
+            if (!buffer.hasRemaining()) flush();
+            buffer.put((byte) '\n');
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package ink.glowing.math;
+
+/**
+ * Switch for the opt-in instrumentation of evaluators.
+ * <p>
+ * While disabled, evaluators only check a single field per expression, and formulas compiled meanwhile run
+ * exactly the same code as without instrumentation. Formulas compiled while enabled keep reporting their
+ * evaluations to the listener they were compiled with.
+ * <p>
+ * Parsing and compilation also emit {@code ink.glowing.math.Parse} and {@code ink.glowing.math.Compile}
+ * JDK Flight Recorder events, which cost nothing unless a recording enables them.
+ */
+public final class Instrumentation {
+    /**
+     * Evaluations of a formula per timed one
+     */
+    public static final int SAMPLE_INTERVAL = 64;
+
+    static volatile FormulaListener listener;
+
+    private Instrumentation() { }
+
+    /**
+     * @param listener listener to report to
+     */
+    public static void enable(FormulaListener listener) {
+        if (listener == null) throw new NullPointerException("Listener is null");
+        Instrumentation.listener = listener;
+    }
+
+    /**
+     * Stops reporting to the listener, apart from formulas compiled while it was enabled.
+     */
+    public static void disable() {
+        listener = null;
+    }
+
+    /**
+     * @return the current listener, or {@code null} if instrumentation is disabled
+     */
+    public static FormulaListener listener() {
+        return listener;
+    }
+}
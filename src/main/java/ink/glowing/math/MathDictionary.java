@@ -1,9 +1,13 @@
 package ink.glowing.math;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -11,15 +15,20 @@ import java.util.regex.Pattern;
 /**
  * The dictionary for basic math constants and functions.
  * <p>
- * Intended to be immutable after its creation, yet if you're from parallel universe with altered math constants than
- * provided initially, the class is still open for extending.
+ * Dictionaries are immutable and can be shared between threads freely. Custom functions and constants are added
+ * by creating a new dictionary, or cheaper, by deriving one with {@link #withFunction(String, MathFunction)}.
+ * Yet if you're from parallel universe with altered math constants than provided initially, the class is still open
+ * for extending.
  */
 public class MathDictionary {
-    private static final Pattern FLOAT = Pattern.compile("\\d+(\\.\\d+(e[+-]?\\d+)?)?");
-
     public static final Pattern NAME_PATTERN = Pattern.compile("[a-z][a-z\\d_]+");
+    /**
+     * Name of the conditional {@code if(test, then, otherwise)}, reserved for functions and constants
+     */
+    public static final String CONDITION = "if";
     public static final Map<String, MathFunction> BASIC_FUNCTIONS;
     public static final Map<String, Double> BASIC_CONSTANTS;
+    private static final Set<MathFunction> DETERMINISTIC_FUNCTIONS;
     static {
         Map<String, MathFunction> basicFunctions = new HashMap<>(
                 SingleArgFunctions.values().length + MultiArgFunctions.values().length
@@ -47,16 +56,37 @@ public class MathDictionary {
 
         BASIC_FUNCTIONS = Collections.unmodifiableMap(basicFunctions);
         BASIC_CONSTANTS = Collections.unmodifiableMap(basicConstants);
+
+        Set<MathFunction> deterministic = Collections.newSetFromMap(new IdentityHashMap<>());
+        deterministic.addAll(basicFunctions.values());
+        deterministic.remove(MultiArgFunctions.RANDOM);
+        deterministic.remove(MultiArgFunctions.RNG_CHOICE);
+        DETERMINISTIC_FUNCTIONS = deterministic;
     }
 
-    public static MathDictionary INSTANCE = new MathDictionary();
+    public static final MathDictionary INSTANCE = new MathDictionary();
+
+    private static final int ALPHABET = 37; // a-z, 0-9, _
+    private static final long FNV_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
 
-    private final Map<String, MathFunction> functions;
-    private final Map<String, Double> constants;
+    private final SharedArray<String> functionNames;
+    private final SharedArray<MathFunction> functionValues;
+    private final SharedArray<String> constantNames;
+    private final SharedArray<Double> constantValues;
+    /**
+     * Char-trie over both function and constant names, shared with the derived dictionaries
+     * but for the path to the names they add
+     */
+    private final TrieNode trie;
+    /**
+     * Sum of the hashes of all entries, so that it's updated in constant time by derivation
+     */
+    private final long checksum;
+    private final long version;
 
     private MathDictionary() {
-        this.functions = new HashMap<>(BASIC_FUNCTIONS);
-        this.constants = new HashMap<>(BASIC_CONSTANTS);
+        this(null, null);
     }
 
     /**
@@ -65,43 +95,344 @@ public class MathDictionary {
      * You can't provide duplicate constants or functions.
      * @param functions additional functions to register
      * @param constants additional constants to register
+     * @see #withFunction(String, MathFunction)
+     * @see #withConstant(String, double)
      */
     public MathDictionary(Map<String, MathFunction> functions, Map<String, Double> constants) {
-        this();
-        tryRegister("Function", this.functions, functions);
-        tryRegister("Constant", this.constants, constants);
+        this(Tables.of(functions, constants));
+    }
+
+    private MathDictionary(Tables tables) {
+        this.functionNames = SharedArray.of(tables.functionNames);
+        this.functionValues = SharedArray.of(tables.functionValues);
+        this.constantNames = SharedArray.of(tables.constantNames);
+        Double[] values = new Double[tables.constantValues.length];
+        for (int i = 0; i < values.length; i++) values[i] = tables.constantValues[i];
+        this.constantValues = SharedArray.of(values);
+        this.version = 0;
+
+        // Nothing shares the nodes yet, so they're filled in place
+        TrieNode trie = new TrieNode();
+        long checksum = 0;
+        for (int i = 0; i < tables.functionNames.length; i++) {
+            String name = tables.functionNames[i];
+            TrieNode.path(trie, name, false).functionId = i;
+            checksum += functionHash(name);
+        }
+        for (int i = 0; i < tables.constantNames.length; i++) {
+            String name = tables.constantNames[i];
+            TrieNode.path(trie, name, false).constantId = i;
+            checksum += constantHash(name, tables.constantValues[i]);
+        }
+        this.trie = trie;
+        this.checksum = checksum;
+    }
+
+    /**
+     * Tables are shared with the dictionaries derived from this one.
+     */
+    private MathDictionary(SharedArray<String> functionNames, SharedArray<MathFunction> functionValues,
+                           SharedArray<String> constantNames, SharedArray<Double> constantValues,
+                           TrieNode trie, long checksum, long version) {
+        this.functionNames = functionNames;
+        this.functionValues = functionValues;
+        this.constantNames = constantNames;
+        this.constantValues = constantValues;
+        this.trie = trie;
+        this.checksum = checksum;
+        this.version = version;
+    }
+
+    /**
+     * Derives a dictionary with one more function. This dictionary is left intact, and the derived one shares
+     * its tables and trie with it, only copying the paths to the new entry, so derivation takes about the same
+     * time and memory however many names there are. The function gets the next free id.
+     * @param name name of the function, following the {@link MathDictionary#NAME_PATTERN} pattern
+     * @param function function to register
+     * @return new dictionary with the function
+     * @throws IllegalArgumentException if the name doesn't follow the pattern
+     * @throws IllegalStateException if there's already a function under the name
+     */
+    public MathDictionary withFunction(String name, MathFunction function) {
+        validate("Function", name, function, getFunction(name) != null);
+        int id = functionNames.size();
+        TrieNode trie = this.trie.copy();
+        TrieNode.path(trie, name, true).functionId = id;
+        return new MathDictionary(
+                functionNames.with(id, name), functionValues.with(id, function), constantNames, constantValues,
+                trie, checksum + functionHash(name), version + 1
+        );
+    }
+
+    /**
+     * Derives a dictionary with one more constant, sharing structure like {@link #withFunction} does.
+     * @param name name of the constant, following the {@link MathDictionary#NAME_PATTERN} pattern
+     * @param value value of the constant
+     * @return new dictionary with the constant
+     * @throws IllegalArgumentException if the name doesn't follow the pattern
+     * @throws IllegalStateException if there's already a constant under the name
+     */
+    public MathDictionary withConstant(String name, double value) {
+        validate("Constant", name, value, getConstant(name) != null);
+        int id = constantNames.size();
+        TrieNode trie = this.trie.copy();
+        TrieNode.path(trie, name, true).constantId = id;
+        return new MathDictionary(
+                functionNames, functionValues, constantNames.with(id, name), constantValues.with(id, value),
+                trie, checksum + constantHash(name, value), version + 1
+        );
+    }
+
+    private static long functionHash(String name) {
+        return mix(fnv(fnv(FNV_BASIS, name), ";"));
+    }
+
+    private static long constantHash(String name, double value) {
+        return mix(fnv(fnv(fnv(FNV_BASIS, name), "="), Double.doubleToLongBits(value)));
+    }
+
+    /**
+     * Finalizer of SplitMix64, so that the sum of hashes of similar entries doesn't cancel out.
+     */
+    private static long mix(long hash) {
+        hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+        return hash ^ (hash >>> 31);
+    }
+
+    /**
+     * Checksum of dictionaries before it was made order-independent, so that older bundles are still readable:
+     * 64-bit FNV-1a over names in alphabetical order, separated by a character that can't appear in them.
+     * Takes time linear in the amount of names, unlike {@link #checksum()}.
+     * @return legacy checksum of the dictionary
+     */
+    long legacyChecksum() {
+        Map<String, Double> constants = new TreeMap<>();
+        for (int i = 0; i < constantNames.size(); i++) constants.put(constantNames.get(i), constantValues.get(i));
+        String[] functions = new String[functionNames.size()];
+        for (int i = 0; i < functions.length; i++) functions[i] = functionNames.get(i);
+        Arrays.sort(functions);
+        long checksum = FNV_BASIS;
+        for (String name : functions) checksum = fnv(fnv(checksum, name), ";");
+        for (Map.Entry<String, Double> constant : constants.entrySet()) {
+            checksum = fnv(fnv(fnv(checksum, constant.getKey()), "="), Double.doubleToLongBits(constant.getValue()));
+        }
+        return checksum;
+    }
+
+    private static long fnv(long hash, String str) {
+        for (int i = 0; i < str.length(); i++) {
+            hash = (hash ^ str.charAt(i)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * @return hash with the bytes of the value mixed in, the lowest first
+     */
+    private static long fnv(long hash, long bits) {
+        for (int shift = 0; shift < 64; shift += 8) {
+            hash = (hash ^ ((bits >>> shift) & 0xFF)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static int symbol(char c) {
+        if (c >= 'a' && c <= 'z') return c - 'a';
+        if (c >= '0' && c <= '9') return 26 + c - '0';
+        if (c == '_') return 36;
+        return -1;
     }
 
     private static <T> void tryRegister(String what, Map<String, T> in, Map<String, T> out) {
         if (out == null || out.isEmpty()) return;
         for (Map.Entry<String, T> entry : out.entrySet()) {
-            String name = entry.getKey();
-            Matcher matcher = NAME_PATTERN.matcher(name);
-            if (!matcher.matches()) {
-                throw new IllegalArgumentException(what + " name '" + name + "' doesn't " +
-                        "follow the name pattern '" + NAME_PATTERN + "'");
-            }
-            if (in.containsKey(name)) {
-                throw new IllegalStateException(what + " under the name '" + name + "' is already registered");
-            }
-            if (entry.getValue() == null) {
-                throw new NullPointerException(what + " under the name '" + name + "' has no value");
-            }
-            in.put(name, entry.getValue());
+            validate(what, entry.getKey(), entry.getValue(), in.containsKey(entry.getKey()));
+            in.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static void validate(String what, String name, Object value, boolean registered) {
+        Matcher matcher = NAME_PATTERN.matcher(name);
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException(what + " name '" + name + "' doesn't " +
+                    "follow the name pattern '" + NAME_PATTERN + "'");
+        }
+        if (name.equals(CONDITION)) {
+            throw new IllegalArgumentException(what + " name '" + name + "' is reserved");
+        }
+        if (registered) {
+            throw new IllegalStateException(what + " under the name '" + name + "' is already registered");
+        }
+        if (value == null) {
+            throw new NullPointerException(what + " under the name '" + name + "' has no value");
         }
     }
 
     public MathFunction getFunction(String name) {
-        return functions.get(name);
+        int id = functionId(name, 0, name.length());
+        return id < 0 ? null : functionValues.get(id);
     }
 
     public double getConstant(String name, double def) {
-        Double value = constants.get(name);
-        return value == null ? def : value;
+        int id = constantId(name, 0, name.length());
+        return id < 0 ? def : constantValues.get(id);
     }
 
     public Double getConstant(String name) {
-        return constants.get(name);
+        int id = constantId(name, 0, name.length());
+        return id < 0 ? null : constantValues.get(id);
+    }
+
+    /**
+     * Finds a function by name without creating a string for it.
+     * Name characters are compared in lower case, spaces are ignored.
+     * @param seq sequence containing the name
+     * @param start index of the first character of name
+     * @param end index after the last character of name
+     * @return id of the function, or {@code -1} if there's none under the name
+     * @see #function(int)
+     */
+    public int functionId(CharSequence seq, int start, int end) {
+        return find(true, seq, start, end);
+    }
+
+    /**
+     * Finds a constant by name without creating a string for it.
+     * Name characters are compared in lower case, spaces are ignored.
+     * @param seq sequence containing the name
+     * @param start index of the first character of name
+     * @param end index after the last character of name
+     * @return id of the constant, or {@code -1} if there's none under the name
+     * @see #constant(int)
+     */
+    public int constantId(CharSequence seq, int start, int end) {
+        return find(false, seq, start, end);
+    }
+
+    /**
+     * Ids of a created dictionary are indexes of names in alphabetical order, and derived dictionaries keep them,
+     * giving the next free id to the name they add.
+     * @param id id of the function
+     * @return the function
+     */
+    public MathFunction function(int id) {
+        return functionValues.get(id);
+    }
+
+    /**
+     * @param id id of the function
+     * @return name of the function
+     */
+    public String functionName(int id) {
+        return functionNames.get(id);
+    }
+
+    /**
+     * @return amount of registered functions, ids are lower than it
+     */
+    public int functionCount() {
+        return functionNames.size();
+    }
+
+    /**
+     * @param id id of the constant, assigned like ids of {@link #function(int) functions}
+     * @return value of the constant
+     */
+    public double constant(int id) {
+        return constantValues.get(id);
+    }
+
+    /**
+     * @param id id of the constant
+     * @return name of the constant
+     */
+    public String constantName(int id) {
+        return constantNames.get(id);
+    }
+
+    /**
+     * @return amount of registered constants, ids are lower than it
+     */
+    public int constantCount() {
+        return constantNames.size();
+    }
+
+    /**
+     * Checksum of the dictionary contents, to tell whether formulas compiled against another dictionary fit this one.
+     * Covers names of functions along with names and values of constants, but not implementations of functions.
+     * @return checksum of the dictionary
+     */
+    public long checksum() {
+        return checksum;
+    }
+
+    /**
+     * Amount of {@link #withFunction derivations} that led to this dictionary, {@code 0} for created ones.
+     * @return version of the dictionary
+     * @see MathRegistry
+     */
+    public long version() {
+        return version;
+    }
+
+    private int find(boolean function, CharSequence seq, int start, int end) {
+        TrieNode node = trie;
+        for (int i = start; i < end; i++) {
+            char c = seq.charAt(i);
+            if (c == ' ') continue;
+            int symbol = symbol(Character.toLowerCase(c));
+            if (symbol < 0 || node.children == null) return -1;
+            node = node.children[symbol];
+            if (node == null) return -1;
+        }
+        return function ? node.functionId : node.constantId;
+    }
+
+    /**
+     * @param function function to check, may be {@code null}
+     * @return whether the function is known to be {@link MathFunction#isPure() pure}
+     */
+    static boolean isDeterministic(MathFunction function) {
+        return function != null && function.isPure();
+    }
+
+    /**
+     * Derives a dictionary where {@code sin}, {@code cos}, {@code exp}, {@code log} and {@code pow} are replaced by
+     * faster approximations, accurate to the bounds stated on each of {@link FastFunctions} instead of half an ulp:
+     * {@code sin} and {@code cos} within {@code 1e-12} absolute, {@code exp} within {@code 1e-11} relative,
+     * {@code log} within {@code 1e-10} relative and {@code pow} within {@code 1e-10 * (1 + |b * ln(a)|)} relative,
+     * so large exponents lose more. Functions are only replaced if they're the built-in ones. The {@code ^} operator stays strict.
+     * @return dictionary with fast approximations
+     * @see FastFunctions
+     */
+    public MathDictionary withFastMath() {
+        SharedArray<MathFunction> values = functionValues;
+        for (FastFunctions fast : FastFunctions.values()) {
+            String name = fast.name().toLowerCase(Locale.ROOT);
+            int id = functionId(name, 0, name.length());
+            if (id >= 0 && values.get(id) == BASIC_FUNCTIONS.get(name)) values = values.with(id, fast);
+        }
+        return new MathDictionary(functionNames, values, constantNames, constantValues, trie, checksum, version + 1);
+    }
+
+    /**
+     * Derives a dictionary where every pure function costing at least {@link MemoizedFunction#MIN_COST} remembers
+     * its recent results. Names and checksum stay the same, so formulas and bundles are interchangeable.
+     * @param capacity amount of results every function remembers per thread
+     * @return dictionary with memoized functions
+     * @see MemoizedFunction
+     */
+    public MathDictionary memoized(int capacity) {
+        SharedArray<MathFunction> values = functionValues;
+        for (int i = 0; i < values.size(); i++) {
+            MathFunction function = values.get(i);
+            if (function.isPure() && function.cost() >= MemoizedFunction.MIN_COST
+                    && !(function instanceof MemoizedFunction)) {
+                values = values.with(i, new MemoizedFunction(function, capacity));
+            }
+        }
+        return new MathDictionary(functionNames, values, constantNames, constantValues, trie, checksum, version + 1);
     }
 
     public static boolean isDigit(char c) {
@@ -112,13 +443,144 @@ public class MathDictionary {
         return (c >= 'a' && c <= 'z') || c == '_';
     }
 
+    /**
+     * Parses a literal of {@code \d+(\.\d+(e[+-]?\d+)?)?} format.
+     * @param str literal to parse
+     * @param def value to return if the literal is malformed
+     * @return parsed value
+     * @see DoubleParser
+     */
     public static double asDouble(String str, double def) {
-        if (!FLOAT.matcher(str).matches()) return def;
-        return Double.parseDouble(str);
+        return DoubleParser.parseStrict(str, 0, str.length(), def);
     }
 
+    /**
+     * Node of the char-trie, along with ids of the function and the constant named by the path to it.
+     * Nodes are only changed before the dictionary is published, and derivation copies the ones it changes.
+     */
+    private static final class TrieNode {
+        /**
+         * {@code ALPHABET} children, or {@code null} if there are none
+         */
+        private TrieNode[] children;
+        private int functionId = -1;
+        private int constantId = -1;
+
+        private TrieNode copy() {
+            TrieNode copy = new TrieNode();
+            copy.children = children;
+            copy.functionId = functionId;
+            copy.constantId = constantId;
+            return copy;
+        }
+
+        /**
+         * @param root root to start from, changed in place
+         * @param name name to find or add the node of
+         * @param copy whether nodes along the path are shared, so they're copied before they're changed
+         * @return node of the name
+         */
+        private static TrieNode path(TrieNode root, String name, boolean copy) {
+            TrieNode node = root;
+            for (int i = 0; i < name.length(); i++) {
+                int symbol = symbol(name.charAt(i));
+                if (node.children == null) {
+                    node.children = new TrieNode[ALPHABET];
+                } else if (copy) {
+                    node.children = node.children.clone();
+                }
+                TrieNode child = node.children[symbol];
+                if (child == null) {
+                    child = new TrieNode();
+                } else if (copy) {
+                    child = child.copy();
+                }
+                node.children[symbol] = child;
+                node = child;
+            }
+            return node;
+        }
+    }
+
+    /**
+     * Sorted tables of a dictionary being created.
+     */
+    private record Tables(String[] functionNames, MathFunction[] functionValues,
+                          String[] constantNames, double[] constantValues) {
+        static Tables of(Map<String, MathFunction> functions, Map<String, Double> constants) {
+            Map<String, MathFunction> allFunctions = new HashMap<>(BASIC_FUNCTIONS);
+            Map<String, Double> allConstants = new HashMap<>(BASIC_CONSTANTS);
+            tryRegister("Function", allFunctions, functions);
+            tryRegister("Constant", allConstants, constants);
+            String[] functionNames = allFunctions.keySet().toArray(new String[0]);
+            Arrays.sort(functionNames);
+            MathFunction[] functionValues = new MathFunction[functionNames.length];
+            for (int i = 0; i < functionNames.length; i++) {
+                functionValues[i] = allFunctions.get(functionNames[i]);
+            }
+            String[] constantNames = allConstants.keySet().toArray(new String[0]);
+            Arrays.sort(constantNames);
+            double[] constantValues = new double[constantNames.length];
+            for (int i = 0; i < constantNames.length; i++) {
+                constantValues[i] = allConstants.get(constantNames[i]);
+            }
+            return new Tables(functionNames, functionValues, constantNames, constantValues);
+        }
+    }
+
+    /**
+     * Function of a single argument.
+     */
+    @FunctionalInterface
+    public interface Fn1 {
+        double accept(double a);
+    }
+
+    /**
+     * Function of two arguments.
+     */
+    @FunctionalInterface
+    public interface Fn2 {
+        double accept(double a, double b);
+    }
+
+    /**
+     * Function of three arguments.
+     */
+    @FunctionalInterface
+    public interface Fn3 {
+        double accept(double a, double b, double c);
+    }
+
+    /**
+     * Function of four arguments.
+     */
+    @FunctionalInterface
+    public interface Fn4 {
+        double accept(double a, double b, double c, double d);
+    }
+
+    /**
+     * Function of any amount of arguments, read from a slice of caller-provided buffer.
+     */
+    @FunctionalInterface
+    public interface FnN {
+        /**
+         * @param args buffer holding the arguments; shouldn't be modified or retained
+         * @param offset index of the first argument
+         * @param length amount of arguments, at least {@code 1}
+         * @return result of calculation
+         */
+        double accept(double[] args, int offset, int length);
+    }
+
+    /**
+     * Function of any arity. Evaluators pick the arity-specialized variant of {@code accept} at compile time,
+     * so functions of three or more arguments should override {@link Fn3}, {@link Fn4} and {@link FnN} variants
+     * to avoid allocating an array for every call.
+     */
     @FunctionalInterface
-    public interface MathFunction {
+    public interface MathFunction extends Fn1, Fn2, Fn3, Fn4, FnN {
         /**
          * Calculate result of function for desired numbers
          * @param a the first input number of function
@@ -129,12 +591,74 @@ public class MathDictionary {
             return accept(a, num[0]);
         }
 
+        @Override
+        default double accept(double a, double b, double c) {
+            return accept(a, new double[] {b, c});
+        }
+
+        @Override
+        default double accept(double a, double b, double c, double d) {
+            return accept(a, new double[] {b, c, d});
+        }
+
+        @Override
+        default double accept(double[] args, int offset, int length) {
+            return switch (length) {
+                case 1 -> accept(args[offset]);
+                case 2 -> accept(args[offset], args[offset + 1]);
+                case 3 -> accept(args[offset], args[offset + 1], args[offset + 2]);
+                case 4 -> accept(args[offset], args[offset + 1], args[offset + 2], args[offset + 3]);
+                default -> accept(args[offset], Arrays.copyOfRange(args, offset + 1, offset + length));
+            };
+        }
+
+        /**
+         * Pure functions always give the same result for the same arguments and have no side effects, so their calls
+         * can be folded, shared between formulas of a {@link FormulaSet} and {@link MemoizedFunction memoized}.
+         * Only built-in functions other than {@code random} and {@code rng_choice} are pure by default.
+         * @return whether the function is pure
+         */
+        default boolean isPure() {
+            return DETERMINISTIC_FUNCTIONS.contains(this);
+        }
+
+        /**
+         * Rough cost of a call, where {@code 1} is about a single arithmetic operation.
+         * @return relative cost of a call
+         * @see MemoizedFunction#MIN_COST
+         */
+        default int cost() {
+            return 1;
+        }
+
+        /**
+         * Partial derivative of the function by one of its arguments, used when formulas are differentiated.
+         * Defaults to the central finite difference; functions with a known derivative should override it.
+         * @param index index of the argument to differentiate by
+         * @param args buffer holding the arguments; shouldn't be modified or retained
+         * @param offset index of the first argument
+         * @param length amount of arguments
+         * @return value of the partial derivative
+         */
+        default double partial(int index, double[] args, int offset, int length) {
+            double[] point = Arrays.copyOfRange(args, offset, offset + length);
+            double x = point[index];
+            // Cube root of the machine epsilon balances truncation and rounding errors
+            double h = 6.055454452393343E-6 * Math.max(1, Math.abs(x));
+            point[index] = x + h;
+            double up = accept(point, 0, length);
+            point[index] = x - h;
+            double down = accept(point, 0, length);
+            return (up - down) / ((x + h) - (x - h));
+        }
+
         /**
          * Calculate result of function for desired numbers
          * @param a the first input number
          * @param b the second input number
          * @return result of calculation
          */
+        @Override
         default double accept(double a, double b) {
             return accept(a);
         }
@@ -144,6 +668,7 @@ public class MathDictionary {
          * @param a input number
          * @return result of calculation
          */
+        @Override
         double accept(double a);
     }
 
@@ -194,6 +719,25 @@ public class MathDictionary {
 
     private enum MultiArgFunctions implements MathFunction {
         MAX {
+            @Override
+            public double accept(double a, double b, double c) {
+                return Math.max(Math.max(a, b), c);
+            }
+
+            @Override
+            public double accept(double a, double b, double c, double d) {
+                return Math.max(Math.max(Math.max(a, b), c), d);
+            }
+
+            @Override
+            public double accept(double[] args, int offset, int length) {
+                double a = args[offset];
+                for (int i = offset + 1, end = offset + length; i < end; i++) {
+                    a = Math.max(a, args[i]);
+                }
+                return a;
+            }
+
             @Override
             public double accept(double a, double... num) {
                 for (double j : num) {
@@ -208,6 +752,25 @@ public class MathDictionary {
             }
         },
         MIN {
+            @Override
+            public double accept(double a, double b, double c) {
+                return Math.min(Math.min(a, b), c);
+            }
+
+            @Override
+            public double accept(double a, double b, double c, double d) {
+                return Math.min(Math.min(Math.min(a, b), c), d);
+            }
+
+            @Override
+            public double accept(double[] args, int offset, int length) {
+                double a = args[offset];
+                for (int i = offset + 1, end = offset + length; i < end; i++) {
+                    a = Math.min(a, args[i]);
+                }
+                return a;
+            }
+
             @Override
             public double accept(double a, double... num) {
                 for (double j : num) {
@@ -252,6 +815,21 @@ public class MathDictionary {
             }
         },
         FMA {
+            @Override
+            public double accept(double a, double b, double c) {
+                return Math.fma(a, b, c);
+            }
+
+            @Override
+            public double accept(double a, double b, double c, double d) {
+                return Math.fma(a, b, c);
+            }
+
+            @Override
+            public double accept(double[] args, int offset, int length) {
+                return length < 3 ? accept(args[offset]) : Math.fma(args[offset], args[offset + 1], args[offset + 2]);
+            }
+
             @Override
             public double accept(double a, double... num) {
                 return Math.fma(a, num[0], num[1]);
@@ -275,6 +853,28 @@ public class MathDictionary {
             }
         },
         HYPOT {
+            @Override
+            public double accept(double a, double b, double c) {
+                return Math.sqrt(a*a + b*b + c*c);
+            }
+
+            @Override
+            public double accept(double a, double b, double c, double d) {
+                return Math.sqrt(a*a + b*b + c*c + d*d);
+            }
+
+            @Override
+            public double accept(double[] args, int offset, int length) {
+                if (length == 1) return accept(args[offset]);
+                if (length == 2) return accept(args[offset], args[offset + 1]);
+                double a = args[offset];
+                a *= a;
+                for (int i = offset + 1, end = offset + length; i < end; i++) {
+                    a += args[i]*args[i];
+                }
+                return Math.sqrt(a);
+            }
+
             @Override
             public double accept(double a, double b) {
                 return Math.hypot(a, b);
@@ -290,6 +890,28 @@ public class MathDictionary {
             }
         },
         RAW_HYPOT {
+            @Override
+            public double accept(double a, double b, double c) {
+                return a*a + b*b + c*c;
+            }
+
+            @Override
+            public double accept(double a, double b, double c, double d) {
+                return a*a + b*b + c*c + d*d;
+            }
+
+            @Override
+            public double accept(double[] args, int offset, int length) {
+                if (length == 1) return accept(args[offset]);
+                if (length == 2) return accept(args[offset], args[offset + 1]);
+                double a = args[offset];
+                a *= a;
+                for (int i = offset + 1, end = offset + length; i < end; i++) {
+                    a += args[i]*args[i];
+                }
+                return a;
+            }
+
             @Override
             public double accept(double a, double b) {
                 return a*a + b*b;
@@ -331,6 +953,11 @@ public class MathDictionary {
             }
         },
         RNG_CHOICE {
+            @Override
+            public double accept(double[] args, int offset, int length) {
+                return args[offset + ThreadLocalRandom.current().nextInt(length)];
+            }
+
             @Override
             public double accept(double a, double... num) {
                 int choice = ThreadLocalRandom.current().nextInt(num.length + 1);
@@ -349,6 +976,25 @@ public class MathDictionary {
             }
         },
         AVG {
+            @Override
+            public double accept(double a, double b, double c) {
+                return (a+b+c) / 3;
+            }
+
+            @Override
+            public double accept(double a, double b, double c, double d) {
+                return (a+b+c+d) / 4;
+            }
+
+            @Override
+            public double accept(double[] args, int offset, int length) {
+                double a = args[offset];
+                for (int i = offset + 1, end = offset + length; i < end; i++) {
+                    a += args[i];
+                }
+                return a / length;
+            }
+
             @Override
             public double accept(double a, double... num) {
                 for (double b : num) {
@@ -382,19 +1028,28 @@ public class MathDictionary {
                 }
                 return tmp + Math.log(appx * Math.sqrt(2 * Math.PI));
             }
+
+            @Override
+            public int cost() {
+                return 80;
+            }
         },
         GAMMA {
+            /**
+             * Factorials of {@code 0..170}, multiplied in the same order as they used to be computed on every call
+             */
+            private static final double[] FACTORIALS = new double[171];
+            static {
+                FACTORIALS[0] = 1;
+                for (int i = 1; i < FACTORIALS.length; i++) FACTORIALS[i] = FACTORIALS[i - 1] * i;
+            }
+
             @Override
             public double accept(double a) {
                 if (a > 0) {
-                    if (a == 1) {
-                        return 1;
-                    } else if ((int) a == a) {
-                        double res = 1;
-                        for (int i = 2, max = (int) a - 1; i <= max; i++) {
-                            res *= i;
-                        }
-                        return res;
+                    if (a == Math.rint(a)) {
+                        // gamma(n) = (n-1)!, larger factorials overflow
+                        return a <= FACTORIALS.length ? FACTORIALS[(int) a - 1] : Double.POSITIVE_INFINITY;
                     } else {
                         return Math.exp(LOG_GAMMA.accept(a));
                     }
@@ -402,6 +1057,11 @@ public class MathDictionary {
                     return Double.POSITIVE_INFINITY;
                 }
             }
+
+            @Override
+            public int cost() {
+                return 100;
+            }
         };
 
         @Override
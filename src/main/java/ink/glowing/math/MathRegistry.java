@@ -0,0 +1,90 @@
+package ink.glowing.math;
+
+import ink.glowing.math.MathDictionary.MathFunction;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+/**
+ * Thread-safe holder of the current dictionary, for functions and constants registered at runtime.
+ * <p>
+ * Every registration atomically swaps in a dictionary {@link MathDictionary#withFunction derived} from the current
+ * one, so readers never lock and always see a complete dictionary. Formulas and caches built against a replaced
+ * dictionary can tell that it's stale by its identity.
+ */
+public final class MathRegistry {
+    private final AtomicReference<MathDictionary> current;
+
+    public MathRegistry() {
+        this(MathDictionary.INSTANCE);
+    }
+
+    /**
+     * @param base dictionary to start with
+     */
+    public MathRegistry(MathDictionary base) {
+        this.current = new AtomicReference<>(base);
+    }
+
+    /**
+     * @return the latest dictionary
+     */
+    public MathDictionary current() {
+        return current.get();
+    }
+
+    /**
+     * @return version of the latest dictionary, which grows with every registration
+     */
+    public long version() {
+        return current.get().version();
+    }
+
+    /**
+     * Registers a function, concurrently with other registrations.
+     * @param name name of the function
+     * @param function function to register
+     * @return dictionary with the function
+     * @throws IllegalArgumentException if the name doesn't follow the {@link MathDictionary#NAME_PATTERN} pattern
+     * @throws IllegalStateException if there's already a function under the name
+     */
+    public MathDictionary register(String name, MathFunction function) {
+        return update((math) -> math.withFunction(name, function));
+    }
+
+    /**
+     * Registers a constant, concurrently with other registrations.
+     * @param name name of the constant
+     * @param value value of the constant
+     * @return dictionary with the constant
+     * @throws IllegalArgumentException if the name doesn't follow the {@link MathDictionary#NAME_PATTERN} pattern
+     * @throws IllegalStateException if there's already a constant under the name
+     */
+    public MathDictionary register(String name, double value) {
+        return update((math) -> math.withConstant(name, value));
+    }
+
+    /**
+     * @param math dictionary to check
+     * @return whether the dictionary was replaced by a later registration
+     */
+    public boolean isStale(MathDictionary math) {
+        return math != current.get();
+    }
+
+    /**
+     * @param formula formula to check
+     * @return whether the formula was compiled against a dictionary other than the latest one
+     */
+    public boolean isStale(CompiledFormula formula) {
+        return isStale(formula.dictionary());
+    }
+
+    private MathDictionary update(UnaryOperator<MathDictionary> derivation) {
+        while (true) {
+            MathDictionary math = current.get();
+            MathDictionary derived = derivation.apply(math);
+            if (current.compareAndSet(math, derived)) return derived;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package ink.glowing.math;
+
+import ink.glowing.math.MathDictionary.MathFunction;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pure function that remembers its recent results.
+ * <p>
+ * Results are kept in a direct-mapped table per thread, keyed by raw bits of up to four arguments, so lookups neither
+ * box nor contend. A new result replaces whatever was in its slot. Calls with more arguments aren't remembered.
+ */
+public final class MemoizedFunction implements MathFunction {
+    /**
+     * Minimal {@link MathFunction#cost() cost} of a function for memoization to pay off over a table lookup
+     */
+    public static final int MIN_COST = 20;
+    private static final int MAX_ARITY = 4;
+
+    private final MathFunction function;
+    private final int capacity;
+    private final ThreadLocal<Table> tables;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param function pure function to memoize
+     * @param capacity amount of results to remember per thread, rounded up to a power of two
+     * @throws IllegalArgumentException if the function is not pure, or the capacity is not positive
+     */
+    public MemoizedFunction(MathFunction function, int capacity) {
+        if (!function.isPure()) {
+            throw new IllegalArgumentException("Only pure functions can be memoized");
+        }
+        if (capacity <= 0 || capacity > 1 << 24) {
+            throw new IllegalArgumentException("Capacity should be within 1.." + (1 << 24));
+        }
+        this.function = function;
+        this.capacity = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.tables = ThreadLocal.withInitial(() -> new Table(this.capacity));
+    }
+
+    @Override
+    public double accept(double a) {
+        Table table = tables.get();
+        long ka = Double.doubleToRawLongBits(a);
+        int slot = table.slot(mix(ka, 1));
+        if (table.matches(slot, 1, ka, 0, 0, 0)) return hit(table, slot);
+        return table.put(slot, 1, ka, 0, 0, 0, miss(function.accept(a)));
+    }
+
+    @Override
+    public double accept(double a, double b) {
+        Table table = tables.get();
+        long ka = Double.doubleToRawLongBits(a);
+        long kb = Double.doubleToRawLongBits(b);
+        int slot = table.slot(mix(mix(ka, 2), kb));
+        if (table.matches(slot, 2, ka, kb, 0, 0)) return hit(table, slot);
+        return table.put(slot, 2, ka, kb, 0, 0, miss(function.accept(a, b)));
+    }
+
+    @Override
+    public double accept(double a, double b, double c) {
+        Table table = tables.get();
+        long ka = Double.doubleToRawLongBits(a);
+        long kb = Double.doubleToRawLongBits(b);
+        long kc = Double.doubleToRawLongBits(c);
+        int slot = table.slot(mix(mix(mix(ka, 3), kb), kc));
+        if (table.matches(slot, 3, ka, kb, kc, 0)) return hit(table, slot);
+        return table.put(slot, 3, ka, kb, kc, 0, miss(function.accept(a, b, c)));
+    }
+
+    @Override
+    public double accept(double a, double b, double c, double d) {
+        Table table = tables.get();
+        long ka = Double.doubleToRawLongBits(a);
+        long kb = Double.doubleToRawLongBits(b);
+        long kc = Double.doubleToRawLongBits(c);
+        long kd = Double.doubleToRawLongBits(d);
+        int slot = table.slot(mix(mix(mix(mix(ka, 4), kb), kc), kd));
+        if (table.matches(slot, 4, ka, kb, kc, kd)) return hit(table, slot);
+        return table.put(slot, 4, ka, kb, kc, kd, miss(function.accept(a, b, c, d)));
+    }
+
+    @Override
+    public double accept(double[] args, int offset, int length) {
+        return switch (length) {
+            case 1 -> accept(args[offset]);
+            case 2 -> accept(args[offset], args[offset + 1]);
+            case 3 -> accept(args[offset], args[offset + 1], args[offset + 2]);
+            case 4 -> accept(args[offset], args[offset + 1], args[offset + 2], args[offset + 3]);
+            default -> function.accept(args, offset, length);
+        };
+    }
+
+    @Override
+    public double accept(double a, double... num) {
+        return switch (num.length) {
+            case 1 -> accept(a, num[0]);
+            case 2 -> accept(a, num[0], num[1]);
+            case 3 -> accept(a, num[0], num[1], num[2]);
+            default -> function.accept(a, num);
+        };
+    }
+
+    @Override
+    public double partial(int index, double[] args, int offset, int length) {
+        return function.partial(index, args, offset, length);
+    }
+
+    @Override
+    public boolean isPure() {
+        return true;
+    }
+
+    @Override
+    public int cost() {
+        return function.cost();
+    }
+
+    /**
+     * @return the memoized function
+     */
+    public MathFunction function() {
+        return function;
+    }
+
+    /**
+     * @return amount of results remembered per thread
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return amount of calls answered from the table, across all threads
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return amount of calls that invoked the function, across all threads
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return share of calls answered from the table, or {@code 0} if there were none
+     */
+    public double hitRate() {
+        long hits = hits();
+        long total = hits + misses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    private double hit(Table table, int slot) {
+        hits.increment();
+        return table.values[slot];
+    }
+
+    private double miss(double result) {
+        misses.increment();
+        return result;
+    }
+
+    private static long mix(long hash, long bits) {
+        return (hash ^ bits) * 0x9E3779B97F4A7C15L;
+    }
+
+    private static final class Table {
+        private final long[] keys;
+        private final double[] values;
+        /**
+         * Amount of arguments of every slot, {@code 0} for empty slots
+         */
+        private final byte[] arities;
+        private final int shift;
+
+        private Table(int capacity) {
+            this.keys = new long[capacity * MAX_ARITY];
+            this.values = new double[capacity];
+            this.arities = new byte[capacity];
+            this.shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        }
+
+        private int slot(long hash) {
+            return shift == 64 ? 0 : (int) (hash >>> shift);
+        }
+
+        private boolean matches(int slot, int arity, long a, long b, long c, long d) {
+            int base = slot * MAX_ARITY;
+            return arities[slot] == arity && keys[base] == a && keys[base + 1] == b
+                    && keys[base + 2] == c && keys[base + 3] == d;
+        }
+
+        private double put(int slot, int arity, long a, long b, long c, long d, double value) {
+            int base = slot * MAX_ARITY;
+            arities[slot] = (byte) arity;
+            keys[base] = a;
+            keys[base + 1] = b;
+            keys[base + 2] = c;
+            keys[base + 3] = d;
+            values[slot] = value;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package ink.glowing.math;
+
+import ink.glowing.math.MathDictionary.MathFunction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BiFunction;
+
+/**
+ * Parsed form of a formula, shared by the evaluators that compile it into something runnable.
+ * <p>
+ * Trees are walked with explicit stacks, so passes over them take constant depth of the Java stack however deep
+ * the tree is. Closures recurse on evaluation though, so trees deeper than {@link #MAX_RECURSION} are evaluated
+ * by {@link FormulaProgram} instead.
+ */
+sealed interface Node {
+    /**
+     * Maximum depth of trees that are compiled into recursive code
+     */
+    int MAX_RECURSION = 256;
+
+    /**
+     * @param node root of a tree
+     * @return count of nodes in the tree
+     */
+    static int size(Node node) {
+        return walk(node, (visited, sizes) -> {
+            int size = 1;
+            for (int child : sizes) size += child;
+            return size;
+        });
+    }
+
+    /**
+     * @param node root of a tree
+     * @return count of nodes on the longest path from the root to a leaf
+     */
+    static int depth(Node node) {
+        return walk(node, (visited, depths) -> {
+            int depth = 0;
+            for (int child : depths) depth = Math.max(depth, child);
+            return depth + 1;
+        });
+    }
+
+    /**
+     * @param node root of a tree
+     * @param out set to add names of variables the tree refers to
+     */
+    static void variables(Node node, Set<String> out) {
+        Walk walk = new Walk(node);
+        while (!walk.isEmpty()) {
+            Node visited = walk.pop();
+            if (visited instanceof Variable variable) out.add(variable.name());
+            List<Node> children = children(visited);
+            for (int i = children.size() - 1; i >= 0; i--) walk.push(children.get(i), 0, 0);
+        }
+    }
+
+    /**
+     * @param node root of a tree
+     * @return whether every function the tree calls is {@link MathFunction#isPure() pure}, so that the tree may be
+     * evaluated more times than asked for
+     */
+    static boolean isPure(Node node) {
+        Walk walk = new Walk(node);
+        while (!walk.isEmpty()) {
+            Node visited = walk.pop();
+            if (visited instanceof Call call && !MathDictionary.isDeterministic(call.function())) return false;
+            for (Node child : children(visited)) walk.push(child, 0, 0);
+        }
+        return true;
+    }
+
+    /**
+     * @return children of the node in the order they're evaluated
+     */
+    static List<Node> children(Node node) {
+        if (node instanceof Negate negate) {
+            return List.of(negate.a());
+        } else if (node instanceof Binary binary) {
+            return List.of(binary.a(), binary.b());
+        } else if (node instanceof Chain chain) {
+            return chain.operands();
+        } else if (node instanceof Junction junction) {
+            return junction.operands();
+        } else if (node instanceof Condition condition) {
+            return List.of(condition.test(), condition.then(), condition.otherwise());
+        } else if (node instanceof Call call) {
+            return call.args();
+        }
+        return List.of();
+    }
+
+    /**
+     * @param children new children in the order of {@link #children(Node)}
+     * @return node of the same kind with other children
+     */
+    static Node withChildren(Node node, List<Node> children) {
+        if (node instanceof Negate) {
+            return new Negate(children.get(0));
+        } else if (node instanceof Binary binary) {
+            return new Binary(binary.operator(), children.get(0), children.get(1));
+        } else if (node instanceof Chain chain) {
+            return new Chain(List.copyOf(children), chain.operators());
+        } else if (node instanceof Junction junction) {
+            return new Junction(junction.operator(), List.copyOf(children));
+        } else if (node instanceof Condition) {
+            return new Condition(children.get(0), children.get(1), children.get(2));
+        } else if (node instanceof Call call) {
+            return new Call(call.name(), call.function(), List.copyOf(children));
+        }
+        return node;
+    }
+
+    /**
+     * Computes a value for every node of a tree, children first.
+     * @param root root of a tree
+     * @param visit computes the value of a node from the values of its children, in their order
+     * @return value of the root
+     */
+    static <T> T walk(Node root, BiFunction<Node, List<T>, T> visit) {
+        Walk walk = new Walk(root);
+        List<T> values = new ArrayList<>();
+        while (!walk.isEmpty()) {
+            int stage = walk.stage();
+            Node node = walk.pop();
+            List<Node> children = children(node);
+            if (stage < children.size()) {
+                walk.push(node, stage + 1, 0);
+                walk.push(children.get(stage), 0, 0);
+                continue;
+            }
+            List<T> computed = values.subList(values.size() - children.size(), values.size());
+            T value = visit.apply(node, new ArrayList<>(computed));
+            computed.clear();
+            values.add(value);
+        }
+        return values.get(0);
+    }
+
+    /**
+     * @return whether the node always results in {@code 1} or {@code 0}
+     */
+    static boolean isBoolean(Node node) {
+        return node instanceof Binary binary && binary.isComparison() || node instanceof Junction;
+    }
+
+    /**
+     * @param operands at least one operand
+     * @param operators operators between consecutive operands
+     * @return the only operand, a binary node for two operands, or a chain for more
+     */
+    static Node fold(List<Node> operands, CharSequence operators) {
+        return switch (operands.size()) {
+            case 1 -> operands.get(0);
+            case 2 -> new Binary(operators.charAt(0), operands.get(0), operands.get(1));
+            default -> new Chain(List.copyOf(operands), operators.toString());
+        };
+    }
+
+    record Constant(double value) implements Node { }
+
+    record Variable(String name) implements Node { }
+
+    record Negate(Node a) implements Node { }
+
+    /**
+     * @param operator one of {@code + - * / % ^}, or one of {@code < ≤ > ≥ = ≠} comparing to {@code 1} or {@code 0}
+     */
+    record Binary(char operator, Node a, Node b) implements Node {
+        static final String COMPARISONS = "<≤>≥=≠";
+
+        boolean isComparison() {
+            return COMPARISONS.indexOf(operator) >= 0;
+        }
+    }
+
+    /**
+     * Left fold of three or more operands, like {@code ((a - b) + c) - d}, kept flat so that long sums and products
+     * are evaluated in a loop rather than by recursion.
+     * @param operators operators between consecutive operands, either all of {@code + -} or all of {@code * / %}
+     */
+    record Chain(List<Node> operands, String operators) implements Node {
+        /**
+         * @return whether the operator is one of {@code + -}, rather than one of {@code * / %}
+         */
+        static boolean isAdditive(char operator) {
+            return operator == '+' || operator == '-';
+        }
+
+        boolean isAdditive() {
+            return isAdditive(operators.charAt(0));
+        }
+
+        /**
+         * @return whether every operator of the chain is the given one
+         */
+        boolean isUniform(char operator) {
+            for (int i = 0; i < operators.length(); i++) {
+                if (operators.charAt(i) != operator) return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Evaluates only one of the branches. The test is true if it's not zero, so NaN is true.
+     */
+    record Condition(Node test, Node then, Node otherwise) implements Node { }
+
+    /**
+     * Run of {@code &&} or of {@code ||}, like {@code a && b && c}, kept flat for the same reason as chains.
+     * Operands are evaluated in order until one decides the result, so the result of {@code &&} is {@code 0} at
+     * the first zero operand and {@code 1} if there's none, and the result of {@code ||} is {@code 1} at the first
+     * operand that isn't zero and {@code 0} if there's none. NaN isn't zero.
+     * @param operator either {@code &} or {@code |}
+     * @param operands two or more operands
+     */
+    record Junction(char operator, List<Node> operands) implements Node {
+        /**
+         * @return result of the junction once an operand decides it
+         */
+        double decided() {
+            return operator == '&' ? 0 : 1;
+        }
+
+        /**
+         * @return whether the value of an operand decides the result
+         */
+        boolean decides(double value) {
+            return operator == '&' ? value == 0 : value != 0;
+        }
+    }
+
+    /**
+     * @param function registered function, or {@code null} if there's none under the name
+     */
+    record Call(String name, MathFunction function, List<Node> args) implements Node { }
+
+    /**
+     * Stack of nodes being walked, each with the stage of its walk and a mark the walk may keep along.
+     */
+    final class Walk {
+        private Node[] nodes = new Node[16];
+        private int[] stages = new int[16];
+        private int[] marks = new int[16];
+        private int size;
+
+        Walk(Node root) {
+            push(root, 0, 0);
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void push(Node node, int stage, int mark) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                stages = Arrays.copyOf(stages, size * 2);
+                marks = Arrays.copyOf(marks, size * 2);
+            }
+            nodes[size] = node;
+            stages[size] = stage;
+            marks[size] = mark;
+            size++;
+        }
+
+        /**
+         * @return stage of the top node
+         */
+        int stage() {
+            return stages[size - 1];
+        }
+
+        /**
+         * @return mark of the top node
+         */
+        int mark() {
+            return marks[size - 1];
+        }
+
+        /**
+         * @return the top node, removed from the stack
+         */
+        Node pop() {
+            Node node = nodes[--size];
+            nodes[size] = null;
+            return node;
+        }
+    }
+}
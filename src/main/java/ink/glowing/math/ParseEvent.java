@@ -0,0 +1,21 @@
+package ink.glowing.math;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("ink.glowing.math.Parse")
+@Label("Formula Parse")
+@Category("EzMath")
+@Description("Expression parsed into a formula tree")
+@StackTrace(false)
+final class ParseEvent extends Event {
+    @Label("Expression")
+    String expression;
+
+    @Label("Nodes")
+    int nodes;
+}
@@ -0,0 +1,402 @@
+package ink.glowing.math;
+
+import ink.glowing.math.MathDictionary.MathFunction;
+import ink.glowing.math.Node.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Interval analysis of formula trees over declared ranges of variables.
+ * <p>
+ * Ranges are used to drop operations that can't change their argument within them, like {@code abs} of a
+ * non-negative value, {@code max} with an argument that never wins, or branches of conditions that are never taken,
+ * and to expand powers with small constant
+ * exponents into multiplications. Apart from the powers, that may differ in the last bit, rewrites keep the results
+ * identical, including NaN and signed zeros.
+ */
+final class RangeAnalyzer {
+    private static final MathFunction ABS = MathDictionary.BASIC_FUNCTIONS.get("abs");
+    private static final MathFunction SQRT = MathDictionary.BASIC_FUNCTIONS.get("sqrt");
+    private static final MathFunction EXP = MathDictionary.BASIC_FUNCTIONS.get("exp");
+    private static final MathFunction SIN = MathDictionary.BASIC_FUNCTIONS.get("sin");
+    private static final MathFunction COS = MathDictionary.BASIC_FUNCTIONS.get("cos");
+    private static final MathFunction FLOOR = MathDictionary.BASIC_FUNCTIONS.get("floor");
+    private static final MathFunction CEIL = MathDictionary.BASIC_FUNCTIONS.get("ceil");
+    private static final MathFunction SIGNUM = MathDictionary.BASIC_FUNCTIONS.get("signum");
+    private static final MathFunction MAX = MathDictionary.BASIC_FUNCTIONS.get("max");
+    private static final MathFunction MIN = MathDictionary.BASIC_FUNCTIONS.get("min");
+
+    private final Map<String, Interval> ranges;
+
+    private RangeAnalyzer(Map<String, Interval> ranges) {
+        this.ranges = ranges;
+    }
+
+    /**
+     * @param root formula tree
+     * @param ranges ranges of variables, unlisted variables are unbounded
+     * @return formula tree specialized for the ranges
+     */
+    static Node specialize(Node root, Map<String, Interval> ranges) {
+        return Node.<Result>walk(root, new RangeAnalyzer(ranges)::analyze).node;
+    }
+
+    /**
+     * @param root formula tree
+     * @param ranges ranges of variables, unlisted variables are unbounded
+     * @return whether any divisor of the formula may be zero within the ranges
+     */
+    static boolean mayDivideByZero(Node root, Map<String, Interval> ranges) {
+        return Node.<Result>walk(root, new RangeAnalyzer(ranges)::analyze).divides;
+    }
+
+    /**
+     * @param args results of the children of the node
+     */
+    private Result analyze(Node node, List<Result> args) {
+        if (node instanceof Condition) return analyzeCondition(args);
+        if (node instanceof Junction junction) return analyze(junction, args);
+        Result result = rewrite(node, args);
+        boolean divides = result.divides;
+        for (Result arg : args) divides |= arg.divides;
+        return divides == result.divides ? result : new Result(result.node, result.range, true);
+    }
+
+    private Result rewrite(Node node, List<Result> args) {
+        if (node instanceof Constant cons) {
+            return new Result(node, Interval.of(cons.value()));
+        } else if (node instanceof Variable variable) {
+            Interval range = ranges.get(variable.name());
+            return new Result(node, range == null ? Interval.UNBOUNDED : range);
+        } else if (node instanceof Negate) {
+            Result a = args.get(0);
+            return new Result(new Negate(a.node), a.range.negate());
+        } else if (node instanceof Binary binary) {
+            return analyze(binary, args.get(0), args.get(1));
+        } else if (node instanceof Chain chain) {
+            return analyze(chain, args);
+        }
+        Call call = (Call) node;
+        List<Node> nodes = new ArrayList<>(args.size());
+        for (Result arg : args) nodes.add(arg.node);
+        Node rewritten = new Call(call.name(), call.function(), List.copyOf(nodes));
+        MathFunction function = call.function();
+        if (args.size() == 1) {
+            Interval a = args.get(0).range;
+            if (function == ABS) {
+                if (a.lo >= 0 && !a.negativeZero) return args.get(0);
+                return new Result(rewritten, a.abs());
+            } else if (function == SIGNUM && !a.nan && (a.lo > 0 || a.hi < 0)) {
+                double sign = a.lo > 0 ? 1 : -1;
+                return new Result(new Constant(sign), Interval.of(sign));
+            } else if (function == SQRT) {
+                Interval domain = a.lo < 0 ? new Interval(0, a.hi, a.nan, a.negativeZero) : a;
+                return new Result(rewritten, domain.monotone(Math::sqrt, a.lo < 0));
+            } else if (function == EXP) {
+                return new Result(rewritten, a.monotone(Math::exp, false).positive());
+            } else if (function == FLOOR) {
+                return new Result(rewritten, a.monotone(Math::floor, false));
+            } else if (function == CEIL) {
+                return new Result(rewritten, a.monotone(Math::ceil, false));
+            } else if (function == SIN || function == COS) {
+                return new Result(rewritten, new Interval(-1, 1, a.nan || Double.isInfinite(a.lo)
+                        || Double.isInfinite(a.hi), true));
+            }
+        } else if (args.size() == 2 && (function == MAX || function == MIN)) {
+            Result a = args.get(0);
+            Result b = args.get(1);
+            boolean max = function == MAX;
+            if (redundant(a.range, b.range, max)) return a;
+            if (redundant(b.range, a.range, max)) return b;
+            Interval range = new Interval(
+                    function == MAX ? Math.max(a.range.lo, b.range.lo) : Math.min(a.range.lo, b.range.lo),
+                    function == MAX ? Math.max(a.range.hi, b.range.hi) : Math.min(a.range.hi, b.range.hi),
+                    a.range.nan || b.range.nan,
+                    a.range.negativeZero || b.range.negativeZero
+            );
+            return new Result(rewritten, range);
+        }
+        return new Result(rewritten, Interval.UNKNOWN);
+    }
+
+    /**
+     * @return whether {@code max} or {@code min} of two values always results in the kept one
+     */
+    private static boolean redundant(Interval kept, Interval dropped, boolean max) {
+        if (dropped.nan) return false;
+        Interval high = max ? kept : dropped;
+        Interval low = max ? dropped : kept;
+        // Zeros of different signs are equal, but max and min still pick a specific one
+        return high.lo > low.hi || (high.lo >= low.hi && !high.negativeZero && !low.negativeZero);
+    }
+
+    /**
+     * Only the branches that may be taken count for division by zero.
+     */
+    private static Result analyzeCondition(List<Result> args) {
+        Result test = args.get(0);
+        Result then = args.get(1);
+        Result otherwise = args.get(2);
+        Boolean truth = truth(test.range);
+        if (truth != null) {
+            Result taken = truth ? then : otherwise;
+            return test.divides && !taken.divides ? new Result(taken.node, taken.range, true) : taken;
+        }
+        return new Result(new Condition(test.node, then.node, otherwise.node), then.range.union(otherwise.range),
+                test.divides || then.divides || otherwise.divides);
+    }
+
+    /**
+     * Replaces operands that are always true or always false within the ranges with constants, so that the ones
+     * never deciding the result are dropped, and so are the ones after an operand that always does.
+     */
+    private static Result analyze(Junction junction, List<Result> args) {
+        List<Node> operands = new ArrayList<>(args.size());
+        boolean divides = false;
+        for (Result arg : args) {
+            divides |= arg.divides;
+            Boolean truth = truth(arg.range);
+            if (truth == null) {
+                operands.add(arg.node);
+                continue;
+            }
+            double value = truth ? 1 : 0;
+            operands.add(new Constant(value));
+            if (junction.decides(value)) break;
+        }
+        Node node = FormulaOptimizer.optimize(junction, operands);
+        return new Result(node, node instanceof Constant cons ? Interval.of(cons.value()) : Interval.BOOLEAN, divides);
+    }
+
+    /**
+     * @return whether every value within the range is true, or {@code null} if it varies
+     */
+    private static Boolean truth(Interval range) {
+        // NaN is true, so only zero is false
+        if (!range.contains(0)) return Boolean.TRUE;
+        if (range.lo == 0 && range.hi == 0 && !range.nan) return Boolean.FALSE;
+        return null;
+    }
+
+    private Result analyze(Binary binary, Result a, Result b) {
+        char operator = binary.operator();
+        if (binary.isComparison()) {
+            Boolean decided = compare(operator, a.range, b.range);
+            if (decided != null) {
+                double value = decided ? 1 : 0;
+                return new Result(new Constant(value), Interval.of(value));
+            }
+            return new Result(new Binary(operator, a.node, b.node), Interval.BOOLEAN);
+        }
+        if (operator == '^') {
+            Node power = b.node instanceof Constant cons ? power(a, cons.value()) : null;
+            return new Result(power != null ? power : new Binary(operator, a.node, b.node), Interval.UNKNOWN);
+        }
+        return new Result(new Binary(operator, a.node, b.node), apply(operator, a.range, b.range),
+                divides(operator, b.range));
+    }
+
+    private Result analyze(Chain chain, List<Result> args) {
+        List<Node> nodes = new ArrayList<>(args.size());
+        Interval range = null;
+        boolean divides = false;
+        for (int i = 0; i < args.size(); i++) {
+            Result result = args.get(i);
+            nodes.add(result.node);
+            if (i == 0) {
+                range = result.range;
+            } else {
+                char operator = chain.operators().charAt(i - 1);
+                range = apply(operator, range, result.range);
+                divides |= divides(operator, result.range);
+            }
+        }
+        return new Result(new Chain(List.copyOf(nodes), chain.operators()), range, divides);
+    }
+
+    /**
+     * @return whether the operation may divide by zero
+     */
+    private static boolean divides(char operator, Interval y) {
+        return (operator == '/' || operator == '%') && (y.contains(0) || y.nan);
+    }
+
+    /**
+     * @param operator one of {@code + - * / %}
+     * @return range of results of the operation
+     */
+    private static Interval apply(char operator, Interval x, Interval y) {
+        return switch (operator) {
+            case '+' -> x.add(y);
+            case '-' -> x.add(y.negate());
+            case '*' -> x.multiply(y);
+            case '/' -> x.divide(y);
+            default -> x.remainder(y);
+        };
+    }
+
+    /**
+     * @return result of comparison for every pair of values within the ranges, or {@code null} if it varies
+     */
+    private static Boolean compare(char operator, Interval x, Interval y) {
+        Boolean real = switch (operator) {
+            case '<' -> x.hi < y.lo ? Boolean.TRUE : x.lo >= y.hi ? Boolean.FALSE : null;
+            case '≤' -> x.hi <= y.lo ? Boolean.TRUE : x.lo > y.hi ? Boolean.FALSE : null;
+            case '>' -> x.lo > y.hi ? Boolean.TRUE : x.hi <= y.lo ? Boolean.FALSE : null;
+            case '≥' -> x.lo >= y.hi ? Boolean.TRUE : x.hi < y.lo ? Boolean.FALSE : null;
+            case '=', '≠' -> {
+                Boolean equal = x.lo == x.hi && y.lo == y.hi && x.lo == y.lo ? Boolean.TRUE
+                        : x.hi < y.lo || x.lo > y.hi ? Boolean.FALSE : null;
+                yield equal == null ? null : operator == '=' ? equal : Boolean.valueOf(!equal);
+            }
+            default -> null;
+        };
+        // NaN fails every comparison but ≠
+        if (real != null && (x.nan || y.nan) && real != (operator == '≠')) return null;
+        return real;
+    }
+
+    private static Node power(Result base, double exponent) {
+        Node a = base.node;
+        // Expanding would evaluate anything but a leaf several times
+        if (!(a instanceof Variable || a instanceof Constant)) return null;
+        // Shaped like the parser builds them, so "x*x*x" and "(x*x)*(x*x)"
+        if (exponent == 3) {
+            return Node.fold(List.of(a, a, a), "**");
+        } else if (exponent == 4) {
+            return Node.fold(List.of(a, a, new Binary('*', a, a)), "**");
+        } else if (exponent == -1) {
+            return new Binary('/', new Constant(1), a);
+        } else if (exponent == -2) {
+            return new Binary('/', new Constant(1), new Binary('*', a, a));
+        } else if (exponent == 0.5 && base.range.lo >= 0 && !base.range.negativeZero) {
+            // pow(-0, 0.5) is +0 while sqrt(-0) is -0, and pow(-inf, 0.5) is +inf
+            return new Call("sqrt", SQRT, List.of(a));
+        }
+        return null;
+    }
+
+    /**
+     * @param divides whether the node may divide by zero
+     */
+    private record Result(Node node, Interval range, boolean divides) {
+        Result(Node node, Interval range) {
+            this(node, range, false);
+        }
+    }
+
+    /**
+     * Range of real values along with the special values that may appear.
+     * @param lo lower bound, inclusive
+     * @param hi upper bound, inclusive
+     * @param nan whether the value may be NaN
+     * @param negativeZero whether the value may be {@code -0}
+     */
+    record Interval(double lo, double hi, boolean nan, boolean negativeZero) {
+        static final Interval UNBOUNDED = new Interval(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, false, true);
+        static final Interval UNKNOWN = new Interval(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, true, true);
+        static final Interval BOOLEAN = new Interval(0, 1, false, false);
+
+        /**
+         * Range of a declared variable, which excludes NaN.
+         * {@code -0} is only included if the lower bound is {@code -0} or negative.
+         */
+        static Interval of(double lo, double hi) {
+            return new Interval(lo, hi, false, Double.compare(lo, -0D) <= 0 && hi >= 0);
+        }
+
+        static Interval of(double value) {
+            if (Double.isNaN(value)) return UNKNOWN;
+            return new Interval(value, value, false, Double.doubleToRawLongBits(value) == Long.MIN_VALUE);
+        }
+
+        boolean contains(double value) {
+            return lo <= value && value <= hi;
+        }
+
+        Interval negate() {
+            return new Interval(-hi, -lo, nan, contains(0));
+        }
+
+        Interval abs() {
+            if (lo >= 0) return new Interval(lo, hi, nan, false);
+            if (hi <= 0) return new Interval(-hi, -lo, nan, false);
+            return new Interval(0, Math.max(-lo, hi), nan, false);
+        }
+
+        Interval union(Interval other) {
+            return new Interval(Math.min(lo, other.lo), Math.max(hi, other.hi), nan || other.nan,
+                    negativeZero || other.negativeZero);
+        }
+
+        Interval positive() {
+            return new Interval(lo, hi, nan, false);
+        }
+
+        Interval monotone(DoubleUnaryOperator function, boolean nan) {
+            double l = function.applyAsDouble(lo);
+            double h = function.applyAsDouble(hi);
+            if (Double.isNaN(l) || Double.isNaN(h)) return UNKNOWN;
+            return new Interval(l, h, this.nan || nan, l <= 0 && h >= 0);
+        }
+
+        Interval add(Interval other) {
+            double l = lo + other.lo;
+            double h = hi + other.hi;
+            boolean infinities = (lo == Double.NEGATIVE_INFINITY && other.hi == Double.POSITIVE_INFINITY)
+                    || (hi == Double.POSITIVE_INFINITY && other.lo == Double.NEGATIVE_INFINITY);
+            return bounded(l, h, nan || other.nan || infinities);
+        }
+
+        Interval multiply(Interval other) {
+            boolean zeroByInfinity = (contains(0) && other.infinite()) || (other.contains(0) && infinite());
+            return bounded(
+                    min(product(lo, other.lo), product(lo, other.hi), product(hi, other.lo), product(hi, other.hi)),
+                    max(product(lo, other.lo), product(lo, other.hi), product(hi, other.lo), product(hi, other.hi)),
+                    nan || other.nan || zeroByInfinity
+            );
+        }
+
+        Interval divide(Interval other) {
+            if (other.contains(0)) return UNKNOWN;
+            boolean infinities = infinite() && other.infinite();
+            return bounded(
+                    min(lo / other.lo, lo / other.hi, hi / other.lo, hi / other.hi),
+                    max(lo / other.lo, lo / other.hi, hi / other.lo, hi / other.hi),
+                    nan || other.nan || infinities
+            );
+        }
+
+        Interval remainder(Interval other) {
+            if (other.contains(0) || infinite()) return UNKNOWN;
+            double m = Math.max(Math.abs(other.lo), Math.abs(other.hi));
+            return new Interval(lo >= 0 ? 0 : -m, hi <= 0 ? 0 : m, nan || other.nan, negativeZero || lo < 0);
+        }
+
+        private boolean infinite() {
+            return Double.isInfinite(lo) || Double.isInfinite(hi);
+        }
+
+        private static Interval bounded(double lo, double hi, boolean nan) {
+            if (Double.isNaN(lo)) lo = Double.NEGATIVE_INFINITY;
+            if (Double.isNaN(hi)) hi = Double.POSITIVE_INFINITY;
+            return new Interval(lo, hi, nan, lo <= 0 && hi >= 0);
+        }
+
+        private static double product(double a, double b) {
+            double product = a * b;
+            return Double.isNaN(product) ? 0 : product;
+        }
+
+        private static double min(double a, double b, double c, double d) {
+            return Math.min(Math.min(a, b), Math.min(c, d));
+        }
+
+        private static double max(double a, double b, double c, double d) {
+            return Math.max(Math.max(a, b), Math.max(c, d));
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package ink.glowing.math;
+
+import java.util.Arrays;
+
+/**
+ * Aggregate of the latest samples of a value, behind the window functions of {@link FormulaEvaluator}.
+ * <p>
+ * Every sample is taken in constant time, amortized for {@link #MIN} and {@link #MAX}, however large the window is.
+ * Buffers grow with the amount of samples taken, up to the window size, so large windows cost nothing until
+ * they fill up. Instances aren't thread-safe.
+ */
+abstract class RollingWindow {
+    /**
+     * Sum of the last {@code n} samples
+     */
+    static final String SUM = "rolling_sum";
+    /**
+     * Average of the last {@code n} samples
+     */
+    static final String AVG = "rolling_avg";
+    static final String MIN = "rolling_min";
+    static final String MAX = "rolling_max";
+    /**
+     * Exponentially weighted moving average with the span of {@code n} samples, so the weight of a new sample is
+     * {@code 2/(n+1)}
+     */
+    static final String EWMA = "ewma";
+
+    private static final int MAX_SIZE = 1 << 30;
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * @param name name of the window function
+     * @param size window size, or span for {@link #EWMA}
+     * @return empty window, or {@code null} if there's no such function or the size is less than {@code 1}
+     */
+    static RollingWindow of(String name, double size) {
+        if (!(size >= 1)) return null;
+        int length = (int) Math.min(size, MAX_SIZE);
+        return switch (name) {
+            case SUM -> new Sum(length, false);
+            case AVG -> new Sum(length, true);
+            case MIN -> new Extremum(length, false);
+            case MAX -> new Extremum(length, true);
+            case EWMA -> new Ewma(2 / (Math.min(size, Double.MAX_VALUE) + 1));
+            default -> null;
+        };
+    }
+
+    /**
+     * @param name name of a function
+     * @return whether it's one of the window functions
+     */
+    static boolean isWindow(String name) {
+        return switch (name) {
+            case SUM, AVG, MIN, MAX, EWMA -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * Takes a sample, evicting the oldest one once the window is full.
+     * @param value sample
+     * @return aggregate of the samples within the window
+     */
+    abstract double add(double value);
+
+    /**
+     * Ring buffer of samples along with their running sum. The sum is compensated, so that the error doesn't
+     * accumulate as samples come and go, and infinities and NaN are counted apart, so that they leave the sum
+     * along with their samples.
+     */
+    private static final class Sum extends RollingWindow {
+        private final int size;
+        private final boolean average;
+        private double[] samples;
+        /**
+         * Index of the next sample, which is also the oldest one once the window is full
+         */
+        private int head;
+        private int count;
+        private double sum;
+        private double compensation;
+        private int nans;
+        private int positiveInfinities;
+        private int negativeInfinities;
+
+        private Sum(int size, boolean average) {
+            this.size = size;
+            this.average = average;
+            this.samples = new double[Math.min(size, INITIAL_CAPACITY)];
+        }
+
+        @Override
+        double add(double value) {
+            if (count == size) {
+                accumulate(samples[head], -1);
+            } else {
+                // Samples are in order until the window fills up, so they're kept so
+                if (count == samples.length) samples = Arrays.copyOf(samples, Math.min(size, count * 2));
+                count++;
+            }
+            samples[head] = value;
+            accumulate(value, 1);
+            if (++head == size) head = 0;
+            double result;
+            if (nans > 0 || positiveInfinities > 0 && negativeInfinities > 0) {
+                result = Double.NaN;
+            } else if (positiveInfinities > 0) {
+                result = Double.POSITIVE_INFINITY;
+            } else if (negativeInfinities > 0) {
+                result = Double.NEGATIVE_INFINITY;
+            } else {
+                result = sum + compensation;
+            }
+            return average ? result / count : result;
+        }
+
+        /**
+         * @param sign {@code 1} to add the value, {@code -1} to subtract it
+         */
+        private void accumulate(double value, int sign) {
+            if (Double.isNaN(value)) {
+                nans += sign;
+            } else if (value == Double.POSITIVE_INFINITY) {
+                positiveInfinities += sign;
+            } else if (value == Double.NEGATIVE_INFINITY) {
+                negativeInfinities += sign;
+            } else {
+                // Neumaier summation
+                double x = sign * value;
+                double t = sum + x;
+                compensation += Math.abs(sum) >= Math.abs(x) ? (sum - t) + x : (x - t) + sum;
+                sum = t;
+            }
+        }
+    }
+
+    /**
+     * Monotonic deque of samples that may still become the extremum, each with its position. A new sample evicts
+     * every earlier one that it beats, so the front of the deque is always the extremum of the window.
+     * The latest NaN is tracked apart, as it makes the whole window NaN like {@link Math#max} does.
+     */
+    private static final class Extremum extends RollingWindow {
+        private final int size;
+        private final boolean max;
+        private double[] values;
+        private long[] positions;
+        private int first;
+        private int length;
+        private long taken;
+        private long lastNan = -1;
+
+        private Extremum(int size, boolean max) {
+            this.size = size;
+            this.max = max;
+            int capacity = Math.min(size, INITIAL_CAPACITY);
+            this.values = new double[capacity];
+            this.positions = new long[capacity];
+        }
+
+        @Override
+        double add(double value) {
+            long position = taken++;
+            // Positions only grow by one, so at most one sample gets out of the window
+            if (length > 0 && positions[first] <= position - size) {
+                first = next(first);
+                length--;
+            }
+            if (Double.isNaN(value)) {
+                lastNan = position;
+            } else {
+                // Ordered like Double.compare, so that +0 beats -0 for max and loses for min
+                while (length > 0 && beats(value, values[index(length - 1)])) length--;
+                if (length == values.length) grow();
+                int last = index(length++);
+                values[last] = value;
+                positions[last] = position;
+            }
+            return lastNan >= 0 && position - lastNan < size ? Double.NaN : values[first];
+        }
+
+        private boolean beats(double value, double other) {
+            int comparison = Double.compare(value, other);
+            return max ? comparison >= 0 : comparison <= 0;
+        }
+
+        private void grow() {
+            int capacity = Math.min(size, values.length * 2);
+            double[] grownValues = new double[capacity];
+            long[] grownPositions = new long[capacity];
+            for (int i = 0; i < length; i++) {
+                grownValues[i] = values[index(i)];
+                grownPositions[i] = positions[index(i)];
+            }
+            values = grownValues;
+            positions = grownPositions;
+            first = 0;
+        }
+
+        private int index(int offset) {
+            int index = first + offset;
+            return index >= values.length ? index - values.length : index;
+        }
+
+        private int next(int index) {
+            return index + 1 == values.length ? 0 : index + 1;
+        }
+    }
+
+    private static final class Ewma extends RollingWindow {
+        private final double alpha;
+        private double mean;
+        private boolean started;
+
+        private Ewma(double alpha) {
+            this.alpha = alpha;
+        }
+
+        @Override
+        double add(double value) {
+            mean = started ? mean + alpha * (value - mean) : value;
+            started = true;
+            return mean;
+        }
+    }
+}
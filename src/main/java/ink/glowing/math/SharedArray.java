@@ -0,0 +1,88 @@
+package ink.glowing.math;
+
+/**
+ * Immutable array, where replacing or appending an element only copies the path to it in a tree of
+ * {@value #WIDTH}-wide nodes, so arrays derived from each other share everything else. Access takes
+ * {@code log32(size)} steps, which is at most a few for any practical size.
+ * @param <T> type of elements
+ */
+final class SharedArray<T> {
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+
+    private final Object[] root;
+    private final int size;
+    /**
+     * Shift of the index for the root level, {@code 0} if the root holds elements themselves
+     */
+    private final int shift;
+
+    private SharedArray(Object[] root, int size, int shift) {
+        this.root = root;
+        this.size = size;
+        this.shift = shift;
+    }
+
+    /**
+     * @param values elements of the array, copied
+     * @return array of the elements
+     */
+    static <T> SharedArray<T> of(T[] values) {
+        if (values.length == 0) return new SharedArray<>(new Object[WIDTH], 0, 0);
+        // Built level by level from the bottom, as nothing is shared yet
+        Object[] level = values;
+        int shift = 0;
+        do {
+            Object[] parents = new Object[(level.length + MASK) >>> BITS];
+            for (int i = 0; i < parents.length; i++) {
+                Object[] node = new Object[WIDTH];
+                System.arraycopy(level, i << BITS, node, 0, Math.min(WIDTH, level.length - (i << BITS)));
+                parents[i] = node;
+            }
+            level = parents;
+            shift += BITS;
+        } while (level.length > 1);
+        return new SharedArray<>((Object[]) level[0], values.length, shift - BITS);
+    }
+
+    int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    T get(int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException(index);
+        Object[] node = root;
+        for (int level = shift; level > 0; level -= BITS) node = (Object[]) node[(index >>> level) & MASK];
+        return (T) node[index & MASK];
+    }
+
+    /**
+     * @param index index of the element to replace, or the size of the array to append one
+     * @param value new element
+     * @return array with the element, sharing the untouched nodes with this one
+     */
+    SharedArray<T> with(int index, T value) {
+        if (index < 0 || index > size) throw new IndexOutOfBoundsException(index);
+        Object[] root = this.root;
+        int shift = this.shift;
+        if (index >>> BITS >>> shift != 0) {
+            // The tree is full, so it grows by a level
+            root = new Object[WIDTH];
+            root[0] = this.root;
+            shift += BITS;
+        }
+        Object[] copy = root.clone();
+        Object[] node = copy;
+        for (int level = shift; level > 0; level -= BITS) {
+            int slot = (index >>> level) & MASK;
+            Object[] child = (Object[]) node[slot];
+            child = child == null ? new Object[WIDTH] : child.clone();
+            node[slot] = child;
+            node = child;
+        }
+        node[index & MASK] = value;
+        return new SharedArray<>(copy, Math.max(size, index + 1), shift);
+    }
+}
@@ -0,0 +1,9 @@
+package ink.glowing.math;
+
+/**
+ * Compiled formula code that reads variables by their slot index.
+ */
+@FunctionalInterface
+interface SlotTerm {
+    double calc(double[] vars);
+}
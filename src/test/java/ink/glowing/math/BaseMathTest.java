@@ -23,6 +23,19 @@ public abstract class BaseMathTest {
                 {"sin(sqrt(5))^2", pow(sin(sqrt(5)), 2)},
                 {"cos(234.66+5)", cos(234.66+5)},
                 {"hypot(12,sin(34))/56", hypot(12, sin(34)) / 56d},
+                {"fma(2,3,4)+min(5,4,3,2)", fma(2, 3, 4) + 2},
+                {"avg(1,2,3,4)*max(1,2,3,4,5,6)", 2.5 * 6},
+                {"hypot(3,4,12)", 13},
+                {"1 < 2 && 3 >= 3", 1},
+                {"2 <= 1 || 1 != 1", 0},
+                {"2 + 3 > 4 * 1 == 1", 1},
+                {"if(1 > 2, 10, 20) + (0 ? 1 : 2)", 22},
+                {"1 == 1 ? 2 == 3 ? 4 : 5 : 6", 5},
+                {"if(-infinity + infinity, 1, 2) + (-infinity + infinity < 1)", 1},
+                {"-2^2 + 2^3^2 + 2^-1", -4 + 512 + 0.5},
+                {"2*-3+1-4/2%3", 2*-3+1-4d/2%3},
+                {"(1-2)-(3-4)+5*(6/3)*2", (1-2)-(3-4)+5*(6d/3)*2},
+                {"((((1+2))*((3))))", 9},
                 {"fake_funct(5)+other_fake(1,2)+fake_const+123", 123}
         };
     }
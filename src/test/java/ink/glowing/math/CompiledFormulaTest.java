@@ -0,0 +1,312 @@
+package ink.glowing.math;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.lang.Math.sqrt;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class CompiledFormulaTest extends BaseMathTest {
+    @DataProvider
+    public static Object[][] knownExpressions() {
+        return Arrays.stream(expressions())
+                .filter(row -> !((String) row[0]).contains("fake"))
+                .toArray(Object[][]::new);
+    }
+
+    @Test(dataProvider = "knownExpressions")
+    public void testEval(String expression, double expected) {
+        assertEquals(FormulaEvaluator.compile(expression).eval(new double[0]), expected);
+    }
+
+    @Test(dataProvider = "knownExpressions")
+    public void testBytecodeEval(String expression, double expected) {
+        CompiledFormula formula = FormulaEvaluator.compile(expression).withBackend(CompiledFormula.Backend.BYTECODE);
+        assertEquals(formula.backend(), CompiledFormula.Backend.BYTECODE);
+        assertEquals(formula.eval(new double[0]), expected);
+    }
+
+    @Test
+    public void testBytecodeFunctions() {
+        MathDictionary math = new MathDictionary(Map.of("twice", a -> a * 2), Map.of());
+        CompiledFormula formula = FormulaEvaluator.compile(
+                "twice(x)+max(x,y,3)+fma(x,y,1)+round(y)+get_exponent(x)+avg(x,y,x,y)+-x%y", math, "x", "y"
+        );
+        CompiledFormula bytecode = formula.withBackend(CompiledFormula.Backend.BYTECODE);
+        double[] vars = {5.5, 2.25};
+        assertEquals(bytecode.eval(vars), formula.eval(vars));
+        assertEquals(bytecode.eval(vars), 11 + 5.5 + (5.5*2.25+1) + 2 + 2 + 3.875 + (-5.5 % 2.25));
+    }
+
+    @Test(dataProvider = "knownExpressions")
+    public void testInterpreterEval(String expression, double expected) {
+        CompiledFormula formula = FormulaEvaluator.compile(expression).withBackend(CompiledFormula.Backend.INTERPRETER);
+        assertEquals(formula.backend(), CompiledFormula.Backend.INTERPRETER);
+        assertEquals(formula.eval(new double[0]), expected);
+    }
+
+    @Test
+    public void testInterpreterFunctions() {
+        MathDictionary math = new MathDictionary(Map.of(
+                "twice", a -> a * 2,
+                "nested", a -> FormulaEvaluator.compile("x*x+max(x,1,2,3,4,x)", "x")
+                        .withBackend(CompiledFormula.Backend.INTERPRETER)
+                        .eval(new double[] {a})
+        ), Map.of());
+        CompiledFormula formula = FormulaEvaluator.compile(
+                "twice(x)+max(x,y,3,4,5,6)+fma(x,y,1)+avg(x,y,x,y)-nested(y)*-x%y^2+1", math, "x", "y"
+        );
+        CompiledFormula interpreter = formula.withBackend(CompiledFormula.Backend.INTERPRETER);
+        double[] vars = {5.5, 2.25};
+        assertEquals(interpreter.eval(vars), formula.eval(vars));
+    }
+
+    @DataProvider
+    public Object[][] conditions() {
+        return new Object[][] {
+                {"if(x > y, x - y, y - x)"},
+                {"x < 0 || y < 0 ? -1 : x == y ? 0 : 1"},
+                {"(x >= y) + (x <= y) * 2 + (x != y) * 4 + (x == y) * 8 + (x < y) * 16"},
+                {"if(x && y, x / y, if(x, 1, -1)) * (if(x > 0, if(y > 0, 1, 2), 3) + 1)"},
+                {"if(x, 1, 2)^2 + -if(y, 3, 4)"}
+        };
+    }
+
+    @Test(dataProvider = "conditions")
+    public void testConditions(String expression) {
+        FormulaEvaluator reference = new FormulaEvaluator(expression);
+        CompiledFormula formula = FormulaEvaluator.compile(expression, "x", "y");
+        double[][] inputs = {{1, 2}, {2, 1}, {3, 3}, {0, 5}, {-1, 0}, {Double.NaN, 1}, {-0D, 0}};
+        for (CompiledFormula.Backend backend : CompiledFormula.Backend.values()) {
+            CompiledFormula compiled = formula.withBackend(backend);
+            // Interpreted formulas restore the tree from the program
+            CompiledFormula restored = formula.withBackend(CompiledFormula.Backend.INTERPRETER).withBackend(backend);
+            assertEquals(compiled.backend(), backend);
+            for (double[] vars : inputs) {
+                double expected = reference.eval(Map.of("x", vars[0], "y", vars[1]));
+                assertEquals(compiled.eval(vars), expected, expression);
+                assertEquals(restored.eval(vars), expected, expression);
+            }
+        }
+    }
+
+    @DataProvider
+    public Object[][] chains() {
+        return new Object[][] {
+                {"x-y+x*2-y/3+x%y-1"},
+                {"x*y/3*x%5*y"},
+                {"(x-y)-(y-x)+(x*y)*(y/x)-(1-x-y)"},
+                {"-x-y-1+(x+y+2)*(x-y-3)/(x*y*2)"},
+                {"x+y+(x > y ? x*y*2 : x-y-2)+sin(x+y+1)"}
+        };
+    }
+
+    @Test(dataProvider = "chains")
+    public void testChains(String expression) {
+        FormulaEvaluator reference = new FormulaEvaluator(expression);
+        CompiledFormula formula = FormulaEvaluator.compile(expression, "x", "y");
+        double[][] inputs = {{1, 2}, {2, 1}, {3, 3}, {0, 5}, {-1.5, 0.25}, {Double.NaN, 1}, {-0D, 0}};
+        for (CompiledFormula.Backend backend : CompiledFormula.Backend.values()) {
+            CompiledFormula compiled = formula.withBackend(backend);
+            CompiledFormula restored = formula.withBackend(CompiledFormula.Backend.INTERPRETER).withBackend(backend);
+            for (double[] vars : inputs) {
+                double expected = reference.eval(Map.of("x", vars[0], "y", vars[1]));
+                assertEquals(compiled.eval(vars), expected, expression);
+                assertEquals(restored.eval(vars), expected, expression);
+            }
+        }
+    }
+
+    @Test
+    public void testLongChain() {
+        String expression = "x" + "+x*2-1".repeat(200_000);
+        CompiledFormula formula = FormulaEvaluator.compile(expression, "x");
+        assertTrue(formula.root() instanceof Node.Chain);
+        assertEquals(Node.size(formula.root()), 1 + 1 + 200_000 * 4);
+        for (CompiledFormula.Backend backend : CompiledFormula.Backend.values()) {
+            CompiledFormula compiled = formula.withBackend(backend);
+            assertEquals(compiled.eval(new double[] {3}), 3 + 200_000 * 5D);
+            double[] out = new double[4];
+            compiled.evalBatch(new double[][] {{0, 1, 2, 3}}, out, 0, 4);
+            assertEquals(out[3], 3 + 200_000 * 5D);
+        }
+        CompiledFormula restored = formula.withBackend(CompiledFormula.Backend.INTERPRETER)
+                .withBackend(CompiledFormula.Backend.TREE);
+        assertEquals(restored.root(), formula.root());
+    }
+
+    @DataProvider
+    public static Object[][] deepTrees() {
+        return new Object[][] {
+                {"x" + "&&x".repeat(99_999), 1, 0},
+                {"x" + "||x".repeat(99_999), 1, 0},
+                {"x" + "<x".repeat(3_999), 1, 0},
+                {"(x+".repeat(3_999) + "x" + ")".repeat(3_999), 4_000 * 2, 4_000},
+                {"x?1:".repeat(16_000) + "0", 1, 0}
+        };
+    }
+
+    @Test(dataProvider = "deepTrees")
+    public void testDeepTrees(String expression, double expected, double derivative) throws Throwable {
+        onSmallStack(() -> {
+            CompiledFormula formula = FormulaEvaluator.compile(expression, "x");
+            for (CompiledFormula.Backend backend : CompiledFormula.Backend.values()) {
+                CompiledFormula compiled = formula.withBackend(backend);
+                assertEquals(compiled.eval(new double[] {2}), expected);
+                double[] out = new double[3];
+                compiled.evalBatch(new double[][] {{0, 1, 2}}, out, 0, 3);
+                assertEquals(out[2], expected);
+                assertEquals(compiled.withRanges(new double[] {1}, new double[] {3}).eval(new double[] {2}), expected);
+                assertEquals(compiled.derivative("x").eval(new double[] {2}), derivative);
+            }
+            CompiledFormula restored = formula.withBackend(CompiledFormula.Backend.INTERPRETER)
+                    .withBackend(CompiledFormula.Backend.TREE);
+            assertEquals(restored.eval(new double[] {2}), expected);
+            assertEquals(restored.eval(new double[] {0}), formula.eval(new double[] {0}));
+            assertEquals(formula.gradient().eval(new double[] {2}), new double[] {expected, derivative});
+            assertEquals(new FormulaEvaluator(expression).eval(Map.of("x", 2D)), expected);
+            assertEquals(FormulaSet.compile(Map.of("f", expression), "x").eval(new double[] {2})[0], expected);
+            FormulaGraph graph = new FormulaGraph();
+            graph.set("x", 2);
+            graph.define("f", expression);
+            assertEquals(graph.get("f"), expected);
+        });
+    }
+
+    /**
+     * Runs the check on a thread with a small stack, so that anything recursing as deep as the tree overflows it.
+     */
+    private static void onSmallStack(Runnable check) throws Throwable {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread thread = new Thread(null, () -> {
+            try {
+                check.run();
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        }, "small-stack", 256 * 1024);
+        thread.start();
+        thread.join();
+        if (failure.get() != null) throw failure.get();
+    }
+
+    @Test
+    public void testShortCircuit() {
+        AtomicInteger calls = new AtomicInteger();
+        MathDictionary math = new MathDictionary(Map.of("count", a -> {
+            calls.incrementAndGet();
+            return a;
+        }), Map.of());
+        CompiledFormula formula = FormulaEvaluator.compile(
+                "if(x > 0, count(x), -x) + (x > 1 && count(1) > 0) + (x > 2 || count(2) > 0)", math, "x"
+        );
+        for (CompiledFormula.Backend backend : CompiledFormula.Backend.values()) {
+            CompiledFormula compiled = formula.withBackend(backend);
+            calls.set(0);
+            assertEquals(compiled.eval(new double[] {-3}), 4D);
+            assertEquals(calls.get(), 1);
+            calls.set(0);
+            assertEquals(compiled.eval(new double[] {3}), 5D);
+            assertEquals(calls.get(), 2);
+        }
+    }
+
+    @Test
+    public void testVariables() {
+        CompiledFormula formula = FormulaEvaluator.compile("sqrt(leet*13)+other", "other", "leet");
+        assertEquals(formula.eval(new double[] {5, 1337}), sqrt(1337*13)+5);
+        assertEquals(formula.eval(new double[] {2, 7331}), sqrt(7331*13)+2);
+        assertEquals(formula.slot("leet"), 1);
+    }
+
+    @DataProvider
+    public Object[][] batchFormulas() {
+        return new Object[][] {
+                {"x"},
+                {"3"},
+                {"-x*y+z/2-x%3+y^2"},
+                {"(x+y)*(y-z)/(z+x)%(x-1)^(y/10)"},
+                {"sqrt(abs(x))+min(x,y)+max(y,z)+fma(x,y,z)"},
+                {"max(x,y,z,1)+hypot(x,y,z)+avg(x,y)+sin(x)+round(z)"},
+                {"if(x > y, sqrt(x) * z, y < 0 || z >= 50 ? -x : x % y)"},
+                {"(x > -200) * y + if(x > 200, 1, z)"}
+        };
+    }
+
+    @Test(dataProvider = "batchFormulas")
+    public void testBatch(String expression) {
+        CompiledFormula formula = FormulaEvaluator.compile(expression, "x", "y", "z");
+        Random random = new Random(expression.hashCode());
+        int rows = 3000;
+        double[][] columns = new double[3][rows];
+        for (double[] column : columns) {
+            for (int i = 0; i < rows; i++) column[i] = random.nextDouble() * 200 - 100;
+        }
+        double[] out = new double[rows];
+        formula.evalBatch(columns, out, 7, rows - 10);
+        for (int i = 0; i < rows; i++) {
+            double expected = i < 7 || i >= rows - 10
+                    ? 0
+                    : formula.eval(new double[] {columns[0][i], columns[1][i], columns[2][i]});
+            assertEquals(out[i], expected);
+        }
+    }
+
+    @Test
+    public void testBatchImpureBranches() {
+        AtomicInteger calls = new AtomicInteger();
+        MathDictionary math = new MathDictionary(Map.of("count", a -> {
+            calls.incrementAndGet();
+            return a;
+        }), Map.of());
+        double[][] columns = {{0, 1, 2, 3, 4}};
+        double[] out = new double[5];
+        FormulaEvaluator.compile("x > 1 ? count(x) : -count(x)", math, "x").evalBatch(columns, out, 0, 5);
+        assertEquals(out, new double[] {-0D, -1, 2, 3, 4});
+        assertEquals(calls.getAndSet(0), 5);
+        FormulaEvaluator.compile("x > 2 ? sqrt(x) : count(x) * 2", math, "x").evalBatch(columns, out, 0, 5);
+        assertEquals(out, new double[] {0, 2, 4, sqrt(3), 2});
+        assertEquals(calls.getAndSet(0), 3);
+        FormulaEvaluator.compile("x > 2 ? count(x) : 1", math, "x").evalBatch(columns, out, 0, 5);
+        assertEquals(out, new double[] {1, 1, 1, 3, 4});
+        assertEquals(calls.getAndSet(0), 2);
+    }
+
+    @Test
+    public void testParallel() {
+        CompiledFormula formula = FormulaEvaluator.compile("sqrt(x*x+y*y)+random(1)*0", "x", "y");
+        int rows = 100_000;
+        double[][] columns = new double[2][rows];
+        for (int i = 0; i < rows; i++) {
+            columns[0][i] = i;
+            columns[1][i] = rows - i;
+        }
+        double[] parallel = new double[rows];
+        formula.evalParallel(columns, parallel, ForkJoinPool.commonPool(), 1000);
+        double[] batch = new double[rows];
+        formula.evalBatch(columns, batch, 0, rows);
+        assertEquals(parallel, batch);
+    }
+
+    @DataProvider
+    public Object[][] invalidFormulas() {
+        return new Object[][] {
+                {"x+y", new String[] {"x"}},
+                {"fake_funct(x)", new String[] {"x"}},
+                {"x", new String[] {"x", "X"}}
+        };
+    }
+
+    @Test(dataProvider = "invalidFormulas", expectedExceptions = IllegalArgumentException.class)
+    public void testInvalid(String expression, String[] variables) {
+        FormulaEvaluator.compile(expression, variables);
+    }
+}
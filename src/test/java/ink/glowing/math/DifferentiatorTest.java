@@ -0,0 +1,102 @@
+package ink.glowing.math;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+
+public class DifferentiatorTest {
+    @DataProvider
+    public Object[][] formulas() {
+        return new Object[][] {
+                {"x*y+x/y-x%y"},
+                {"-x^3+x^y+2^x+x^2.5"},
+                {"sin(x)*cos(y)+tan(x*y)+asin(x/4)+acos(y/4)+atan(x-y)"},
+                {"sinh(x)+cosh(y)+tanh(x*y)+abs(x-y)"},
+                {"log(x)+log10(y)+log1p(x*y)+log(x,y)+log(8,x)"},
+                {"sqrt(x*y)+cbrt(x)+exp(x/y)+expm1(y)+to_degrees(x)+to_radians(y)"},
+                {"pow(x,y)+root(x,y)+atan2(y,x)+hypot(x,y)+hypot(x,y,3)+raw_hypot(x,y,x)"},
+                {"fma(x,y,x*y)+avg(x,y,1,2)+copy_sign(x,y)+scalb(x,y)+floor(x)*y"},
+                {"max(x*y,3)+min(x,y,3,4,5)+gamma(x)+log_gamma(y)"},
+                {"if(x > y, x^2*y, y/x) + (x < 2) * y + (x > 1 && y > 1 ? sin(x) : 0)"}
+        };
+    }
+
+    @Test(dataProvider = "formulas")
+    public void testDerivative(String expression) {
+        CompiledFormula formula = FormulaEvaluator.compile(expression, "x", "y");
+        double[] vars = {1.7, 2.3};
+        for (int v = 0; v < 2; v++) {
+            double expected = difference(formula, vars, v);
+            double actual = formula.derivative(formula.variables().get(v)).eval(vars);
+            assertEquals(actual, expected, 1e-6 * Math.max(1, Math.abs(expected)), expression);
+        }
+    }
+
+    @Test(dataProvider = "formulas")
+    public void testGradient(String expression) {
+        CompiledFormula formula = FormulaEvaluator.compile(expression, "x", "y");
+        double[] vars = {0.6, 1.9};
+        double[] gradient = formula.gradient().eval(vars);
+        assertEquals(gradient[0], formula.eval(vars));
+        assertEquals(gradient[1], formula.derivative("x").eval(vars));
+        assertEquals(gradient[2], formula.derivative("y").eval(vars));
+    }
+
+    @Test
+    public void testExact() {
+        CompiledFormula formula = FormulaEvaluator.compile("3*x^2+x*y-7", "x", "y");
+        assertEquals(formula.derivative("x").eval(new double[] {2, 5}), 17D);
+        assertEquals(formula.derivative("y").eval(new double[] {2, 5}), 2D);
+        assertEquals(formula.derivative("x").derivative("x").eval(new double[] {2, 5}), 6D);
+        assertEquals(FormulaEvaluator.compile("y*2", "x", "y").derivative("x").eval(new double[] {1, 1}), 0D);
+        assertEquals(FormulaEvaluator.compile("next_up(x*x)+next_down(x)", "x").derivative("x")
+                .eval(new double[] {3}), 7D);
+        CompiledFormula extreme = FormulaEvaluator.compile("max(x, 3*x, y)+min(y, -x, 2*x)", "x", "y");
+        assertEquals(extreme.derivative("x").eval(new double[] {2, 1}), 2D);
+        assertEquals(extreme.derivative("x").eval(new double[] {2, 9}), -1D);
+        assertEquals(extreme.derivative("y").eval(new double[] {2, 9}), 1D);
+        assertEquals(extreme.derivative("x").eval(new double[] {-2, -9}), 1D);
+    }
+
+    @Test
+    public void testCustomFunctions() {
+        MathDictionary math = new MathDictionary(Map.of(
+                "cube", a -> a * a * a,
+                "exact", new MathDictionary.MathFunction() {
+                    @Override
+                    public double accept(double a) {
+                        return a * a;
+                    }
+
+                    @Override
+                    public double partial(int index, double[] args, int offset, int length) {
+                        return 2 * args[offset];
+                    }
+                }
+        ), Map.of());
+        CompiledFormula formula = FormulaEvaluator.compile("cube(x*2)+exact(x)", math, "x")
+                .withBackend(CompiledFormula.Backend.BYTECODE);
+        CompiledFormula derivative = formula.derivative("x");
+        assertEquals(derivative.backend(), CompiledFormula.Backend.BYTECODE);
+        // 6 * (2x)^2 + 2x
+        assertEquals(derivative.eval(new double[] {1.5}), 6 * 9 + 3, 1e-6);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUndeclared() {
+        FormulaEvaluator.compile("x", "x").derivative("y");
+    }
+
+    private static double difference(CompiledFormula formula, double[] vars, int v) {
+        double h = 1e-6;
+        double[] point = vars.clone();
+        point[v] = vars[v] + h;
+        double up = formula.eval(point);
+        point[v] = vars[v] - h;
+        double down = formula.eval(point);
+        return (up - down) / (2 * h);
+    }
+}
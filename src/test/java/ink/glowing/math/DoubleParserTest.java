@@ -0,0 +1,79 @@
+package ink.glowing.math;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.SplittableRandom;
+
+import static org.testng.Assert.assertEquals;
+
+public class DoubleParserTest {
+    @DataProvider
+    public Object[][] literals() {
+        return new Object[][] {
+                {"0"}, {"-0"}, {"0.000"}, {"00012.50"}, {"1"}, {".5"}, {"5."}, {"+7e3"}, {"1E-5"},
+                {"9007199254740993"}, {"9007199254740992.5"}, {"2.2250738585072011e-308"},
+                {"2.2250738585072012e-308"}, {"4.9e-324"}, {"2.4703282292062327e-324"},
+                {"2.4703282292062328e-324"}, {"1.7976931348623157e308"}, {"1.7976931348623159e308"},
+                {"1e-400"}, {"1e400"}, {"123456789012345678901234567890"},
+                {"0.1000000000000000055511151231257827021181583404541015625"},
+                {"7.2057594037927933e16"}, {"3.0000000000000000000000000000001"},
+                {"1448997445238699"}, {"0.000000000000000000000000000000000001"}
+        };
+    }
+
+    @Test(dataProvider = "literals")
+    public void testLiterals(String literal) {
+        assertEquals(DoubleParser.parse(literal, Double.NaN), Double.parseDouble(literal), literal);
+    }
+
+    @DataProvider
+    public Object[][] malformed() {
+        return new Object[][] {
+                {""}, {"-"}, {"."}, {"e5"}, {"1e"}, {"1e+"}, {"1..2"}, {"1a"}, {"--1"}, {" 1"}
+        };
+    }
+
+    @Test(dataProvider = "malformed")
+    public void testMalformed(String literal) {
+        assertEquals(DoubleParser.parse(literal, -1), -1D);
+    }
+
+    @Test
+    public void testStrict() {
+        assertEquals(DoubleParser.parseStrict("1.5e3", 0, 5, -1), 1500D);
+        assertEquals(DoubleParser.parseStrict("1e3", 0, 3, -1), -1D);
+        assertEquals(DoubleParser.parseStrict("1.", 0, 2, -1), -1D);
+        assertEquals(DoubleParser.parseStrict(".5", 0, 2, -1), -1D);
+        assertEquals(DoubleParser.parseStrict("x12.25y", 1, 6, -1), 12.25);
+    }
+
+    @Test
+    public void testRoundTrip() {
+        SplittableRandom random = new SplittableRandom(0xE2);
+        for (int i = 0; i < 1_000_000; i++) {
+            double value = Math.abs(Double.longBitsToDouble(random.nextLong()));
+            if (Double.isNaN(value) || Double.isInfinite(value)) continue;
+            String literal = Double.toString(value);
+            assertEquals(DoubleParser.parse(literal, Double.NaN), value, literal);
+        }
+    }
+
+    @Test
+    public void testRandomDigits() {
+        SplittableRandom random = new SplittableRandom(0xD1);
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 1_000_000; i++) {
+            builder.setLength(0);
+            int digits = random.nextInt(1, 26);
+            int point = random.nextInt(0, digits + 1);
+            for (int j = 0; j < digits; j++) {
+                if (j == point) builder.append('.');
+                builder.append((char) ('0' + random.nextInt(10)));
+            }
+            builder.append('e').append(random.nextInt(-350, 330));
+            String literal = builder.toString();
+            assertEquals(DoubleParser.parse(literal, Double.NaN), Double.parseDouble(literal), literal);
+        }
+    }
+}
@@ -1,7 +1,11 @@
 package ink.glowing.math;
 
+import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static org.testng.Assert.assertEquals;
 
 public class ExpressionEvaluatorTest extends BaseMathTest {
@@ -9,4 +13,59 @@ public class ExpressionEvaluatorTest extends BaseMathTest {
     public void testEval(String expression, double expected) {
         assertEquals(ExpressionEvaluator.eval(expression), expected);
     }
-}
\ No newline at end of file
+
+    @DataProvider
+    public Object[][] inPlace() {
+        return new Object[][] {
+                {"MAX(1, 2, 3, 4, 5) + P I", 5 + Math.PI},
+                {"1 2.5E1 + 0.1", 125.1},
+                {"123456789012345678.5", 123456789012345678.5},
+                {"1.7976931348623157e308", Double.MAX_VALUE},
+                {"0.1e-400", 0},
+                {"1.+2", 2},
+                {"avg(1,2,max(3,4,5),6)+avg(7,8,9,10)", 3.5 + 8.5}
+        };
+    }
+
+    @Test(dataProvider = "inPlace")
+    public void testInPlace(String expression, double expected) {
+        assertEquals(ExpressionEvaluator.eval(new StringBuilder(expression)), expected);
+    }
+
+    @Test
+    public void testShortCircuit() {
+        AtomicInteger calls = new AtomicInteger();
+        MathDictionary math = new MathDictionary(Map.of("count", a -> {
+            calls.incrementAndGet();
+            return a;
+        }), Map.of());
+        assertEquals(ExpressionEvaluator.eval(
+                "if(1 > 2, count(1), 2) + (0 && count(2)) + (1 || count(3)) + (1 ? 4 : count(5))", math), 7D);
+        assertEquals(ExpressionEvaluator.eval("if(0, max(count(1), 2), 3) + (1 < 0 ? count(4) : count(6))", math), 9D);
+        assertEquals(calls.get(), 1);
+    }
+
+    @Test
+    public void testNegativeZero() {
+        assertEquals(1 / ExpressionEvaluator.eval("-0 && 1/0"), Double.POSITIVE_INFINITY);
+        assertEquals(1 / ExpressionEvaluator.eval("(-0 && 1) || -0"), Double.POSITIVE_INFINITY);
+    }
+
+    @Test
+    public void testLongExpressions() {
+        assertEquals(ExpressionEvaluator.eval("1" + "+2*3-5".repeat(100_000)), 100_001D);
+        String powers = "(".repeat(100_000) + "2" + ")^2".repeat(100_000);
+        assertEquals(ExpressionEvaluator.eval(powers), Double.POSITIVE_INFINITY);
+        assertEquals(ExpressionEvaluator.eval("max(".repeat(50_000) + "1" + ",2)".repeat(50_000)), 2D);
+        assertEquals(ExpressionEvaluator.eval("-".repeat(100_001) + "1"), -1D);
+    }
+
+    @Test
+    public void testReentrant() {
+        MathDictionary math = new MathDictionary(
+                Map.of("nested", a -> ExpressionEvaluator.eval("max(1,2," + a + ")+1")),
+                Map.of()
+        );
+        assertEquals(ExpressionEvaluator.eval("max(nested(5),1,2)*2", math), 12);
+    }
+}
@@ -0,0 +1,133 @@
+package ink.glowing.math;
+
+import ink.glowing.math.MathDictionary.MathFunction;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.SplittableRandom;
+
+import static org.testng.Assert.*;
+
+public class FastFunctionsTest {
+    private static final int SAMPLES = 1_000_000;
+    private static final double[] SPECIAL = {
+            0D, -0D, 1D, -1D, 0.5, 2D, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+            Double.MIN_VALUE, -Double.MIN_VALUE, Double.MIN_NORMAL, Double.MAX_VALUE, -Double.MAX_VALUE,
+            708, -708, 709.5, -745.5, 1e300, 1e-300, Math.PI, Math.PI / 2, 3e6, -3e6
+    };
+
+    private static void assertSameSpecial(double actual, double expected, double argument) {
+        if (Double.isNaN(expected) || Double.isInfinite(expected) || expected == 0) {
+            assertEquals(Double.doubleToLongBits(actual), Double.doubleToLongBits(expected),
+                    "at " + argument + ": " + actual + " instead of " + expected);
+        } else {
+            assertEquals(Math.signum(actual), Math.signum(expected), "sign at " + argument);
+        }
+    }
+
+    @Test
+    public void testSinCos() {
+        SplittableRandom random = new SplittableRandom(21);
+        double sin = 0;
+        double cos = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            double scale = i % 3 == 0 ? 4 : i % 3 == 1 ? 1e3 : 1.6e6;
+            double x = (random.nextDouble() * 2 - 1) * scale;
+            sin = Math.max(sin, Math.abs(FastFunctions.sin(x) - Math.sin(x)));
+            cos = Math.max(cos, Math.abs(FastFunctions.cos(x) - Math.cos(x)));
+        }
+        assertTrue(sin < 1e-12, "sin error " + sin);
+        assertTrue(cos < 1e-12, "cos error " + cos);
+        for (double x : SPECIAL) {
+            assertEquals(FastFunctions.sin(x), Math.sin(x), 1e-12);
+            assertEquals(FastFunctions.cos(x), Math.cos(x), 1e-12);
+        }
+        assertEquals(Double.doubleToRawLongBits(FastFunctions.sin(-0D)), Double.doubleToRawLongBits(-0D));
+        assertTrue(Double.isNaN(FastFunctions.sin(Double.POSITIVE_INFINITY)));
+        assertEquals(FastFunctions.cos(0), 1D);
+    }
+
+    @Test
+    public void testExp() {
+        SplittableRandom random = new SplittableRandom(42);
+        double error = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            double x = (random.nextDouble() * 2 - 1) * (i % 2 == 0 ? 1 : 708);
+            double expected = Math.exp(x);
+            error = Math.max(error, Math.abs(FastFunctions.exp(x) - expected) / expected);
+        }
+        assertTrue(error < 1e-11, "exp error " + error);
+        for (double x : SPECIAL) assertSameSpecial(FastFunctions.exp(x), Math.exp(x), x);
+        assertEquals(FastFunctions.exp(0), 1D);
+    }
+
+    @Test
+    public void testLog() {
+        SplittableRandom random = new SplittableRandom(7);
+        double absolute = 0;
+        double relative = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            double x = i % 2 == 0
+                    ? Math.exp((random.nextDouble() * 2 - 1) * 700)
+                    : 1 + (random.nextDouble() * 2 - 1) * 0.1;
+            double expected = Math.log(x);
+            double error = Math.abs(FastFunctions.log(x) - expected);
+            absolute = Math.max(absolute, error);
+            if (expected != 0) relative = Math.max(relative, error / Math.abs(expected));
+        }
+        assertTrue(absolute < 1e-11, "log absolute error " + absolute);
+        assertTrue(relative < 1e-10, "log relative error " + relative);
+        for (double x : SPECIAL) assertSameSpecial(FastFunctions.log(x), Math.log(x), x);
+        assertEquals(FastFunctions.log(1), 0D);
+    }
+
+    @Test
+    public void testPow() {
+        SplittableRandom random = new SplittableRandom(3);
+        double error = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            double a = random.nextDouble() * 100;
+            double b = (random.nextDouble() * 2 - 1) * 50;
+            if (i % 4 == 0) {
+                a = -a;
+                b = Math.rint(b);
+            }
+            double expected = Math.pow(a, b);
+            if (Double.isInfinite(expected) || Math.abs(expected) < Double.MIN_NORMAL) continue;
+            double scale = 1 + Math.abs(b * Math.log(Math.abs(a)));
+            error = Math.max(error, Math.abs(FastFunctions.pow(a, b) - expected) / Math.abs(expected) / scale);
+        }
+        assertTrue(error < 1e-10, "pow error " + error);
+        for (double a : SPECIAL) {
+            for (double b : SPECIAL) assertSameSpecial(FastFunctions.pow(a, b), Math.pow(a, b), a);
+        }
+        assertEquals(FastFunctions.pow(7, 0), 1D);
+        assertEquals(FastFunctions.pow(1, 123.5), 1D);
+        assertEquals(FastFunctions.pow(-2, 3), -8D, 1e-12);
+    }
+
+    @DataProvider
+    public Object[][] formulas() {
+        return new Object[][] {
+                {"sin(x)*cos(y)+exp(-x*x)", 1e-11},
+                {"log(x)+log(y,2)+pow(x,y)", 1e-9}
+        };
+    }
+
+    @Test(dataProvider = "formulas")
+    public void testDictionary(String expression, double tolerance) {
+        MathDictionary fast = MathDictionary.INSTANCE.withFastMath();
+        assertEquals(fast.checksum(), MathDictionary.INSTANCE.checksum());
+        MathFunction sin = fast.getFunction("sin");
+        assertTrue(sin instanceof FastFunctions);
+        assertSame(fast.getFunction("tan"), MathDictionary.INSTANCE.getFunction("tan"));
+        CompiledFormula strict = FormulaEvaluator.compile(expression, "x", "y");
+        CompiledFormula approximate = FormulaEvaluator.compile(expression, fast, "x", "y");
+        for (double x = 0.25; x < 10; x += 0.5) {
+            double[] vars = {x, 1.5};
+            assertEquals(approximate.eval(vars), strict.eval(vars), tolerance * Math.abs(strict.eval(vars)) + 1e-12);
+        }
+        CompiledFormula derivative = approximate.derivative("x");
+        assertEquals(derivative.eval(new double[] {1, 1.5}), strict.derivative("x").eval(new double[] {1, 1.5}), 1e-6);
+    }
+}
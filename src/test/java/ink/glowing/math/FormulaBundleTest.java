@@ -0,0 +1,203 @@
+package ink.glowing.math;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertThrows;
+import static ink.glowing.math.FormulaProgram.*;
+
+public class FormulaBundleTest {
+    private static final MathDictionary MATH = new MathDictionary(Map.of("twice", a -> a * 2), Map.of("answer", 42D));
+    private static final String[] EXPRESSIONS = {
+            "x*y+z",
+            "twice(x)-answer%y^2",
+            "max(x,y,z,1,2,3)+fma(x,y,z)+avg(x,y,z,1)+-hypot(x,y)",
+            "sqrt(abs(x))/0.1+random(1)*0+y",
+            "-0+x/-0.0",
+            "if(x > y, twice(x), y <= z && z != 7 ? z : -z)",
+            "x && y && z || x < 0 || 0/0"
+    };
+
+    private static List<CompiledFormula> formulas() {
+        List<CompiledFormula> formulas = new ArrayList<>();
+        for (String expression : EXPRESSIONS) {
+            formulas.add(FormulaEvaluator.compile(expression, MATH, "x", "y", "z"));
+        }
+        formulas.add(FormulaEvaluator.compile("answer", MATH));
+        formulas.add(FormulaEvaluator.compile("b*a", MATH, "a", "b"));
+        return formulas;
+    }
+
+    private static void assertSameResults(List<CompiledFormula> actual, List<CompiledFormula> expected) {
+        assertEquals(actual.size(), expected.size());
+        for (int i = 0; i < actual.size(); i++) {
+            CompiledFormula formula = actual.get(i);
+            assertEquals(formula.backend(), CompiledFormula.Backend.INTERPRETER);
+            assertEquals(formula.variables(), expected.get(i).variables());
+            double[] vars = {1.5, -2.25, 7};
+            double[] args = Arrays.copyOf(vars, formula.variables().size());
+            assertEquals(formula.eval(args), expected.get(i).eval(args));
+            assertEquals(formula.withBackend(CompiledFormula.Backend.TREE).eval(args), expected.get(i).eval(args));
+        }
+    }
+
+    @Test
+    public void testBuffer() {
+        List<CompiledFormula> formulas = formulas();
+        ByteBuffer buffer = FormulaBundle.encode(formulas, MATH);
+        assertSameResults(FormulaBundle.decode(buffer, MATH), formulas);
+        assertEquals(buffer.remaining(), 0);
+    }
+
+    @Test
+    public void testFile() throws IOException {
+        List<CompiledFormula> formulas = formulas();
+        Path path = Files.createTempFile("formulas", ".bin");
+        try {
+            FormulaBundle.write(formulas, MATH, path);
+            assertSameResults(FormulaBundle.read(path, MATH), formulas);
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void testBatchAfterDecode() {
+        CompiledFormula formula = FormulaEvaluator.compile("x*y+max(x,y,1,2,3)", "x", "y");
+        CompiledFormula decoded = FormulaBundle.decode(
+                FormulaBundle.encode(List.of(formula), MathDictionary.INSTANCE), MathDictionary.INSTANCE
+        ).get(0);
+        double[][] columns = {{1, 2, 3}, {4, 5, 6}};
+        double[] expected = new double[3];
+        double[] actual = new double[3];
+        formula.evalBatch(columns, expected, 0, 3);
+        decoded.evalBatch(columns, actual, 0, 3);
+        assertEquals(actual, expected);
+    }
+
+    @Test
+    public void testChecksum() {
+        assertEquals(new MathDictionary(Map.of(), Map.of()).checksum(), MathDictionary.INSTANCE.checksum());
+        assertNotEquals(MATH.checksum(), MathDictionary.INSTANCE.checksum());
+        assertNotEquals(
+                new MathDictionary(Map.of(), Map.of("answer", 41D)).checksum(),
+                new MathDictionary(Map.of(), Map.of("answer", 42D)).checksum()
+        );
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testAnotherDictionary() {
+        FormulaBundle.decode(FormulaBundle.encode(formulas(), MATH), MathDictionary.INSTANCE);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUnregisteredFunction() {
+        FormulaBundle.encode(formulas(), MathDictionary.INSTANCE);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testMalformed() {
+        FormulaBundle.decode(ByteBuffer.wrap("not a bundle at all".getBytes()), MATH);
+    }
+
+    /**
+     * Bundle of a single formula of {@code x} and {@code y}, laid out by hand.
+     */
+    private static ByteBuffer bundle(int version, int maxStack, double[] constants, int... code) {
+        ByteBuffer buffer = ByteBuffer.allocate(128 + 8 * constants.length + 4 * code.length);
+        buffer.putInt(0x474C4D46).putShort((short) version)
+                .putLong(version < 4 ? MATH.legacyChecksum() : MATH.checksum());
+        buffer.putInt(2).putShort((short) 1).put((byte) 'x').putShort((short) 1).put((byte) 'y');
+        buffer.putInt(1);
+        buffer.putInt(2).putInt(0).putInt(1);
+        buffer.putInt(0);
+        buffer.putInt(constants.length);
+        for (double constant : constants) buffer.putDouble(constant);
+        buffer.putInt(maxStack).putInt(code.length);
+        for (int instruction : code) buffer.putInt(instruction);
+        return buffer.flip();
+    }
+
+    @Test
+    public void testVersion1() {
+        // x*y+0.5
+        ByteBuffer buffer = bundle(1, 2, new double[] {0.5}, LOAD, LOAD | 1 << 8, MUL, CONST, ADD);
+        // Checksum that earlier versions wrote
+        assertEquals(MATH.legacyChecksum(), 0xfcac5efd85945b49L);
+        CompiledFormula formula = FormulaBundle.decode(buffer, MATH).get(0);
+        assertEquals(formula.variables(), List.of("x", "y"));
+        assertEquals(formula.eval(new double[] {3, 4}), 12.5);
+        assertEquals(formula.withBackend(CompiledFormula.Backend.TREE).eval(new double[] {3, 4}), 12.5);
+    }
+
+    @DataProvider
+    public static Object[][] corrupt() {
+        double[] one = {1};
+        return new Object[][] {
+                {bundle(4, 1, one, CONST, 99)},
+                {bundle(4, 1, one, CONST | 1 << 8)},
+                {bundle(4, 1, one, LOAD | 2 << 8)},
+                {bundle(4, 1, one, LOAD, CALL1)},
+                {bundle(4, 2, one, LOAD, LOAD | 1 << 8, CALLN, 2)},
+                {bundle(4, 1, one, LOAD, ADD)},
+                {bundle(4, 1, one, LOAD, LOAD | 1 << 8, ADD)},
+                {bundle(4, 2, one, LOAD, LOAD | 1 << 8)},
+                {bundle(4, 1, one)},
+                {bundle(4, 100, one, LOAD)},
+                {bundle(4, 1, one, LOAD, JUMP)},
+                {bundle(4, 1, one, LOAD, AND | 7 << 8)},
+                {bundle(4, 1, one, LOAD, BRANCH | 3 << 8, CONST, JUMP | 5 << 8, LOAD | 1 << 8)},
+                {bundle(4, 1, one, LOAD, BRANCH | 4 << 8, CONST, JUMP | 1 << 8, LOAD | 1 << 8)},
+                {bundle(4, 1, one, LOAD, BRANCH | 4 << 8, CONST, JUMP | 6 << 8, LOAD | 1 << 8)},
+                {bundle(4, 2, one, LOAD, BRANCH | 4 << 8, CONST, JUMP | 6 << 8, LOAD | 1 << 8, LOAD)},
+                {bundle(4, 2, one, LOAD, AND | 5 << 8, LOAD | 1 << 8, AND | 4 << 8, CONST)},
+        };
+    }
+
+    @Test(dataProvider = "corrupt", expectedExceptions = IllegalArgumentException.class)
+    public void testCorrupt(ByteBuffer buffer) {
+        FormulaBundle.decode(buffer, MATH);
+    }
+
+    @Test
+    public void testCorruptValid() {
+        // Same shapes as the corrupt ones, but well-formed
+        double[] one = {1};
+        assertEquals(FormulaBundle.decode(
+                bundle(4, 1, one, LOAD, BRANCH | 4 << 8, CONST, JUMP | 5 << 8, LOAD | 1 << 8), MATH
+        ).get(0).eval(new double[] {2, 3}), 1.0);
+        assertEquals(FormulaBundle.decode(
+                bundle(4, 1, one, LOAD, AND | 5 << 8, LOAD | 1 << 8, AND | 5 << 8, CONST), MATH
+        ).get(0).eval(new double[] {2, 0}), 0.0);
+    }
+
+    @Test
+    public void testNegativeCount() {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.putInt(0x474C4D46).putShort((short) 4).putLong(MATH.checksum()).putInt(-1);
+        assertThrows(IllegalArgumentException.class, () -> FormulaBundle.decode(buffer.flip(), MATH));
+        ByteBuffer huge = ByteBuffer.allocate(64);
+        huge.putInt(0x474C4D46).putShort((short) 4).putLong(MATH.checksum()).putInt(0).putInt(Integer.MAX_VALUE);
+        assertThrows(IllegalArgumentException.class, () -> FormulaBundle.decode(huge.flip(), MATH));
+    }
+
+    @Test
+    public void testTruncated() {
+        ByteBuffer buffer = FormulaBundle.encode(formulas(), MATH);
+        for (int length = 0; length < buffer.limit(); length++) {
+            ByteBuffer truncated = buffer.duplicate().limit(length);
+            assertThrows(IllegalArgumentException.class, () -> FormulaBundle.decode(truncated, MATH));
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package ink.glowing.math;
+
+import org.testng.annotations.Test;
+
+import java.util.Map;
+
+import static org.testng.Assert.*;
+
+public class FormulaCacheTest {
+    @Test
+    public void testHits() {
+        FormulaCache cache = new FormulaCache(16);
+        CompiledFormula formula = cache.compile("x * Y + 1", "x", "y");
+        assertSame(cache.compile("X*y+1", "X", "Y"), formula);
+        assertNotSame(cache.compile("x*y+1", "y", "x"), formula);
+        MathDictionary math = new MathDictionary(Map.of(), Map.of("one", 1D));
+        assertNotSame(cache.compile("x*y+1", math, "x", "y"), formula);
+        assertEquals(cache.hits(), 1);
+        assertEquals(cache.misses(), 3);
+        assertEquals(formula.eval(new double[] {2, 3}), 7);
+    }
+
+    @Test
+    public void testEviction() {
+        FormulaCache cache = new FormulaCache(4);
+        CompiledFormula hot = cache.compile("x+0", "x");
+        for (int i = 1; i < 32; i++) {
+            assertSame(cache.compile("x+0", "x"), hot);
+            cache.compile("x+" + i, "x");
+        }
+        assertEquals(cache.size(), 4);
+        assertEquals(cache.evictions(), 28);
+        assertSame(cache.compile("x+0", "x"), hot);
+    }
+
+    @Test
+    public void testWeight() {
+        FormulaCache cache = new FormulaCache(8, true, CompiledFormula.Backend.BYTECODE);
+        cache.compile("x+y+z", "x", "y", "z"); // 4 nodes, as a single chain
+        cache.compile("x*y*z", "x", "y", "z");
+        assertEquals(cache.size(), 2);
+        cache.compile("x", "x");
+        assertEquals(cache.size(), 2);
+        assertEquals(cache.evictions(), 1);
+    }
+}
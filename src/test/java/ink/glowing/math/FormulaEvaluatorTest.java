@@ -1,11 +1,15 @@
 package ink.glowing.math;
 
+import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import java.util.HashMap;
 import java.util.Map;
+import java.util.function.Function;
 
 import static java.lang.Math.sqrt;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
 
 public class FormulaEvaluatorTest extends BaseMathTest {
     @Test(dataProvider = "expressions")
@@ -13,6 +17,71 @@ public class FormulaEvaluatorTest extends BaseMathTest {
         assertEquals(new FormulaEvaluator(expression).eval(Map.of()), expected);
     }
 
+    @Test
+    public void testLongExpressions() {
+        String sum = "x" + "+x-1".repeat(100_000);
+        assertEquals(new FormulaEvaluator(sum).eval(Map.of("x", 2D)), 100_002D);
+        String nested = "(".repeat(100_000) + "x" + ")".repeat(100_000);
+        assertEquals(new FormulaEvaluator(nested).eval(Map.of("x", 3D)), 3D);
+    }
+
+    @Test
+    public void testLazyVariables() {
+        String deep = "x" + "<x".repeat(400);
+        for (String test : new String[] {"x > 0", "x > 0" + "&&x".repeat(300)}) {
+            for (String branch : new String[] {"x + 1", deep}) {
+                FormulaMetrics metrics = new FormulaMetrics();
+                Instrumentation.enable(metrics);
+                try {
+                    String expression = "if(" + test + ", " + branch + ", expensive) + x";
+                    FormulaEvaluator evaluator = new FormulaEvaluator(expression);
+                    Map<String, Integer> lookups = new HashMap<>();
+                    Function<String, Double> vars = (name) -> {
+                        lookups.merge(name, 1, Integer::sum);
+                        return name.equals("x") ? 1D : null;
+                    };
+                    evaluator.eval(vars);
+                    assertNull(lookups.get("expensive"), expression);
+                    assertEquals(metrics.stats(FormulaParser.normalize(expression)).unknownIdentifiers(), 0);
+                    evaluator.eval((name) -> name.equals("x") ? -1D : null);
+                    assertEquals(metrics.stats(FormulaParser.normalize(expression)).unknownIdentifiers(), 1);
+                } finally {
+                    Instrumentation.disable();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testWindows() {
+        FormulaEvaluator evaluator = new FormulaEvaluator(
+                "rolling_sum(x, 3) + rolling_avg(x, 2) * 10 + rolling_max(x, 2) * 100 + rolling_min(x, 1.0e9) * 1000"
+        );
+        assertEquals(evaluator.eval(Map.of("x", 1D)), 1 + 10 + 100 + 1000D);
+        assertEquals(evaluator.eval(Map.of("x", 3D)), 4 + 20 + 300 + 1000D);
+        assertEquals(evaluator.eval(Map.of("x", 2D)), 6 + 25 + 300 + 1000D);
+        assertEquals(evaluator.eval(Map.of("x", 0D)), 5 + 10 + 200D);
+        // Every evaluator has windows of its own
+        assertEquals(new FormulaEvaluator("ewma(x * 2, 2^2 - 1)").eval(Map.of("x", 1D)), 2D);
+    }
+
+    @DataProvider
+    public Object[][] invalidWindows() {
+        return new Object[][] {
+                {"rolling_sum(x, 0) + 1"},
+                {"rolling_avg(x, n)"},
+                {"rolling_max(x)"},
+                {"ewma(x, 2, 3)"},
+                {"rolling_min(x, 0/0)"},
+                {"x" + "<x".repeat(300) + " + rolling_avg(x, -1)"}
+        };
+    }
+
+    @Test(dataProvider = "invalidWindows", expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidWindows(String expression) {
+        new FormulaEvaluator(expression);
+    }
+
     @Test
     public void testVariables() {
         FormulaEvaluator evaluator = new FormulaEvaluator("sqrt(leet*13)+other");
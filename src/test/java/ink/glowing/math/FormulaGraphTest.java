@@ -0,0 +1,74 @@
+package ink.glowing.math;
+
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.testng.Assert.assertEquals;
+
+public class FormulaGraphTest {
+    @Test
+    public void testIncremental() {
+        FormulaGraph graph = new FormulaGraph();
+        graph.set("price", 10);
+        graph.set("quantity", 3);
+        graph.define("total", "price*quantity");
+        graph.define("taxed", "total*(1+tax)");
+        graph.define("other", "quantity+1");
+        graph.set("tax", 0.5);
+        assertEquals(graph.get("taxed"), 45D);
+        assertEquals(graph.get("other"), 4D);
+        assertEquals(graph.get("undefined"), 0D);
+
+        graph.set("price", 20);
+        assertEquals(graph.dirtyCount(), 2);
+        assertEquals(graph.get("taxed"), 90D);
+        assertEquals(graph.dirtyCount(), 0);
+
+        graph.define("total", "price*quantity*2");
+        assertEquals(graph.get("taxed"), 180D);
+        graph.set("total", 1);
+        assertEquals(graph.get("taxed"), 1.5D);
+        graph.set("price", 30);
+        assertEquals(graph.dirtyCount(), 0);
+    }
+
+    @Test
+    public void testOrder() {
+        FormulaGraph graph = new FormulaGraph();
+        graph.define("c", "b+a");
+        graph.define("b", "a*2");
+        graph.define("a", "x+1");
+        assertEquals(graph.order(), List.of("a", "b", "c"));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testCycle() {
+        FormulaGraph graph = new FormulaGraph();
+        graph.define("a", "b+1");
+        graph.define("b", "c+1");
+        graph.define("c", "a+1");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testSelfReference() {
+        new FormulaGraph().define("a", "a+1");
+    }
+
+    @Test
+    public void testChainAndParallel() {
+        FormulaGraph graph = new FormulaGraph();
+        int cells = 20_000;
+        graph.define("c0", "x");
+        for (int i = 1; i < cells; i++) graph.define("c" + i, "c" + (i - 1) + "+1");
+        for (int i = 0; i < 1000; i++) graph.define("w" + i, "x*" + i);
+        graph.set("x", 1);
+        graph.recompute(ForkJoinPool.commonPool());
+        assertEquals(graph.get("c" + (cells - 1)), (double) cells);
+        for (int i = 0; i < 1000; i++) assertEquals(graph.get("w" + i), (double) i);
+        graph.set("x", 2);
+        assertEquals(graph.dirtyCount(), cells + 1000);
+        assertEquals(graph.get("c" + (cells - 1)), (double) cells + 1);
+    }
+}
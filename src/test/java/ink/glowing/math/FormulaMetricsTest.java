@@ -0,0 +1,150 @@
+package ink.glowing.math;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.testng.Assert.*;
+
+public class FormulaMetricsTest {
+    @AfterMethod
+    public void disable() {
+        Instrumentation.disable();
+    }
+
+    @Test
+    public void testCompiledFormula() {
+        FormulaMetrics metrics = new FormulaMetrics();
+        Instrumentation.enable(metrics);
+        CompiledFormula formula = FormulaEvaluator.compile("x / y", "x", "y");
+        for (int i = 0; i < 200; i++) formula.eval(new double[] {i, 2});
+        formula.eval(new double[] {1, 0});
+        formula.eval(new double[] {-1, 0});
+        formula.eval(new double[] {0, 0});
+        FormulaMetrics.Stats stats = metrics.stats("x/y");
+        assertNotNull(stats);
+        assertEquals(stats.parses(), 1);
+        assertEquals(stats.compilations(), 1);
+        assertEquals(stats.evaluations(), 203);
+        assertEquals(stats.infinities(), 2);
+        assertEquals(stats.nans(), 1);
+        assertEquals(stats.samples(), 203 / Instrumentation.SAMPLE_INTERVAL);
+        assertTrue(stats.latencyPercentile(50) > 0);
+        assertTrue(stats.latencyPercentile(50) <= stats.latencyPercentile(99));
+    }
+
+    @Test
+    public void testRecompilation() {
+        FormulaMetrics metrics = new FormulaMetrics();
+        Instrumentation.enable(metrics);
+        CompiledFormula formula = FormulaEvaluator.compile("x * 2", "x")
+                .withBackend(CompiledFormula.Backend.INTERPRETER);
+        assertEquals(formula.eval(new double[] {3}), 6D);
+        FormulaMetrics.Stats stats = metrics.stats("x*2");
+        assertEquals(stats.compilations(), 2);
+        assertEquals(stats.evaluations(), 1);
+    }
+
+    @Test
+    public void testFormulaEvaluator() {
+        FormulaMetrics metrics = new FormulaMetrics();
+        Instrumentation.enable(metrics);
+        FormulaEvaluator evaluator = new FormulaEvaluator("a + b");
+        assertEquals(evaluator.eval(Map.of("a", 1D, "b", 2D)), 3D);
+        assertEquals(evaluator.eval(Map.of("a", 1D)), 1D);
+        FormulaMetrics.Stats stats = metrics.stats("a+b");
+        assertEquals(stats.evaluations(), 2);
+        assertEquals(stats.unknownIdentifiers(), 1);
+    }
+
+    @Test
+    public void testExpressionEvaluator() {
+        FormulaMetrics metrics = new FormulaMetrics();
+        Instrumentation.enable(metrics);
+        assertEquals(ExpressionEvaluator.eval("nope(2) + oops"), 0D);
+        assertEquals(ExpressionEvaluator.eval("1/0"), Double.POSITIVE_INFINITY);
+        assertEquals(ExpressionEvaluator.eval("0 && oops + nope(1)"), 0D);
+        assertEquals(ExpressionEvaluator.eval(new StringBuilder("O ops")), 0D);
+        assertEquals(metrics.stats("nope(2)+oops").unknownIdentifiers(), 2);
+        assertEquals(metrics.stats("1/0").infinities(), 1);
+        assertEquals(metrics.stats("0&&oops+nope(1)").evaluations(), 1);
+        assertEquals(metrics.stats("0&&oops+nope(1)").unknownIdentifiers(), 0);
+        assertEquals(metrics.stats("oops").unknownIdentifiers(), 1);
+    }
+
+    @Test
+    public void testUnknownFunction() {
+        FormulaMetrics metrics = new FormulaMetrics();
+        Instrumentation.enable(metrics);
+        new FormulaEvaluator("nope(x)");
+        assertEquals(metrics.stats("nope(x)").unknownIdentifiers(), 1);
+    }
+
+    @Test
+    public void testDisabled() {
+        FormulaMetrics metrics = new FormulaMetrics();
+        CompiledFormula before = FormulaEvaluator.compile("x + 1", "x");
+        Instrumentation.enable(metrics);
+        CompiledFormula during = FormulaEvaluator.compile("x + 2", "x");
+        Instrumentation.disable();
+        assertNull(Instrumentation.listener());
+        before.eval(new double[] {1});
+        during.eval(new double[] {1});
+        ExpressionEvaluator.eval("1 + 3");
+        FormulaEvaluator.compile("x + 4", "x").eval(new double[] {1});
+        assertEquals(metrics.expressions(), Set.of("x+2"));
+        assertEquals(metrics.stats("x+2").evaluations(), 1);
+    }
+
+    @Test
+    public void testPercentiles() {
+        FormulaMetrics metrics = new FormulaMetrics();
+        assertNull(metrics.stats("x"));
+        for (int i = 0; i < 90; i++) metrics.timed("x", 100);
+        for (int i = 0; i < 10; i++) metrics.timed("x", 5000);
+        metrics.timed(null, 1);
+        FormulaMetrics.Stats stats = metrics.stats("x");
+        assertEquals(stats.samples(), 100);
+        assertEquals(stats.latencyBucket(6), 90);
+        assertEquals(stats.latencyPercentile(90), 127);
+        assertEquals(stats.latencyPercentile(91), 8191);
+        assertEquals(metrics.stats(FormulaMetrics.UNKNOWN).samples(), 1);
+        assertThrows(IllegalArgumentException.class, () -> stats.latencyPercentile(101));
+        metrics.reset();
+        assertTrue(metrics.expressions().isEmpty());
+    }
+
+    @Test
+    public void testFlightRecorderEvents() throws Exception {
+        Path file = Files.createTempFile("ezmath", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("ink.glowing.math.Parse");
+            recording.enable("ink.glowing.math.Compile");
+            recording.start();
+            FormulaEvaluator.compile("sin(x) * y", "x", "y");
+            recording.stop();
+            recording.dump(file);
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+            RecordedEvent parse = events.stream()
+                    .filter((event) -> event.getEventType().getName().equals("ink.glowing.math.Parse"))
+                    .findFirst().orElseThrow();
+            assertEquals(parse.getString("expression"), "sin(x)*y");
+            assertEquals(parse.getInt("nodes"), 4);
+            RecordedEvent compile = events.stream()
+                    .filter((event) -> event.getEventType().getName().equals("ink.glowing.math.Compile"))
+                    .findFirst().orElseThrow();
+            assertEquals(compile.getString("expression"), "sin(x)*y");
+            assertEquals(compile.getString("backend"), "TREE");
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package ink.glowing.math;
+
+import ink.glowing.math.Node.*;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class FormulaOptimizerTest {
+    private static Node optimize(String expression) {
+        return FormulaOptimizer.optimize(FormulaParser.parse(expression, MathDictionary.INSTANCE));
+    }
+
+    @DataProvider
+    public Object[][] folded() {
+        return new Object[][] {
+                {"2*pi*2", 2 * Math.PI * 2},
+                {"sqrt(2)/2", Math.sqrt(2) / 2},
+                {"max(1,2,3)+--4", 7},
+                {"-0", -0D},
+                {"1+2-3+4*5", 1+2-3+4*5},
+                {"1 && 2 && 0/0", 1},
+                {"0 && x", 0},
+                {"0 || 0 || 0", 0}
+        };
+    }
+
+    @Test(dataProvider = "folded")
+    public void testFolded(String expression, double expected) {
+        assertEquals(optimize(expression), new Constant(expected));
+    }
+
+    @DataProvider
+    public Object[][] simplified() {
+        return new Object[][] {
+                {"(1+2)*x", "3*x"},
+                {"x*1", "x"},
+                {"1*x/1", "x"},
+                {"x-0", "x"},
+                {"x^1", "x"},
+                {"x^2", "x*x"},
+                {"x*-1", "-x"},
+                {"--x", "x"},
+                {"x+y-0+z*1", "x+y+z"},
+                {"2*3*x/1*y", "6*x*y"},
+                {"x && (y && z)", "x && y && z"},
+                {"x && 1 && y", "x && y"},
+                {"x && 0 && y", "x && 0"},
+                {"1 && x", "x != 0"},
+                {"0 || x < y", "x < y"},
+                {"(x || y) != 0", "x || y"}
+        };
+    }
+
+    @Test(dataProvider = "simplified")
+    public void testSimplified(String expression, String expected) {
+        assertEquals(optimize(expression), FormulaParser.parse(expected, MathDictionary.INSTANCE));
+    }
+
+    @DataProvider
+    public Object[][] kept() {
+        return new Object[][] {
+                {"x+0"},
+                {"0+x"},
+                {"0*x"},
+                {"x/x"},
+                {"random(5)"},
+                {"rng_choice(1,2)"}
+        };
+    }
+
+    @Test(dataProvider = "kept")
+    public void testKept(String expression) {
+        Node parsed = FormulaParser.parse(expression, MathDictionary.INSTANCE);
+        assertEquals(optimize(expression), parsed);
+        assertTrue(!(parsed instanceof Constant));
+    }
+}
@@ -0,0 +1,86 @@
+package ink.glowing.math;
+
+import org.testng.annotations.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+
+public class FormulaSetTest {
+    @Test
+    public void testResults() {
+        Map<String, String> formulas = new LinkedHashMap<>();
+        formulas.put("distance", "sqrt(x^2+y^2)");
+        formulas.put("scaled", "sqrt(x^2+y^2)*z+sqrt(x^2+y^2)/z");
+        formulas.put("varargs", "max(x,y,z,1,2)+fma(x,y,z)+avg(sqrt(x^2+y^2),z,x,y)");
+        formulas.put("constant", "pi*2");
+        FormulaSet set = FormulaSet.compile(formulas, "x", "y", "z");
+        assertEquals(set.names(), formulas.keySet().stream().toList());
+        assertEquals(set.index("varargs"), 2);
+
+        double[] vars = {3, -4, 2.5};
+        double[] results = set.eval(vars);
+        int i = 0;
+        for (String expression : formulas.values()) {
+            assertEquals(results[i++], FormulaEvaluator.compile(expression, "x", "y", "z").eval(vars));
+        }
+    }
+
+    @Test
+    public void testSharing() {
+        Map<String, String> formulas = new LinkedHashMap<>();
+        formulas.put("a", "sqrt(x^2+y^2)+sqrt(x^2+y^2)");
+        formulas.put("b", "sqrt(x^2+y^2)*2");
+        FormulaSet set = FormulaSet.compile(formulas, "x", "y");
+        // x, y, x*x, y*y, +, sqrt, +, 2, *
+        assertEquals(set.registers(), 9);
+        assertEquals(set.eval(new double[] {3, 4}), new double[] {10, 10});
+    }
+
+    @Test
+    public void testRandomNotShared() {
+        Map<String, String> formulas = new LinkedHashMap<>();
+        formulas.put("a", "random(x)");
+        formulas.put("b", "random(x)");
+        formulas.put("c", "random(x)+1-random(x)");
+        FormulaSet set = FormulaSet.compile(formulas, "x");
+        // x, 3 random calls and 1, +, -
+        assertEquals(set.registers(), 8);
+        double[] results = set.eval(new double[] {Double.MAX_VALUE});
+        assertNotEquals(results[0], results[1]);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUndeclared() {
+        FormulaSet.compile(Map.of("a", "x+y"), "x");
+    }
+
+    @Test
+    public void testConditions() {
+        AtomicInteger calls = new AtomicInteger();
+        MathDictionary math = new MathDictionary(Map.of("count", a -> {
+            calls.incrementAndGet();
+            return a;
+        }), Map.of());
+        Map<String, String> formulas = new LinkedHashMap<>();
+        formulas.put("a", "if(x > 0, exp(x) + count(x), 0)");
+        formulas.put("b", "exp(x) + (x > 0 && y > 0) + if(y, exp(x), 1)");
+        formulas.put("c", "x < 0 || count(y) > 1 ? sqrt(x^2) : -sqrt(x^2)");
+        formulas.put("d", "x && y && sqrt(x^2) > 1 || y && exp(-x) < 1 || 0/0");
+        FormulaSet set = FormulaSet.compile(formulas, math, "x", "y");
+        double[][] inputs = {{1, 2}, {-1, 0}, {2, 0}, {-2, 3}};
+        for (double[] vars : inputs) {
+            calls.set(0);
+            double[] results = set.eval(vars);
+            int expectedCalls = (vars[0] > 0 ? 1 : 0) + (vars[0] < 0 ? 0 : 1);
+            assertEquals(calls.get(), expectedCalls);
+            int i = 0;
+            for (String expression : formulas.values()) {
+                assertEquals(results[i++], FormulaEvaluator.compile(expression, math, "x", "y").eval(vars));
+            }
+        }
+    }
+}
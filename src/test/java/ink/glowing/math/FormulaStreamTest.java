@@ -0,0 +1,117 @@
+package ink.glowing.math;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+
+public class FormulaStreamTest {
+    private static final CompiledFormula SUM = FormulaEvaluator.compile("x+y*2", "x", "y");
+    private static final CompiledFormula ROOT = FormulaEvaluator.compile("sqrt(abs(y))", "y");
+
+    private static FormulaStream stream() {
+        Map<String, CompiledFormula> formulas = new LinkedHashMap<>();
+        formulas.put("sum", SUM);
+        formulas.put("root", ROOT);
+        return new FormulaStream(formulas);
+    }
+
+    private static String process(FormulaStream stream, ReadableByteChannel in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        stream.process(in, Channels.newChannel(out));
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Channel that returns few bytes per read, to split lines between reads
+     */
+    private static ReadableByteChannel trickle(String input) {
+        ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)));
+        return new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                ByteBuffer slice = dst.slice();
+                slice.limit(Math.min(slice.limit(), 7));
+                int read = channel.read(slice);
+                if (read > 0) dst.position(dst.position() + read);
+                return read;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() { }
+        };
+    }
+
+    @Test
+    public void testFormat() throws IOException {
+        String input = "id,\"X\", y ,ignored\r\n1,1.5,2,a\r\n2,\"3\",-4,b\n\n3,,9\n4,2";
+        String expected = "sum,root\n5.5,1.4142135623730951\n-5.0,2.0\nNaN,3.0\nNaN,NaN\n";
+        assertEquals(process(stream(), trickle(input)), expected);
+    }
+
+    @Test
+    public void testChunks() throws IOException {
+        StringBuilder input = new StringBuilder("y;x\n");
+        StringBuilder expected = new StringBuilder("sum;root\n");
+        int rows = BatchCompiler.CHUNK * 3 + 17;
+        for (int i = 0; i < rows; i++) {
+            double x = i * 0.25;
+            double y = -i;
+            input.append(y).append(';').append(x).append('\n');
+            expected.append(SUM.eval(new double[] {x, y})).append(';').append(ROOT.eval(new double[] {y})).append('\n');
+        }
+        Map<String, CompiledFormula> formulas = new LinkedHashMap<>();
+        formulas.put("sum", SUM);
+        formulas.put("root", ROOT.withBackend(CompiledFormula.Backend.INTERPRETER));
+        Path in = Files.createTempFile("rows", ".csv");
+        Path out = Files.createTempFile("results", ".csv");
+        try {
+            Files.writeString(in, input);
+            assertEquals(new FormulaStream(formulas, ';').process(in, out), rows);
+            assertEquals(Files.readString(out), expected.toString());
+        } finally {
+            Files.delete(in);
+            Files.delete(out);
+        }
+    }
+
+    @Test
+    public void testLongLine() throws IOException {
+        String padding = "0".repeat(200_000);
+        String input = "x,y\n" + padding + "1," + padding + "2\n";
+        assertEquals(process(stream(), trickle(input)), "sum,root\n5.0,1.4142135623730951\n");
+    }
+
+    @Test
+    public void testRepeatedNames() throws IOException {
+        // The first column of a name is bound, the rest are skipped like unused ones
+        assertEquals(process(stream(), trickle("x,X,y\n1,7,4\n")), "sum,root\n9.0,2.0\n");
+        assertEquals(process(stream(), trickle("a,,,y,x\n1,2,3,4,5\n")), "sum,root\n13.0,2.0\n");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testMissingColumn() throws IOException {
+        process(stream(), trickle("x,z\n1,2\n"));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testNoHeader() throws IOException {
+        process(stream(), trickle(""));
+    }
+}
@@ -1,10 +1,17 @@
 package ink.glowing.math;
 
+import com.sun.management.ThreadMXBean;
+import ink.glowing.math.MathDictionary.MathFunction;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
 import static java.util.Collections.emptyMap;
 import static java.util.Collections.singletonMap;
+import static org.testng.Assert.*;
 
 public class MathDictionaryTest {
     @DataProvider
@@ -13,7 +20,8 @@ public class MathDictionaryTest {
                 {"fUnc"},
                 {"1func"},
                 {"_func"},
-                {"fun c"}
+                {"fun c"},
+                {"if"}
         };
     }
 
@@ -35,4 +43,122 @@ public class MathDictionaryTest {
     public void existingNamesTest(String funct) {
         new MathDictionary(singletonMap(funct, a -> a), emptyMap());
     }
+
+    @Test
+    public void testIds() {
+        MathDictionary math = MathDictionary.INSTANCE;
+        int sin = math.functionId("x+SIN(y)", 2, 5);
+        assertEquals(math.functionName(sin), "sin");
+        assertSame(math.function(sin), math.getFunction("sin"));
+        assertEquals(math.functionId("sinh", 0, 3), sin);
+        assertEquals(math.functionId("si", 0, 2), -1);
+        assertEquals(math.functionId("pi", 0, 2), -1);
+        assertEquals(math.constant(math.constantId("2*p i", 2, 5)), Math.PI);
+        assertEquals(math.constantId("x-y", 0, 3), -1);
+
+        MathDictionary custom = new MathDictionary(Map.of("twice", a -> a * 2), Map.of("answer", 42D));
+        assertEquals(custom.functionCount(), math.functionCount() + 1);
+        assertEquals(custom.getConstant("answer", 0), 42D);
+        assertEquals(custom.function(custom.functionId("twice", 0, 5)).accept(4), 8D);
+        for (int id = 0; id < custom.functionCount(); id++) {
+            assertEquals(custom.functionId(custom.functionName(id), 0, custom.functionName(id).length()), id);
+        }
+    }
+
+    @Test
+    public void testArities() {
+        MathDictionary.MathFunction sum = new MathDictionary.MathFunction() {
+            @Override
+            public double accept(double a, double... num) {
+                for (double b : num) a += b;
+                return a;
+            }
+
+            @Override
+            public double accept(double a) {
+                return a;
+            }
+        };
+        assertEquals(sum.accept(1, 2, 3), 6D);
+        assertEquals(sum.accept(1, 2, 3, 4), 10D);
+        assertEquals(sum.accept(new double[] {9, 1, 2, 3, 4, 5}, 1, 5), 15D);
+        MathDictionary math = new MathDictionary(Map.of("sum", sum), emptyMap());
+        assertEquals(ExpressionEvaluator.eval("sum(1,2,3,4,5,6)", math), 21D);
+        assertEquals(new FormulaEvaluator("sum(x,2,3,4,5)", math).eval(Map.of("x", 1D)), 15D);
+        CompiledFormula formula = FormulaEvaluator.compile("sum(x,2,3)+sum(x,2,3,4,5)", math, "x");
+        assertEquals(formula.eval(new double[] {1}), 21D);
+        assertEquals(formula.withBackend(CompiledFormula.Backend.BYTECODE).eval(new double[] {1}), 21D);
+        double[] out = new double[1];
+        formula.evalBatch(new double[][] {{1}}, out, 0, 1);
+        assertEquals(out[0], 21D);
+    }
+
+    @Test
+    public void testDerivation() {
+        MathDictionary base = MathDictionary.INSTANCE;
+        MathDictionary derived = base.withFunction("twice", a -> a * 2).withConstant("answer", 42D);
+        MathDictionary created = new MathDictionary(Map.of("twice", a -> a * 2), Map.of("answer", 42D));
+        assertNull(base.getFunction("twice"));
+        assertNull(base.getConstant("answer"));
+        assertEquals(derived.version(), base.version() + 2);
+        assertEquals(derived.checksum(), created.checksum());
+        assertEquals(derived.functionCount(), created.functionCount());
+        assertEquals(derived.constantCount(), created.constantCount());
+        // Derived dictionaries keep the ids, and give the next free ones to new names
+        for (int id = 0; id < base.functionCount(); id++) {
+            assertEquals(derived.functionName(id), base.functionName(id));
+            assertSame(derived.function(id), base.function(id));
+        }
+        for (int id = 0; id < derived.functionCount(); id++) {
+            assertEquals(derived.functionId(derived.functionName(id), 0, derived.functionName(id).length()), id);
+        }
+        assertEquals(derived.functionName(base.functionCount()), "twice");
+        for (int id = 0; id < derived.constantCount(); id++) {
+            String name = derived.constantName(id);
+            assertEquals(derived.constantId(name, 0, name.length()), id);
+            assertEquals(derived.constant(id), created.getConstant(name));
+        }
+        assertEquals(FormulaEvaluator.compile("twice(answer)+x", derived, "x").eval(new double[] {1}), 85D);
+    }
+
+    @Test
+    public void testDerivationCost() {
+        Map<String, MathFunction> functions = new HashMap<>();
+        MathFunction twice = a -> a * 2;
+        for (int i = 0; i < 100_000; i++) functions.put("custom_" + i, twice);
+        MathDictionary small = MathDictionary.INSTANCE;
+        MathDictionary large = new MathDictionary(functions, Map.of());
+        derive(small, twice);
+        derive(large, twice);
+        long smallCost = derive(small, twice);
+        long largeCost = derive(large, twice);
+        assertTrue(largeCost < smallCost * 2, smallCost + " B from small, " + largeCost + "B from large");
+        MathDictionary derived = large.withFunction("twice", twice).withConstant("answer", 42);
+        MathDictionary created = new MathDictionary(functions, Map.of("answer", 42D)).withFunction("twice", twice);
+        assertEquals(derived.checksum(), created.checksum());
+        assertEquals(derived.getFunction("custom_99999"), twice);
+        assertEquals(derived.getConstant("answer"), 42D);
+        assertNull(large.getFunction("twice"));
+    }
+
+    /**
+     * @return bytes allocated by deriving from the dictionary a hundred times
+     */
+    private static long derive(MathDictionary math, MathFunction function) {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        MathDictionary[] derived = new MathDictionary[100];
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < derived.length; i++) derived[i] = math.withFunction("derived_" + i, function);
+        return threads.getCurrentThreadAllocatedBytes() - before;
+    }
+
+    @Test(dataProvider = "existingNames", expectedExceptions = IllegalStateException.class)
+    public void existingDerivedTest(String funct) {
+        MathDictionary.INSTANCE.withFunction(funct, a -> a);
+    }
+
+    @Test(dataProvider = "invalidNames", expectedExceptions = IllegalArgumentException.class)
+    public void invalidDerivedTest(String constant) {
+        MathDictionary.INSTANCE.withConstant(constant, 1);
+    }
 }
@@ -0,0 +1,64 @@
+package ink.glowing.math;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.testng.Assert.*;
+
+public class MathRegistryTest {
+    @Test
+    public void testConcurrentRegistration() throws Exception {
+        MathRegistry registry = new MathRegistry();
+        int threads = 8;
+        int perThread = 50;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        double value = thread * perThread + i;
+                        registry.register("tenant" + thread + "_fn" + i, a -> a + value);
+                        registry.register("tenant" + thread + "_c" + i, value);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) future.get();
+        } finally {
+            executor.shutdown();
+        }
+        MathDictionary math = registry.current();
+        assertEquals(registry.version(), threads * perThread * 2L);
+        assertEquals(math.functionCount(), MathDictionary.INSTANCE.functionCount() + threads * perThread);
+        assertEquals(math.constantCount(), MathDictionary.INSTANCE.constantCount() + threads * perThread);
+        assertEquals(ExpressionEvaluator.eval("tenant3_fn7(tenant2_c1)", math), 101 + 157D);
+    }
+
+    @Test
+    public void testStale() {
+        MathRegistry registry = new MathRegistry();
+        FormulaCache cache = new FormulaCache(16);
+        CompiledFormula formula = cache.compile("x*2", registry, "x");
+        assertFalse(registry.isStale(formula));
+        assertSame(cache.compile("x*2", registry, "x"), formula);
+        registry.register("twice", a -> a * 2);
+        assertTrue(registry.isStale(formula));
+        assertTrue(registry.isStale(formula.withBackend(CompiledFormula.Backend.INTERPRETER)));
+        CompiledFormula fresh = cache.compile("x*2", registry, "x");
+        assertNotSame(fresh, formula);
+        assertFalse(registry.isStale(fresh.derivative("x")));
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testDuplicate() {
+        MathRegistry registry = new MathRegistry();
+        registry.register("twice", a -> a * 2);
+        registry.register("twice", a -> a + a);
+    }
+}
@@ -0,0 +1,127 @@
+package ink.glowing.math;
+
+import ink.glowing.math.MathDictionary.MathFunction;
+import org.testng.annotations.Test;
+
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static org.testng.Assert.*;
+
+public class MemoizedFunctionTest {
+    /**
+     * Pure function that counts its calls
+     */
+    private static final class Lookup implements MathFunction {
+        private final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public double accept(double a) {
+            calls.incrementAndGet();
+            return a * 3 + 1;
+        }
+
+        @Override
+        public double accept(double a, double b) {
+            calls.incrementAndGet();
+            return a * 3 + b;
+        }
+
+        @Override
+        public boolean isPure() {
+            return true;
+        }
+
+        @Override
+        public int cost() {
+            return 500;
+        }
+    }
+
+    @Test
+    public void testMemoization() {
+        Lookup lookup = new Lookup();
+        MemoizedFunction memoized = new MemoizedFunction(lookup, 100);
+        assertEquals(memoized.capacity(), 128);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(memoized.accept(2), 7D);
+            assertEquals(memoized.accept(2, 5), 11D);
+            assertEquals(memoized.accept(new double[] {0, 2, 1}, 1, 2), 7D);
+        }
+        assertEquals(lookup.calls.get(), 3);
+        assertEquals(memoized.misses(), 3);
+        assertEquals(memoized.hits(), 27);
+        assertEquals(memoized.hitRate(), 0.9);
+        // Zeros of different signs and NaNs are distinct keys
+        assertEquals(Double.doubleToRawLongBits(memoized.accept(0D, -0D)), Double.doubleToRawLongBits(0D));
+        assertEquals(Double.doubleToRawLongBits(memoized.accept(-0D, -0D)), Double.doubleToRawLongBits(-0D));
+        assertTrue(Double.isNaN(memoized.accept(Double.NaN)));
+        assertEquals(memoized.accept(Double.NaN, 1), Double.NaN);
+    }
+
+    @Test
+    public void testEviction() {
+        Lookup lookup = new Lookup();
+        MemoizedFunction memoized = new MemoizedFunction(lookup, 1);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(memoized.accept(i), i * 3 + 1D);
+            assertEquals(memoized.accept(i), i * 3 + 1D);
+        }
+        assertEquals(lookup.calls.get(), 100);
+    }
+
+    @Test
+    public void testThreads() {
+        MemoizedFunction memoized = new MemoizedFunction(new Lookup(), 64);
+        boolean correct = ForkJoinPool.commonPool().submit(() -> IntStream.range(0, 100_000).parallel()
+                .allMatch((i) -> memoized.accept(i % 200, i % 7) == (i % 200) * 3 + (i % 7))).join();
+        assertTrue(correct);
+        assertEquals(memoized.hits() + memoized.misses(), 100_000);
+    }
+
+    @Test
+    public void testDictionary() {
+        MathDictionary math = new MathDictionary(Map.of("lookup", new Lookup()), Map.of()).memoized(256);
+        assertTrue(math.getFunction("gamma") instanceof MemoizedFunction);
+        assertTrue(math.getFunction("lookup") instanceof MemoizedFunction);
+        assertFalse(math.getFunction("random") instanceof MemoizedFunction);
+        assertFalse(math.getFunction("rng_choice") instanceof MemoizedFunction);
+        assertFalse(math.getFunction("sin") instanceof MemoizedFunction);
+        assertEquals(math.checksum(), new MathDictionary(Map.of("lookup", new Lookup()), Map.of()).checksum());
+        MathFunction gamma = MathDictionary.BASIC_FUNCTIONS.get("gamma");
+        assertEquals(gamma.accept(5), 24D);
+        assertEquals(gamma.accept(171), 7.257415615307994E306);
+        assertEquals(gamma.accept(172), Double.POSITIVE_INFINITY);
+        CompiledFormula formula = FormulaEvaluator.compile("gamma(x)+log_gamma(x)", math, "x");
+        CompiledFormula plain = FormulaEvaluator.compile("gamma(x)+log_gamma(x)", "x");
+        for (int i = 0; i < 3; i++) {
+            for (double x = 0.5; x < 20; x += 0.5) {
+                assertEquals(formula.eval(new double[] {x}), plain.eval(new double[] {x}));
+            }
+        }
+        // Slots may collide, so only most of the repeated calls are remembered
+        assertTrue(((MemoizedFunction) math.getFunction("gamma")).hitRate() > 0.5);
+    }
+
+    @Test
+    public void testPureCustomFunctions() {
+        Lookup lookup = new Lookup();
+        MathDictionary math = new MathDictionary(Map.of("lookup", lookup), Map.of());
+        // Calls with constant arguments are folded at compile time
+        CompiledFormula folded = FormulaEvaluator.compile("lookup(2)*x", math, "x");
+        assertEquals(lookup.calls.get(), 1);
+        assertEquals(folded.eval(new double[] {2}), 14D);
+        assertEquals(lookup.calls.get(), 1);
+        // Identical calls are shared by formulas of a set
+        FormulaSet set = FormulaSet.compile(Map.of("a", "lookup(x)+1", "b", "lookup(x)*2"), math, "x");
+        assertEquals(set.eval(new double[] {1})[set.index("b")], 8D);
+        assertEquals(lookup.calls.get(), 2);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testImpure() {
+        new MemoizedFunction(MathDictionary.BASIC_FUNCTIONS.get("random"), 16);
+    }
+}
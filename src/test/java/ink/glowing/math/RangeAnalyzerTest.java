@@ -0,0 +1,107 @@
+package ink.glowing.math;
+
+import ink.glowing.math.RangeAnalyzer.Interval;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.Map;
+import java.util.Random;
+
+import static org.testng.Assert.*;
+
+public class RangeAnalyzerTest {
+    private static Node specialize(String expression, Map<String, Interval> ranges) {
+        Node root = FormulaOptimizer.optimize(FormulaParser.parse(expression, MathDictionary.INSTANCE));
+        return RangeAnalyzer.specialize(root, ranges);
+    }
+
+    private static Node optimized(String expression) {
+        return FormulaOptimizer.optimize(FormulaParser.parse(expression, MathDictionary.INSTANCE));
+    }
+
+    @Test
+    public void testClamps() {
+        Map<String, Interval> unit = Map.of("x", Interval.of(0, 1), "y", Interval.of(-3, -2));
+        assertEquals(specialize("abs(x)+max(x,0)+min(x,1)+signum(x+1)", unit), optimized("x+x+x+1"));
+        assertEquals(specialize("abs(y)+max(y,x)+min(x,y)+signum(y)", unit), optimized("abs(y)+x+y+-1"));
+        assertEquals(specialize("x^3+x^4+x^-1+x^0.5", unit), optimized("x*x*x+(x*x)*(x*x)+1/x+sqrt(x)"));
+        // -0 is within the range, and max(-0, 0) is +0
+        Map<String, Interval> signed = Map.of("x", Interval.of(-0D, 1));
+        assertEquals(specialize("abs(x)+max(x,0)", signed), optimized("abs(x)+max(x,0)"));
+        // Unbounded variables may be NaN only when declared so, min(x, NaN) is NaN
+        assertEquals(specialize("min(x,y)", Map.of("x", Interval.of(0, 1))), optimized("min(x,y)"));
+    }
+
+    @Test
+    public void testConditions() {
+        Map<String, Interval> ranges = Map.of("x", Interval.of(1, 10), "y", Interval.of(-5, 5));
+        assertEquals(specialize("if(x >= 0, sqrt(x), 0) + (x < 20) + (x == 0)", ranges), optimized("sqrt(x)+1+0"));
+        assertEquals(specialize("x > 10 || y > 5 ? 1 / y : abs(x)", ranges), optimized("x"));
+        assertEquals(specialize("if(y > 0, abs(x), y)", ranges), optimized("if(y > 0, x, y)"));
+        // NaN passes only ≠
+        Map<String, Interval> nan = Map.of("z", new Interval(0, 10, true, false));
+        assertEquals(specialize("(z < 20) + (z != 20)", nan), optimized("(z < 20) + 1"));
+        assertFalse(FormulaEvaluator.compile("if(x > 0, 1 / x, 0)", "x")
+                .withRanges(new double[] {-2}, new double[] {-1}).mayDivideByZero());
+    }
+
+    @Test
+    public void testUndecided() {
+        Map<String, Interval> ranges = Map.of("x", Interval.of(1, 10), "y", Interval.of(-5, 5));
+        assertEquals(specialize("x == y", ranges), optimized("x == y"));
+        assertEquals(specialize("x != y", ranges), optimized("x != y"));
+        // x is never zero, so only y is left to test
+        assertEquals(specialize("x && y", ranges), optimized("y != 0"));
+        assertEquals(specialize("y && y", ranges), optimized("y && y"));
+        for (String expression : new String[] {"x == y", "x != y", "x && y", "x || y"}) {
+            CompiledFormula formula = FormulaEvaluator.compile(expression, "x", "y");
+            assertFalse(formula.mayDivideByZero());
+            CompiledFormula ranged = formula.withRanges(new double[] {1, -5}, new double[] {10, 5});
+            assertEquals(ranged.eval(new double[] {3, 3}), formula.eval(new double[] {3, 3}));
+            assertEquals(ranged.eval(new double[] {3, 0}), formula.eval(new double[] {3, 0}));
+        }
+    }
+
+    @Test
+    public void testDivisionByZero() {
+        assertTrue(FormulaEvaluator.compile("1/x", "x").mayDivideByZero());
+        assertFalse(FormulaEvaluator.compile("1/x", "x").withRanges(new double[] {1}, new double[] {2}).mayDivideByZero());
+        assertTrue(FormulaEvaluator.compile("1/(x-1)", "x").withRanges(new double[] {1}, new double[] {2}).mayDivideByZero());
+        assertTrue(FormulaEvaluator.compile("x%sin(x)", "x").withRanges(new double[] {1}, new double[] {2}).mayDivideByZero());
+        assertFalse(FormulaEvaluator.compile("x/(exp(x)+1)", "x").mayDivideByZero());
+    }
+
+    @DataProvider
+    public Object[][] backends() {
+        return new Object[][] {
+                {CompiledFormula.Backend.TREE},
+                {CompiledFormula.Backend.BYTECODE},
+                {CompiledFormula.Backend.INTERPRETER}
+        };
+    }
+
+    @Test(dataProvider = "backends")
+    public void testGuard(CompiledFormula.Backend backend) {
+        CompiledFormula general = FormulaEvaluator.compile("abs(x)*max(y,0)+min(x,1)/y", "x", "y")
+                .withBackend(backend);
+        CompiledFormula ranged = general.withRanges(new double[] {0, 1}, new double[] {1, 100});
+        assertEquals(ranged.backend(), backend);
+        Random random = new Random(17);
+        double[][] inputs = {{-5, 2}, {0.5, -1}, {Double.NaN, 3}, {-0D, 5}, {0.25, Double.POSITIVE_INFINITY}};
+        for (double[] vars : inputs) {
+            assertEquals(ranged.eval(vars), general.eval(vars));
+        }
+        for (int i = 0; i < 1000; i++) {
+            double[] vars = {random.nextDouble(), 1 + random.nextDouble() * 99};
+            assertEquals(ranged.eval(vars), general.eval(vars));
+        }
+        CompiledFormula other = ranged.withBackend(CompiledFormula.Backend.TREE);
+        assertEquals(other.eval(new double[] {-5, 2}), general.eval(new double[] {-5, 2}));
+        assertEquals(other.derivative("x").eval(new double[] {0.5, 2}), 2.5);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testEmptyRange() {
+        FormulaEvaluator.compile("x", "x").withRanges(new double[] {1}, new double[] {0});
+    }
+}
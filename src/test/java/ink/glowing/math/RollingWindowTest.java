@@ -0,0 +1,91 @@
+package ink.glowing.math;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.Random;
+
+import static org.testng.Assert.*;
+
+public class RollingWindowTest {
+    @DataProvider
+    public Object[][] windows() {
+        return new Object[][] {
+                {RollingWindow.SUM, 1},
+                {RollingWindow.SUM, 7},
+                {RollingWindow.AVG, 50},
+                {RollingWindow.MIN, 1},
+                {RollingWindow.MIN, 13},
+                {RollingWindow.MAX, 40},
+                {RollingWindow.MAX, 1000}
+        };
+    }
+
+    @Test(dataProvider = "windows")
+    public void testAgainstRecomputation(String name, int size) {
+        RollingWindow window = RollingWindow.of(name, size);
+        Random random = new Random(name.hashCode() * 31L + size);
+        double[] samples = new double[3000];
+        for (int i = 0; i < samples.length; i++) {
+            int kind = random.nextInt(100);
+            samples[i] = kind == 0 ? Double.NaN
+                    : kind == 1 ? Double.POSITIVE_INFINITY
+                    : kind == 2 ? Double.NEGATIVE_INFINITY
+                    : kind < 10 ? (random.nextBoolean() ? 0D : -0D)
+                    : random.nextInt(20) - 10 + random.nextDouble();
+        }
+        for (int i = 0; i < samples.length; i++) {
+            double expected = recompute(name, samples, Math.max(0, i - size + 1), i + 1);
+            double actual = window.add(samples[i]);
+            if (name.equals(RollingWindow.MIN) || name.equals(RollingWindow.MAX)) {
+                assertEquals(Double.doubleToLongBits(actual), Double.doubleToLongBits(expected), name + " at " + i);
+            } else {
+                assertEquals(actual, expected, 1e-9, name + " at " + i);
+            }
+        }
+    }
+
+    private static double recompute(String name, double[] samples, int from, int to) {
+        double result = switch (name) {
+            case RollingWindow.MIN -> Double.POSITIVE_INFINITY;
+            case RollingWindow.MAX -> Double.NEGATIVE_INFINITY;
+            default -> 0;
+        };
+        for (int i = from; i < to; i++) {
+            result = switch (name) {
+                case RollingWindow.MIN -> Math.min(result, samples[i]);
+                case RollingWindow.MAX -> Math.max(result, samples[i]);
+                default -> result + samples[i];
+            };
+        }
+        return name.equals(RollingWindow.AVG) ? result / (to - from) : result;
+    }
+
+    @Test
+    public void testSumDoesNotDrift() {
+        RollingWindow window = RollingWindow.of(RollingWindow.SUM, 3);
+        window.add(1e17);
+        window.add(0.1);
+        window.add(-1e17);
+        for (int i = 0; i < 3; i++) window.add(0.25);
+        assertEquals(window.add(0.5), 1D);
+    }
+
+    @Test
+    public void testEwma() {
+        RollingWindow window = RollingWindow.of(RollingWindow.EWMA, 3);
+        assertEquals(window.add(4), 4D);
+        assertEquals(window.add(8), 6D);
+        assertEquals(window.add(2), 4D);
+        assertEquals(RollingWindow.of(RollingWindow.EWMA, 1).add(5), 5D);
+    }
+
+    @Test
+    public void testInvalid() {
+        assertNull(RollingWindow.of(RollingWindow.SUM, 0));
+        assertNull(RollingWindow.of(RollingWindow.MAX, Double.NaN));
+        assertNull(RollingWindow.of("rolling_median", 5));
+        assertTrue(RollingWindow.isWindow(RollingWindow.EWMA));
+        assertFalse(RollingWindow.isWindow("sum"));
+    }
+}